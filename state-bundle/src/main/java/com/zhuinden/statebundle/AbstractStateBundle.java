@@ -0,0 +1,1493 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.util.SparseArray;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The typed accessors shared by {@link StateBundle} and {@link ConcurrentStateBundle}.
+ *
+ * The subclasses only differ in how they store the mappings: the accessors read through {@link #get(String)}
+ * and write through a single hook, so a new type only has to be added here.
+ *
+ * @param <B> the type of the bundle, returned by the put methods for chaining
+ */
+public abstract class AbstractStateBundle<B extends AbstractStateBundle<B>> {
+    AbstractStateBundle() {
+    }
+
+    /**
+     * Returns the entry with the given key as an object.
+     *
+     * @param key a String key
+     * @return an Object, or null
+     */
+    @Nullable
+    public abstract Object get(String key);
+
+    // Returns the value of the key together with the type it was put with, or null if there is no mapping for the key
+    @Nullable
+    abstract StateBundle.Entry getEntry(@Nullable String key);
+
+    // Maps the key to the value with the given type, and returns this bundle
+    abstract B putValue(@Nullable String key, int type, @Nullable Object value);
+
+    /**
+     * Inserts a Boolean value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a boolean
+     * @return this bundle
+     */
+    @Nonnull
+    public B putBoolean(@Nullable String key, boolean value) {
+        return putValue(key, StateBundle.type_boolean, value);
+    }
+
+    /**
+     * Inserts a byte value into the mapping of this bundle, replacing
+     * any existing value for the given key.
+     *
+     * @param key   a String, or null
+     * @param value a byte
+     * @return this bundle
+     */
+    @Nonnull
+    public B putByte(@Nullable String key, byte value) {
+        return putValue(key, StateBundle.type_byte, value);
+    }
+
+    /**
+     * Inserts a char value into the mapping of this bundle, replacing
+     * any existing value for the given key.
+     *
+     * @param key   a String, or null
+     * @param value a char
+     * @return this bundle
+     */
+    @Nonnull
+    public B putChar(@Nullable String key, char value) {
+        return putValue(key, StateBundle.type_char, value);
+    }
+
+    /**
+     * Inserts a short value into the mapping of this bundle, replacing
+     * any existing value for the given key.
+     *
+     * @param key   a String, or null
+     * @param value a short
+     * @return this bundle
+     */
+    @Nonnull
+    public B putShort(@Nullable String key, short value) {
+        return putValue(key, StateBundle.type_short, value);
+    }
+
+    /**
+     * Inserts an int value into the mapping of this bundle, replacing
+     * any existing value for the given key.
+     *
+     * @param key   a String, or null
+     * @param value an int
+     * @return this bundle
+     */
+    @Nonnull
+    public B putInt(@Nullable String key, int value) {
+        return putValue(key, StateBundle.type_int, value);
+    }
+
+    /**
+     * Inserts a long value into the mapping of this bundle, replacing
+     * any existing value for the given key.
+     *
+     * @param key   a String, or null
+     * @param value a long
+     * @return this bundle
+     */
+    @Nonnull
+    public B putLong(@Nullable String key, long value) {
+        return putValue(key, StateBundle.type_long, value);
+    }
+
+    /**
+     * Inserts a float value into the mapping of this bundle, replacing
+     * any existing value for the given key.
+     *
+     * @param key   a String, or null
+     * @param value a float
+     * @return this bundle
+     */
+    @Nonnull
+    public B putFloat(@Nullable String key, float value) {
+        return putValue(key, StateBundle.type_float, value);
+    }
+
+    /**
+     * Inserts a double value into the mapping of this bundle, replacing
+     * any existing value for the given key.
+     *
+     * @param key   a String, or null
+     * @param value a double
+     * @return this bundle
+     */
+    @Nonnull
+    public B putDouble(@Nullable String key, double value) {
+        return putValue(key, StateBundle.type_double, value);
+    }
+
+    /**
+     * Inserts a String value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a String, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putString(@Nullable String key, @Nullable String value) {
+        return putValue(key, StateBundle.type_String, value);
+    }
+
+    /**
+     * Inserts a CharSequence value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a CharSequence, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putCharSequence(@Nullable String key, @Nullable CharSequence value) {
+        return putValue(key, StateBundle.type_CharSequence, value);
+    }
+
+    /**
+     * Inserts an ArrayList of Integer value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value an ArrayList of Integer object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putIntegerArrayList(@Nullable String key, @Nullable ArrayList<Integer> value) {
+        return putValue(key, StateBundle.type_IntegerArrayList, value);
+    }
+
+    /**
+     * Inserts an ArrayList of String value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value an ArrayList of String object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putStringArrayList(@Nullable String key, @Nullable ArrayList<String> value) {
+        return putValue(key, StateBundle.type_StringArrayList, value);
+    }
+
+    /**
+     * Inserts an ArrayList of CharSequence value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value an ArrayList of CharSequence object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putCharSequenceArrayList(@Nullable String key, @Nullable ArrayList<CharSequence> value) {
+        return putValue(key, StateBundle.type_CharSequenceArrayList, value);
+    }
+
+    /**
+     * Inserts a Serializable value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a Serializable object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putSerializable(@Nullable String key, @Nullable Serializable value) {
+        return putValue(key, StateBundle.type_Serializable, value);
+    }
+
+    /**
+     * Inserts an enum value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * The value is written as the name of its class and the name of the constant, instead of through Java serialization,
+     * so constants can be added or reordered, but a constant that was renamed or removed can't be read back.
+     *
+     * @param key   a String, or null
+     * @param value an enum constant, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putEnum(@Nullable String key, @Nullable Enum<?> value) {
+        return putValue(key, StateBundle.type_Enum, value);
+    }
+
+    /**
+     * Inserts a UUID value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * The value is written as two longs, instead of through Java serialization.
+     *
+     * @param key   a String, or null
+     * @param value a UUID object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putUUID(@Nullable String key, @Nullable UUID value) {
+        return putValue(key, StateBundle.type_UUID, value);
+    }
+
+    /**
+     * Inserts a Date value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * The value is written as its epoch milliseconds, instead of through Java serialization.
+     *
+     * @param key   a String, or null
+     * @param value a Date object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putDate(@Nullable String key, @Nullable Date value) {
+        return putValue(key, StateBundle.type_Date, value);
+    }
+
+    /**
+     * Inserts a BigDecimal value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * The value is written as its scale and the bytes of its unscaled value, instead of through Java serialization.
+     *
+     * @param key   a String, or null
+     * @param value a BigDecimal object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putBigDecimal(@Nullable String key, @Nullable BigDecimal value) {
+        return putValue(key, StateBundle.type_BigDecimal, value);
+    }
+
+    /**
+     * Inserts a boolean array value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a boolean array object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putBooleanArray(@Nullable String key, @Nullable boolean[] value) {
+        return putValue(key, StateBundle.type_BooleanArray, value);
+    }
+
+    /**
+     * Inserts a byte array value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a byte array object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putByteArray(@Nullable String key, @Nullable byte[] value) {
+        return putValue(key, StateBundle.type_ByteArray, value);
+    }
+
+    /**
+     * Inserts a short array value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a short array object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putShortArray(@Nullable String key, @Nullable short[] value) {
+        return putValue(key, StateBundle.type_ShortArray, value);
+    }
+
+    /**
+     * Inserts a char array value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a char array object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putCharArray(@Nullable String key, @Nullable char[] value) {
+        return putValue(key, StateBundle.type_CharArray, value);
+    }
+
+    /**
+     * Inserts an int array value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value an int array object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putIntArray(@Nullable String key, @Nullable int[] value) {
+        return putValue(key, StateBundle.type_IntArray, value);
+    }
+
+    /**
+     * Inserts a long array value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a long array object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putLongArray(@Nullable String key, @Nullable long[] value) {
+        return putValue(key, StateBundle.type_LongArray, value);
+    }
+
+    /**
+     * Inserts a float array value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a float array object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putFloatArray(@Nullable String key, @Nullable float[] value) {
+        return putValue(key, StateBundle.type_FloatArray, value);
+    }
+
+    /**
+     * Inserts a double array value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a double array object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putDoubleArray(@Nullable String key, @Nullable double[] value) {
+        return putValue(key, StateBundle.type_DoubleArray, value);
+    }
+
+    /**
+     * Inserts a String array value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a String array object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putStringArray(@Nullable String key, @Nullable String[] value) {
+        return putValue(key, StateBundle.type_StringArray, value);
+    }
+
+    /**
+     * Inserts a CharSequence array value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a CharSequence array object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putCharSequenceArray(@Nullable String key, @Nullable CharSequence[] value) {
+        return putValue(key, StateBundle.type_CharSequenceArray, value);
+    }
+
+
+    /**
+     * Inserts a Parcelable value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a Parcelable object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putParcelable(@Nullable String key, @Nullable Parcelable value) {
+        return putValue(key, StateBundle.type_Parcelable, value);
+    }
+
+    /**
+     * Inserts a size into the mapping of this bundle, replacing
+     * any existing value for the given key.
+     *
+     * The size is packed into a long (see {@link StateBundleSize}), and it is copied as an android.util.Size by {@link StateBundle#copyToBundle(Bundle)}.
+     *
+     * @param key    a String, or null
+     * @param width  the width
+     * @param height the height
+     * @return this bundle
+     */
+    @Nonnull
+    public B putSize(@Nullable String key, int width, int height) {
+        return putValue(key, StateBundle.type_Size, StateBundleSize.pack(width, height));
+    }
+
+    /**
+     * Inserts a float size into the mapping of this bundle, replacing
+     * any existing value for the given key.
+     *
+     * The size is packed into a long (see {@link StateBundleSize}), and it is copied as an android.util.SizeF by {@link StateBundle#copyToBundle(Bundle)}.
+     *
+     * @param key    a String, or null
+     * @param width  the width
+     * @param height the height
+     * @return this bundle
+     */
+    @Nonnull
+    public B putSizeF(@Nullable String key, float width, float height) {
+        return putValue(key, StateBundle.type_SizeF, StateBundleSize.packF(width, height));
+    }
+
+    /**
+     * Inserts an array of Parcelable values into the mapping of this bundle,
+     * replacing any existing value for the given key.  Either key or value may
+     * be null.
+     *
+     * @param key   a String, or null
+     * @param value an array of Parcelable objects, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putParcelableArray(@Nullable String key, @Nullable Parcelable[] value) {
+        return putValue(key, StateBundle.type_ParcelableArray, value);
+    }
+
+    /**
+     * Inserts a List of Parcelable values into the mapping of this bundle,
+     * replacing any existing value for the given key.  Either key or value may
+     * be null.
+     *
+     * @param key   a String, or null
+     * @param value an ArrayList of Parcelable objects, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putParcelableArrayList(@Nullable String key, @Nullable ArrayList<? extends Parcelable> value) {
+        return putValue(key, StateBundle.type_ParcelableArrayList, value);
+    }
+
+    /**
+     * Inserts a SparceArray of Parcelable values into the mapping of this
+     * Bundle, replacing any existing value for the given key.  Either key
+     * or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a SparseArray of Parcelable objects, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putSparseParcelableArray(@Nullable String key, @Nullable SparseArray<? extends Parcelable> value) {
+        return putValue(key, StateBundle.type_SparseParcelableArray, value);
+    }
+
+    /**
+     * Inserts a StateBundle value into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param value a StateBundle object, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putBundle(@Nullable String key, @Nullable StateBundle value) {
+        return putValue(key, StateBundle.type_StateBundle, value);
+    }
+
+    /**
+     * Inserts a value of a custom type into the mapping of this bundle, replacing
+     * any existing value for the given key.  Either key or value may be null.
+     *
+     * @param key   a String, or null
+     * @param type  the custom type, registered with {@link StateBundle#registerTypeCodec(int, StateBundleTypeCodec)}.
+     * @param value an instance of the value class of the type's codec, or null
+     * @return this bundle
+     */
+    @Nonnull
+    public B putCustom(@Nullable String key, int type, @Nullable Object value) {
+        StateBundleTypeCodec<Object> codec = StateBundle.customTypeCodec(type);
+        if(value != null && !codec.getValueClass().isInstance(value)) {
+            throw new IllegalArgumentException("The provided value should be a " + codec.getValueClass().getName() + "!");
+        }
+        return putValue(key, type, value);
+    }
+
+    /**
+     * Returns the value associated with the given key, or false if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key a String
+     * @return a boolean value
+     */
+    public boolean getBoolean(@Nonnull String key) {
+        return getBoolean(key, false);
+    }
+
+    /**
+     * Returns the value associated with the given key, or defaultValue if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key          a String
+     * @param defaultValue Value to return if key does not exist
+     * @return a boolean value
+     */
+    public boolean getBoolean(@Nonnull String key, boolean defaultValue) {
+        Object o = get(key);
+        if(o == null) {
+            return defaultValue;
+        }
+        try {
+            return (Boolean) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "Boolean", defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or (byte) 0 if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key a String
+     * @return a byte value
+     */
+    public byte getByte(@Nonnull String key) {
+        return getByte(key, (byte) 0);
+    }
+
+    /**
+     * Returns the value associated with the given key, or defaultValue if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key          a String
+     * @param defaultValue Value to return if key does not exist
+     * @return a byte value
+     */
+    @Nonnull
+    public Byte getByte(@Nonnull String key, byte defaultValue) { // TODO: why is this Byte?
+        Object o = get(key);
+        if(o == null) {
+            return defaultValue;
+        }
+        try {
+            return (Byte) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "Byte", defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or (char) 0 if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key a String
+     * @return a char value
+     */
+    public char getChar(@Nonnull String key) {
+        return getChar(key, (char) 0);
+    }
+
+    /**
+     * Returns the value associated with the given key, or defaultValue if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key          a String
+     * @param defaultValue Value to return if key does not exist
+     * @return a char value
+     */
+    public char getChar(@Nonnull String key, char defaultValue) {
+        Object o = get(key);
+        if(o == null) {
+            return defaultValue;
+        }
+        try {
+            return (char) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "Character", defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or (short) 0 if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key a String
+     * @return a short value
+     */
+    public short getShort(@Nonnull String key) {
+        return getShort(key, (short) 0);
+    }
+
+    /**
+     * Returns the value associated with the given key, or defaultValue if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key          a String
+     * @param defaultValue Value to return if key does not exist
+     * @return a short value
+     */
+    public short getShort(@Nonnull String key, short defaultValue) {
+        Object o = get(key);
+        if(o == null) {
+            return defaultValue;
+        }
+        try {
+            return (Short) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "Short", defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or 0 if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key a String
+     * @return an int value
+     */
+    public int getInt(@Nonnull String key) {
+        return getInt(key, 0);
+    }
+
+    /**
+     * Returns the value associated with the given key, or defaultValue if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key          a String
+     * @param defaultValue Value to return if key does not exist
+     * @return an int value
+     */
+    public int getInt(@Nonnull String key, int defaultValue) {
+        Object o = get(key);
+        if(o == null) {
+            return defaultValue;
+        }
+        try {
+            return (Integer) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "Integer", defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or 0L if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key a String
+     * @return a long value
+     */
+    public long getLong(@Nonnull String key) {
+        return getLong(key, 0L);
+    }
+
+    /**
+     * Returns the value associated with the given key, or defaultValue if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key          a String
+     * @param defaultValue Value to return if key does not exist
+     * @return a long value
+     */
+    public long getLong(@Nonnull String key, long defaultValue) {
+        Object o = get(key);
+        if(o == null) {
+            return defaultValue;
+        }
+        try {
+            return (Long) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "Long", defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or 0.0f if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key a String
+     * @return a float value
+     */
+    public float getFloat(@Nonnull String key) {
+        return getFloat(key, 0.0f);
+    }
+
+    /**
+     * Returns the value associated with the given key, or defaultValue if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key          a String
+     * @param defaultValue Value to return if key does not exist
+     * @return a float value
+     */
+    public float getFloat(@Nonnull String key, float defaultValue) {
+        Object o = get(key);
+        if(o == null) {
+            return defaultValue;
+        }
+        try {
+            return (Float) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "Float", defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or 0.0 if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key a String
+     * @return a double value
+     */
+    public double getDouble(@Nonnull String key) {
+        return getDouble(key, 0.0);
+    }
+
+    /**
+     * Returns the value associated with the given key, or defaultValue if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key          a String
+     * @param defaultValue Value to return if key does not exist
+     * @return a double value
+     */
+    public double getDouble(@Nonnull String key, double defaultValue) {
+        Object o = get(key);
+        if(o == null) {
+            return defaultValue;
+        }
+        try {
+            return (Double) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "Double", defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a String value, or null
+     */
+    @Nullable
+    public String getString(@Nullable String key) {
+        final Object o = get(key);
+        try {
+            return (String) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "String", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or defaultValue if
+     * no mapping of the desired type exists for the given key or if a null
+     * value is explicitly associated with the given key.
+     *
+     * @param key          a String, or null
+     * @param defaultValue Value to return if key does not exist or if a null
+     *                     value is associated with the given key.
+     * @return the String value associated with the given key, or defaultValue
+     * if no valid String object is currently mapped to that key.
+     */
+    @Nonnull
+    public String getString(@Nullable String key, @Nonnull String defaultValue) {
+        final String s = getString(key);
+        return (s == null) ? defaultValue : s;
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a CharSequence value, or null
+     */
+    @Nullable
+    public CharSequence getCharSequence(@Nullable String key) {
+        final Object o = get(key);
+        try {
+            return (CharSequence) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "CharSequence", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or defaultValue if
+     * no mapping of the desired type exists for the given key or if a null
+     * value is explicitly associated with the given key.
+     *
+     * @param key          a String, or null
+     * @param defaultValue Value to return if key does not exist or if a null
+     *                     value is associated with the given key.
+     * @return the CharSequence value associated with the given key, or defaultValue
+     * if no valid CharSequence object is currently mapped to that key.
+     */
+    @Nonnull
+    public CharSequence getCharSequence(@Nullable String key, @Nonnull CharSequence defaultValue) {
+        final CharSequence cs = getCharSequence(key);
+        return (cs == null) ? defaultValue : cs;
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a Serializable value, or null
+     */
+    @Nullable
+    public Serializable getSerializable(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (Serializable) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "Serializable", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key       a String, or null
+     * @param enumClass the class of the enum, must not be null.
+     * @return an enum constant, or null
+     */
+    @Nullable
+    public <E extends Enum<E>> E getEnum(@Nullable String key, @Nonnull Class<E> enumClass) {
+        if(enumClass == null) {
+            throw new IllegalArgumentException("The provided enum class should not be null!");
+        }
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return enumClass.cast(o);
+        } catch(ClassCastException e) {
+            typeWarning(key, o, enumClass.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a UUID value, or null
+     */
+    @Nullable
+    public UUID getUUID(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (UUID) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "UUID", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a Date value, or null
+     */
+    @Nullable
+    public Date getDate(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (Date) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "Date", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a BigDecimal value, or null
+     */
+    @Nullable
+    public BigDecimal getBigDecimal(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (BigDecimal) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "BigDecimal", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return an ArrayList of String value, or null
+     */
+    @Nullable
+    public ArrayList<Integer> getIntegerArrayList(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (ArrayList<Integer>) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "ArrayList<Integer>", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return an ArrayList of String value, or null
+     */
+    @Nullable
+    public ArrayList<String> getStringArrayList(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (ArrayList<String>) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "ArrayList<String>", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return an ArrayList of CharSequence value, or null
+     */
+    @Nullable
+    public ArrayList<CharSequence> getCharSequenceArrayList(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (ArrayList<CharSequence>) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "ArrayList<CharSequence>", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a boolean[] value, or null
+     */
+    @Nullable
+    public boolean[] getBooleanArray(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (boolean[]) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "byte[]", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a byte[] value, or null
+     */
+    @Nullable
+    public byte[] getByteArray(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (byte[]) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "byte[]", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a short[] value, or null
+     */
+    @Nullable
+    public short[] getShortArray(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (short[]) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "short[]", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a char[] value, or null
+     */
+    @Nullable
+    public char[] getCharArray(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (char[]) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "char[]", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return an int[] value, or null
+     */
+    @Nullable
+    public int[] getIntArray(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (int[]) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "int[]", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a long[] value, or null
+     */
+    @Nullable
+    public long[] getLongArray(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (long[]) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "long[]", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a float[] value, or null
+     */
+    @Nullable
+    public float[] getFloatArray(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (float[]) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "float[]", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a double[] value, or null
+     */
+    @Nullable
+    public double[] getDoubleArray(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (double[]) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "double[]", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a String[] value, or null
+     */
+    @Nullable
+    public String[] getStringArray(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (String[]) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "String[]", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a CharSequence[] value, or null
+     */
+    @Nullable
+    public CharSequence[] getCharSequenceArray(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (CharSequence[]) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "CharSequence[]", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the size associated with the given key, or 0L (a 0x0 size) if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key a String, or null
+     * @return the size packed into a long, see {@link StateBundleSize#getWidth(long)} and {@link StateBundleSize#getHeight(long)}
+     */
+    public long getSize(@Nullable String key) {
+        return getSize(key, 0L);
+    }
+
+    /**
+     * Returns the size associated with the given key, or defaultValue if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key          a String, or null
+     * @param defaultValue Value to return if key does not exist
+     * @return the size packed into a long, see {@link StateBundleSize#getWidth(long)} and {@link StateBundleSize#getHeight(long)}
+     */
+    public long getSize(@Nullable String key, long defaultValue) {
+        return getPackedSize(key, StateBundle.type_Size, "Size", defaultValue);
+    }
+
+    /**
+     * Returns the float size associated with the given key, or 0L (a 0.0x0.0 size) if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key a String, or null
+     * @return the size packed into a long, see {@link StateBundleSize#getWidthF(long)} and {@link StateBundleSize#getHeightF(long)}
+     */
+    public long getSizeF(@Nullable String key) {
+        return getSizeF(key, 0L);
+    }
+
+    /**
+     * Returns the float size associated with the given key, or defaultValue if
+     * no mapping of the desired type exists for the given key.
+     *
+     * @param key          a String, or null
+     * @param defaultValue Value to return if key does not exist
+     * @return the size packed into a long, see {@link StateBundleSize#getWidthF(long)} and {@link StateBundleSize#getHeightF(long)}
+     */
+    public long getSizeF(@Nullable String key, long defaultValue) {
+        return getPackedSize(key, StateBundle.type_SizeF, "SizeF", defaultValue);
+    }
+
+    // Sizes are stored as Longs, so the type is checked instead of the class of the value
+    private long getPackedSize(String key, int type, String typeName, long defaultValue) {
+        StateBundle.Entry entry = getEntry(key);
+        if(entry == null || entry.getValue() == null) {
+            return defaultValue;
+        }
+        if(entry.getType() != type) {
+            typeWarning(key, entry.getValue(), typeName, defaultValue, null);
+            return defaultValue;
+        }
+        return (Long) entry.getValue();
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a Bundle value, or null
+     */
+    @Nullable
+    public StateBundle getBundle(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (StateBundle) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "Bundle", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a Parcelable value, or null
+     */
+    @Nullable
+    public <T extends Parcelable> T getParcelable(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (T) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "Parcelable", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a Parcelable[] value, or null
+     */
+    @Nullable
+    public Parcelable[] getParcelableArray(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (Parcelable[]) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "Parcelable[]", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return an ArrayList of T value, or null
+     */
+    @Nullable
+    public <T extends Parcelable> ArrayList<T> getParcelableArrayList(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (ArrayList<T>) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "ArrayList", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key a String, or null
+     * @return a SparseArray of T values, or null
+     */
+    @Nullable
+    public <T extends Parcelable> SparseArray<T> getSparseParcelableArray(@Nullable String key) {
+        Object o = get(key);
+        if(o == null) {
+            return null;
+        }
+        try {
+            return (SparseArray<T>) o;
+        } catch(ClassCastException e) {
+            typeWarning(key, o, "SparseArray", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value associated with the given key, or null if
+     * no mapping of the desired custom type exists for the given key or a null
+     * value is explicitly associated with the key.
+     *
+     * @param key  a String, or null
+     * @param type the custom type
+     * @return a value of the custom type, or null
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public <T> T getCustom(@Nullable String key, int type) {
+        StateBundle.Entry entry = getEntry(key);
+        if(entry == null || entry.getValue() == null) {
+            return null;
+        }
+        if(entry.getType() != type) {
+            typeWarning(key, entry.getValue(), "custom type [" + type + "]", null);
+            return null;
+        }
+        return (T) entry.getValue();
+    }
+
+    // Log a message if the value was non-null but not of the expected type
+    protected void typeWarning(String key, Object value, String className, Object defaultValue, ClassCastException e) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Key ");
+        sb.append(key);
+        sb.append(" expected ");
+        sb.append(className);
+        sb.append(" but value was a ");
+        sb.append(value.getClass().getName());
+        sb.append(".  The default value ");
+        sb.append(defaultValue);
+        sb.append(" was returned.");
+        System.out.println(sb.toString());
+    }
+
+    void typeWarning(String key, Object value, String className, ClassCastException e) {
+        typeWarning(key, value, className, "<null>", e);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Whole-file reads and crash-safe whole-file writes.
+ */
+final class AtomicFiles {
+    private AtomicFiles() {
+    }
+
+    // The bytes are written to a temporary file which is synced and then renamed over the target,
+    // so the target either has its old or its new content.
+    static void write(File file, byte[] bytes)
+            throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+        try {
+            outputStream.write(bytes);
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        if(!temporaryFile.renameTo(file)) {
+            // renameTo does not replace an existing file on every platform
+            if(!file.delete() || !temporaryFile.renameTo(file)) {
+                throw new IOException("Could not replace [" + file + "]");
+            }
+        }
+    }
+
+    static byte[] read(File file)
+            throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            long length = file.length();
+            if(length > Integer.MAX_VALUE) {
+                throw new IOException("[" + file + "] is too large");
+            }
+            byte[] bytes = new byte[(int) length];
+            int offset = 0;
+            while(offset < bytes.length) {
+                int read = inputStream.read(bytes, offset, bytes.length - offset);
+                if(read == -1) {
+                    throw new IOException("Unexpected end of [" + file + "]");
+                }
+                offset += read;
+            }
+            return bytes;
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The codecs of the built-in types of {@link StateBundle}.
+ *
+ * Values of most built-in types are written directly by the Parcel and by {@link StateBundleCodec}, which applies its
+ * format options to them. Their codecs encode a single value in the format of a StateBundleCodec without options.
+ * Enums, UUIDs, Dates and BigDecimals are written into a Parcel by their codecs, and directly by {@link StateBundleCodec}.
+ */
+final class BuiltInTypeCodecs {
+    private BuiltInTypeCodecs() {
+    }
+
+    // The input is a stream over the encoded bytes, so a length larger than the available bytes is invalid
+    static byte[] readBytes(DataInput input)
+            throws IOException {
+        int length = input.readInt();
+        if(length < 0 || (input instanceof InputStream && length > ((InputStream) input).available())) {
+            throw new IllegalArgumentException("Malformed data: invalid length [" + length + "]");
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    // a value is written as the length and the bytes of its StateBundleEncoder encoding
+    private static class BuiltInTypeCodec<T>
+            extends StateBundleTypeCodec<T> {
+        private final int type;
+
+        BuiltInTypeCodec(Class<T> valueClass, int type) {
+            super(valueClass);
+            this.type = type;
+        }
+
+        @Override
+        public void encode(@Nonnull DataOutput output, @Nonnull T value)
+                throws IOException {
+            StateBundleEncoder encoder = new StateBundleEncoder();
+            encoder.writeValue(type, value);
+            byte[] encoded = encoder.toByteArray();
+            output.writeInt(encoded.length);
+            output.write(encoded);
+        }
+
+        @Nonnull
+        @Override
+        @SuppressWarnings("unchecked")
+        public T decode(@Nonnull DataInput input)
+                throws IOException {
+            byte[] encoded = readBytes(input);
+            StateBundleDecoder decoder = new StateBundleDecoder(ByteBuffer.wrap(encoded), BuiltInTypeCodecs.class.getClassLoader());
+            try {
+                return (T) decoder.readValue(type);
+            } catch(BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("Malformed data", e);
+            }
+        }
+    }
+
+    private static final StateBundleTypeCodec<Long> SIZE = new BuiltInTypeCodec<Long>(Long.class, StateBundle.type_Size) {
+        @Nonnull
+        @Override
+        public String toString(@Nonnull Long value) {
+            return StateBundleSize.toString(value);
+        }
+    };
+
+    private static final StateBundleTypeCodec<Long> SIZE_F = new BuiltInTypeCodec<Long>(Long.class, StateBundle.type_SizeF) {
+        @Nonnull
+        @Override
+        public String toString(@Nonnull Long value) {
+            return StateBundleSize.toStringF(value);
+        }
+    };
+
+    // an enum is written as the name of its class and the name of the constant
+    @SuppressWarnings("unchecked")
+    private static final StateBundleTypeCodec<Enum<?>> ENUM = new StateBundleTypeCodec<Enum<?>>((Class<Enum<?>>) (Class<?>) Enum.class) {
+        @Override
+        public void encode(@Nonnull DataOutput output, @Nonnull Enum<?> value)
+                throws IOException {
+            output.writeUTF(value.getDeclaringClass().getName());
+            output.writeUTF(value.name());
+        }
+
+        @Nonnull
+        @Override
+        public Enum<?> decode(@Nonnull DataInput input)
+                throws IOException {
+            Class<?> enumClass = StateBundleDecoder.findEnumClass(input.readUTF(), null);
+            return StateBundleDecoder.enumConstant(enumClass, input.readUTF());
+        }
+    };
+
+    private static final StateBundleTypeCodec<UUID> UUID_CODEC = new StateBundleTypeCodec<UUID>(UUID.class) {
+        @Override
+        public void encode(@Nonnull DataOutput output, @Nonnull UUID value)
+                throws IOException {
+            output.writeLong(value.getMostSignificantBits());
+            output.writeLong(value.getLeastSignificantBits());
+        }
+
+        @Nonnull
+        @Override
+        public UUID decode(@Nonnull DataInput input)
+                throws IOException {
+            return new UUID(input.readLong(), input.readLong());
+        }
+    };
+
+    private static final StateBundleTypeCodec<Date> DATE = new StateBundleTypeCodec<Date>(Date.class) {
+        @Override
+        public void encode(@Nonnull DataOutput output, @Nonnull Date value)
+                throws IOException {
+            output.writeLong(value.getTime());
+        }
+
+        @Nonnull
+        @Override
+        public Date decode(@Nonnull DataInput input)
+                throws IOException {
+            return new Date(input.readLong());
+        }
+    };
+
+    // a BigDecimal is written as its scale and the two's-complement bytes of its unscaled value
+    private static final StateBundleTypeCodec<BigDecimal> BIG_DECIMAL = new StateBundleTypeCodec<BigDecimal>(BigDecimal.class) {
+        @Override
+        public void encode(@Nonnull DataOutput output, @Nonnull BigDecimal value)
+                throws IOException {
+            byte[] unscaled = value.unscaledValue().toByteArray();
+            output.writeInt(value.scale());
+            output.writeInt(unscaled.length);
+            output.write(unscaled);
+        }
+
+        @Nonnull
+        @Override
+        public BigDecimal decode(@Nonnull DataInput input)
+                throws IOException {
+            int scale = input.readInt();
+            byte[] unscaled = readBytes(input);
+            return new BigDecimal(new BigInteger(unscaled), scale);
+        }
+    };
+
+    private static final StateBundleTypeCodec<boolean[]> BOOLEAN_ARRAY = new BuiltInTypeCodec<boolean[]>(boolean[].class, StateBundle.type_BooleanArray) {
+        @Override
+        public int hashCode(@Nonnull boolean[] value) {
+            return Arrays.hashCode(value);
+        }
+
+        @Override
+        public boolean equals(@Nonnull boolean[] value, @Nonnull boolean[] other) {
+            return Arrays.equals(value, other);
+        }
+
+        @Nonnull
+        @Override
+        public String toString(@Nonnull boolean[] value) {
+            return Arrays.toString(value);
+        }
+    };
+
+    private static final StateBundleTypeCodec<byte[]> BYTE_ARRAY = new BuiltInTypeCodec<byte[]>(byte[].class, StateBundle.type_ByteArray) {
+        @Override
+        public int hashCode(@Nonnull byte[] value) {
+            return Arrays.hashCode(value);
+        }
+
+        @Override
+        public boolean equals(@Nonnull byte[] value, @Nonnull byte[] other) {
+            return Arrays.equals(value, other);
+        }
+
+        @Nonnull
+        @Override
+        public String toString(@Nonnull byte[] value) {
+            return Arrays.toString(value);
+        }
+    };
+
+    private static final StateBundleTypeCodec<short[]> SHORT_ARRAY = new BuiltInTypeCodec<short[]>(short[].class, StateBundle.type_ShortArray) {
+        @Override
+        public int hashCode(@Nonnull short[] value) {
+            return Arrays.hashCode(value);
+        }
+
+        @Override
+        public boolean equals(@Nonnull short[] value, @Nonnull short[] other) {
+            return Arrays.equals(value, other);
+        }
+
+        @Nonnull
+        @Override
+        public String toString(@Nonnull short[] value) {
+            return Arrays.toString(value);
+        }
+    };
+
+    private static final StateBundleTypeCodec<char[]> CHAR_ARRAY = new BuiltInTypeCodec<char[]>(char[].class, StateBundle.type_CharArray) {
+        @Override
+        public int hashCode(@Nonnull char[] value) {
+            return Arrays.hashCode(value);
+        }
+
+        @Override
+        public boolean equals(@Nonnull char[] value, @Nonnull char[] other) {
+            return Arrays.equals(value, other);
+        }
+
+        @Nonnull
+        @Override
+        public String toString(@Nonnull char[] value) {
+            return Arrays.toString(value);
+        }
+    };
+
+    private static final StateBundleTypeCodec<int[]> INT_ARRAY = new BuiltInTypeCodec<int[]>(int[].class, StateBundle.type_IntArray) {
+        @Override
+        public int hashCode(@Nonnull int[] value) {
+            return Arrays.hashCode(value);
+        }
+
+        @Override
+        public boolean equals(@Nonnull int[] value, @Nonnull int[] other) {
+            return Arrays.equals(value, other);
+        }
+
+        @Nonnull
+        @Override
+        public String toString(@Nonnull int[] value) {
+            return Arrays.toString(value);
+        }
+    };
+
+    private static final StateBundleTypeCodec<long[]> LONG_ARRAY = new BuiltInTypeCodec<long[]>(long[].class, StateBundle.type_LongArray) {
+        @Override
+        public int hashCode(@Nonnull long[] value) {
+            return Arrays.hashCode(value);
+        }
+
+        @Override
+        public boolean equals(@Nonnull long[] value, @Nonnull long[] other) {
+            return Arrays.equals(value, other);
+        }
+
+        @Nonnull
+        @Override
+        public String toString(@Nonnull long[] value) {
+            return Arrays.toString(value);
+        }
+    };
+
+    private static final StateBundleTypeCodec<float[]> FLOAT_ARRAY = new BuiltInTypeCodec<float[]>(float[].class, StateBundle.type_FloatArray) {
+        @Override
+        public int hashCode(@Nonnull float[] value) {
+            return Arrays.hashCode(value);
+        }
+
+        @Override
+        public boolean equals(@Nonnull float[] value, @Nonnull float[] other) {
+            return Arrays.equals(value, other);
+        }
+
+        @Nonnull
+        @Override
+        public String toString(@Nonnull float[] value) {
+            return Arrays.toString(value);
+        }
+    };
+
+    private static final StateBundleTypeCodec<double[]> DOUBLE_ARRAY = new BuiltInTypeCodec<double[]>(double[].class, StateBundle.type_DoubleArray) {
+        @Override
+        public int hashCode(@Nonnull double[] value) {
+            return Arrays.hashCode(value);
+        }
+
+        @Override
+        public boolean equals(@Nonnull double[] value, @Nonnull double[] other) {
+            return Arrays.equals(value, other);
+        }
+
+        @Nonnull
+        @Override
+        public String toString(@Nonnull double[] value) {
+            return Arrays.toString(value);
+        }
+    };
+
+    // String[], CharSequence[] and Parcelable[]
+    private static StateBundleTypeCodec<Object[]> objectArray(int type) {
+        return new BuiltInTypeCodec<Object[]>(Object[].class, type) {
+            @Override
+            public int hashCode(@Nonnull Object[] value) {
+                return Arrays.hashCode(value);
+            }
+
+            @Override
+            public boolean equals(@Nonnull Object[] value, @Nonnull Object[] other) {
+                return Arrays.equals(value, other);
+            }
+
+            @Nonnull
+            @Override
+            public String toString(@Nonnull Object[] value) {
+                return Arrays.toString(value);
+            }
+        };
+    }
+
+    /**
+     * Creates the table of codecs indexed by type, with the codecs of the built-in types.
+     *
+     * @param size the size of the table
+     * @return the table
+     */
+    static StateBundleTypeCodec<?>[] createTable(int size) {
+        StateBundleTypeCodec<?>[] table = new StateBundleTypeCodec<?>[size];
+        int[] objectTypes = {
+                StateBundle.type_boolean,
+                StateBundle.type_byte,
+                StateBundle.type_char,
+                StateBundle.type_short,
+                StateBundle.type_int,
+                StateBundle.type_long,
+                StateBundle.type_float,
+                StateBundle.type_double,
+                StateBundle.type_String,
+                StateBundle.type_CharSequence,
+                StateBundle.type_Serializable,
+                StateBundle.type_IntegerArrayList,
+                StateBundle.type_StringArrayList,
+                StateBundle.type_CharSequenceArrayList,
+                StateBundle.type_StateBundle,
+                StateBundle.type_Parcelable,
+                StateBundle.type_ParcelableArrayList,
+                StateBundle.type_SparseParcelableArray
+        };
+        for(int type : objectTypes) {
+            table[type] = new BuiltInTypeCodec<>(Object.class, type);
+        }
+        table[StateBundle.type_Enum] = ENUM;
+        table[StateBundle.type_UUID] = UUID_CODEC;
+        table[StateBundle.type_Date] = DATE;
+        table[StateBundle.type_BigDecimal] = BIG_DECIMAL;
+        table[StateBundle.type_Size] = SIZE;
+        table[StateBundle.type_SizeF] = SIZE_F;
+        table[StateBundle.type_BooleanArray] = BOOLEAN_ARRAY;
+        table[StateBundle.type_ByteArray] = BYTE_ARRAY;
+        table[StateBundle.type_ShortArray] = SHORT_ARRAY;
+        table[StateBundle.type_CharArray] = CHAR_ARRAY;
+        table[StateBundle.type_IntArray] = INT_ARRAY;
+        table[StateBundle.type_LongArray] = LONG_ARRAY;
+        table[StateBundle.type_FloatArray] = FLOAT_ARRAY;
+        table[StateBundle.type_DoubleArray] = DOUBLE_ARRAY;
+        table[StateBundle.type_StringArray] = objectArray(StateBundle.type_StringArray);
+        table[StateBundle.type_CharSequenceArray] = objectArray(StateBundle.type_CharSequenceArray);
+        table[StateBundle.type_ParcelableArray] = objectArray(StateBundle.type_ParcelableArray);
+        return table;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A thread-safe variant of {@link StateBundle} with the same typed API, see {@link AbstractStateBundle}.
+ *
+ * Reads never block. Writes from multiple threads proceed concurrently, and only wait while a {@link #snapshot()} is being taken.
+ *
+ * Unlike {@link StateBundle}, the iteration order of the keys is not specified.
+ */
+public class ConcurrentStateBundle
+    extends AbstractStateBundle<ConcurrentStateBundle> {
+    private static final Object NULL_KEY = new Object();
+
+    // Writers share the read lock so that they do not exclude each other, snapshot() takes the write lock.
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+    private final ConcurrentHashMap<Object, StateBundle.Entry> map = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a new, empty ConcurrentStateBundle.
+     */
+    public ConcurrentStateBundle() {
+    }
+
+    /**
+     * Constructs a ConcurrentStateBundle containing a copy of the mappings from the given
+     * StateBundle.
+     *
+     * @param bundle a StateBundle to be copied, must not be null.
+     */
+    public ConcurrentStateBundle(@Nonnull StateBundle bundle) {
+        putAll(bundle);
+    }
+
+    private static Object maskNull(String key) {
+        return key == null ? NULL_KEY : key;
+    }
+
+    private static String unmaskNull(Object key) {
+        return key == NULL_KEY ? null : (String) key;
+    }
+
+    @Override
+    ConcurrentStateBundle putValue(String key, int type, Object value) {
+        Lock lock = snapshotLock.readLock();
+        lock.lock();
+        try {
+            map.put(maskNull(key), new StateBundle.Entry(key, type, value));
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Returns the number of mappings contained in this ConcurrentStateBundle.
+     *
+     * @return the number of mappings as an int.
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Returns true if the mapping of this ConcurrentStateBundle is empty, false otherwise.
+     */
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    /**
+     * Removes all elements from the mapping of this ConcurrentStateBundle.
+     *
+     * @return this ConcurrentStateBundle
+     */
+    @Nonnull
+    public ConcurrentStateBundle clear() {
+        Lock lock = snapshotLock.readLock();
+        lock.lock();
+        try {
+            map.clear();
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Returns true if the given key is contained in the mapping
+     * of this ConcurrentStateBundle.
+     *
+     * @param key a String key
+     * @return true if the key is part of the mapping, false otherwise
+     */
+    public boolean containsKey(String key) {
+        return map.containsKey(maskNull(key));
+    }
+
+    @Nullable
+    @Override
+    public Object get(String key) {
+        StateBundle.Entry entry = map.get(maskNull(key));
+        return entry == null ? null : entry.getValue();
+    }
+
+    @Nullable
+    @Override
+    StateBundle.Entry getEntry(@Nullable String key) {
+        return map.get(maskNull(key));
+    }
+
+    /**
+     * Removes any entry with the given key from the mapping of this ConcurrentStateBundle.
+     *
+     * @param key a String key
+     * @return this ConcurrentStateBundle
+     */
+    @Nonnull
+    public ConcurrentStateBundle remove(String key) {
+        Lock lock = snapshotLock.readLock();
+        lock.lock();
+        try {
+            map.remove(maskNull(key));
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Inserts all mappings from the given StateBundle into this ConcurrentStateBundle.
+     *
+     * @param bundle a {@link StateBundle}
+     * @return this ConcurrentStateBundle
+     */
+    @Nonnull
+    public ConcurrentStateBundle putAll(@Nonnull StateBundle bundle) {
+        if(bundle == null) {
+            throw new IllegalArgumentException("The provided bundle should not be null!");
+        }
+        Lock lock = snapshotLock.readLock();
+        lock.lock();
+        try {
+            for(StateBundle.Entry entry : bundle.entries()) {
+                map.put(maskNull(entry.getKey()), entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Returns a Set containing the Strings used as keys in this ConcurrentStateBundle.
+     *
+     * The Set is a copy, it does not reflect later changes.
+     *
+     * @return a Set of String keys
+     */
+    @Nonnull
+    public Set<String> keySet() {
+        Set<String> keys = new HashSet<>();
+        for(Object key : map.keySet()) {
+            keys.add(unmaskNull(key));
+        }
+        return keys;
+    }
+
+    /**
+     * Returns a {@link StateBundle} with the mappings of this ConcurrentStateBundle at a single point in time.
+     *
+     * Writers wait while the mappings are copied, but readers are not blocked.
+     * Nested StateBundles are deep copied, and replaced by the immutable {@link StateBundle#snapshot()} of the copy, so the nested
+     * bundles themselves are not modified. They are read while they are copied, so they must not be modified by other threads meanwhile.
+     * Other values are not copied.
+     *
+     * @return a new StateBundle
+     */
+    @Nonnull
+    public StateBundle snapshot() {
+        Lock lock = snapshotLock.writeLock();
+        lock.lock();
+        try {
+            StateBundle bundle = new StateBundle(map.size());
+            for(StateBundle.Entry entry : map.values()) {
+                Object value = entry.getValue();
+                bundle.map.put(entry.getKey(), value instanceof StateBundle ? ((StateBundle) value).deepCopy().snapshot() : value);
+                bundle.typeMap.put(entry.getKey(), entry.getType());
+            }
+            return bundle;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
@@ -18,17 +18,26 @@
 
 package com.zhuinden.statebundle;
 
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.Size;
+import android.util.SizeF;
 import android.util.SparseArray;
 
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -37,6 +46,7 @@ import javax.annotation.Nullable;
  * Parcelable representation of Bundle, independent from the Android framework.
  */
 public class StateBundle
+    extends AbstractStateBundle<StateBundle>
     implements Parcelable {
     static class TypeElement
         implements Parcelable {
@@ -80,47 +90,142 @@ public class StateBundle
         }
     }
 
-    static final int type_boolean = 0;
-    static final int type_byte = 1;
-    static final int type_char = 2;
-    static final int type_short = 3;
-    static final int type_int = 4;
-    static final int type_long = 5;
-    static final int type_float = 6;
-    static final int type_double = 7;
-    static final int type_String = 8;
-    static final int type_CharSequence = 9;
-    static final int type_Serializable = 10;
-    static final int type_IntegerArrayList = 11;
-    static final int type_StringArrayList = 12;
-    static final int type_CharSequenceArrayList = 13;
-    static final int type_BooleanArray = 14;
-    static final int type_ByteArray = 15;
-    static final int type_ShortArray = 16;
-    static final int type_CharArray = 17;
-    static final int type_IntArray = 18;
-    static final int type_LongArray = 19;
-    static final int type_FloatArray = 20;
-    static final int type_DoubleArray = 21;
-
-    static final int type_StateBundle = 26;
-    static final int type_Parcelable = 27;
-    static final int type_ParcelableArrayList = 29;
-    static final int type_SparseParcelableArray = 30;
-
-    static final int type_StringArray = 22;
-    static final int type_CharSequenceArray = 23;
-    static final int type_ParcelableArray = 28;
-//    static final int type_Size = 24;
-//    static final int type_SizeF = 25;
-
-    Map<String, Object> map = new LinkedHashMap<>();
-    Map<String, Integer> typeMap = new LinkedHashMap<>();
+    // The type of an entry, as returned by Entry.getType()
+    public static final int type_boolean = 0;
+    public static final int type_byte = 1;
+    public static final int type_char = 2;
+    public static final int type_short = 3;
+    public static final int type_int = 4;
+    public static final int type_long = 5;
+    public static final int type_float = 6;
+    public static final int type_double = 7;
+    public static final int type_String = 8;
+    public static final int type_CharSequence = 9;
+    public static final int type_Serializable = 10;
+    public static final int type_IntegerArrayList = 11;
+    public static final int type_StringArrayList = 12;
+    public static final int type_CharSequenceArrayList = 13;
+    public static final int type_BooleanArray = 14;
+    public static final int type_ByteArray = 15;
+    public static final int type_ShortArray = 16;
+    public static final int type_CharArray = 17;
+    public static final int type_IntArray = 18;
+    public static final int type_LongArray = 19;
+    public static final int type_FloatArray = 20;
+    public static final int type_DoubleArray = 21;
+
+    public static final int type_StateBundle = 26;
+    public static final int type_Parcelable = 27;
+    public static final int type_ParcelableArrayList = 29;
+    public static final int type_SparseParcelableArray = 30;
+
+    public static final int type_StringArray = 22;
+    public static final int type_CharSequenceArray = 23;
+    public static final int type_ParcelableArray = 28;
+    public static final int type_Size = 24;
+    public static final int type_SizeF = 25;
+    public static final int type_Enum = 31;
+    public static final int type_UUID = 32;
+    public static final int type_Date = 33;
+    public static final int type_BigDecimal = 34;
+
+    /**
+     * The first type id that can be used for a custom type, see {@link #registerTypeCodec(int, StateBundleTypeCodec)}.
+     */
+    public static final int FIRST_CUSTOM_TYPE = 64;
+
+    /**
+     * The last type id that can be used for a custom type, see {@link #registerTypeCodec(int, StateBundleTypeCodec)}.
+     */
+    public static final int LAST_CUSTOM_TYPE = 127;
+
+    // Indexed by type. The table is replaced when a codec is registered, so it is read without locking.
+    private static volatile StateBundleTypeCodec<?>[] typeCodecs = BuiltInTypeCodecs.createTable(LAST_CUSTOM_TYPE + 1);
+
+    /**
+     * Registers the codec of a custom type, whose values can then be stored with {@link #putCustom(String, int, Object)}.
+     *
+     * The codec must be registered before a StateBundle with values of its type is read from a Parcel or decoded,
+     * for example when the Application is created.
+     *
+     * @param type  the type id, between {@link #FIRST_CUSTOM_TYPE} and {@link #LAST_CUSTOM_TYPE}.
+     * @param codec the codec, must not be null.
+     * @throws IllegalStateException if another codec is already registered for the type
+     */
+    public static void registerTypeCodec(int type, @Nonnull StateBundleTypeCodec<?> codec) {
+        if(type < FIRST_CUSTOM_TYPE || type > LAST_CUSTOM_TYPE) {
+            throw new IllegalArgumentException("The provided type [" + type + "] is not a custom type!");
+        }
+        if(codec == null) {
+            throw new IllegalArgumentException("The provided codec should not be null!");
+        }
+        synchronized(StateBundle.class) {
+            StateBundleTypeCodec<?> registered = typeCodecs[type];
+            if(registered == codec) {
+                return;
+            }
+            if(registered != null) {
+                throw new IllegalStateException("A codec is already registered for type [" + type + "]");
+            }
+            StateBundleTypeCodec<?>[] table = typeCodecs.clone();
+            table[type] = codec;
+            typeCodecs = table;
+        }
+    }
+
+    // Values of these types are written into a Parcel as the bytes produced by their codec
+    static boolean isWrittenByCodec(int type) {
+        return type >= type_Enum;
+    }
+
+    // Returns the codec of the type, or null if the type is unknown
+    @SuppressWarnings("unchecked")
+    static StateBundleTypeCodec<Object> typeCodec(int type) {
+        StateBundleTypeCodec<?>[] table = typeCodecs;
+        return type < 0 || type >= table.length ? null : (StateBundleTypeCodec<Object>) table[type];
+    }
+
+    // Returns the codec of a custom type, or throws if the type is not a registered custom type
+    static StateBundleTypeCodec<Object> customTypeCodec(int type) {
+        StateBundleTypeCodec<Object> codec = type >= FIRST_CUSTOM_TYPE ? typeCodec(type) : null;
+        if(codec == null) {
+            throw new IllegalArgumentException("No codec is registered for type [" + type + "]!");
+        }
+        return codec;
+    }
+
+    Map<String, Object> map;
+    Map<String, Integer> typeMap;
+
+    // A snapshot can't be modified; its maps are shared with the bundle it was taken from until that bundle is modified
+    private boolean immutable;
+    private boolean shared;
+
+    // Records the modifications if set, see StateBundleJournal
+    StateBundleJournal journal;
 
     /**
      * Constructs a new, empty Bundle.
      */
     public StateBundle() {
+        map = new LinkedHashMap<>();
+        typeMap = new LinkedHashMap<>();
+    }
+
+    /**
+     * Constructs a new, empty Bundle that can hold the given number of mappings without resizing.
+     *
+     * @param expectedSize the expected number of mappings
+     */
+    StateBundle(int expectedSize) {
+        int capacity = expectedSize < 3 ? expectedSize + 1 : (int) (expectedSize / 0.75f + 1.0f);
+        map = new LinkedHashMap<>(capacity);
+        typeMap = new LinkedHashMap<>(capacity);
+    }
+
+    private StateBundle(Map<String, Object> map, Map<String, Integer> typeMap) {
+        this.map = map;
+        this.typeMap = typeMap;
     }
 
     /**
@@ -130,6 +235,7 @@ public class StateBundle
      * @param bundle a Bundle to be copied, must not be null.
      */
     public StateBundle(@Nonnull StateBundle bundle) {
+        this();
         putAll(bundle);
     }
 
@@ -140,89 +246,91 @@ public class StateBundle
      * @param in the Parcel
      */
     public StateBundle(Parcel in) {
+        this();
+        readFrom(in);
+    }
+
+    /**
+     * Replaces the mappings of this StateBundle with the ones read from an Android Parcel.
+     *
+     * This allows reusing an existing instance, see {@link #obtain()}.
+     *
+     * @param in the Parcel
+     * @return this StateBundle
+     */
+    @Nonnull
+    public StateBundle readFrom(Parcel in) {
+        clear();
         int size = in.readInt();
         for(int i = 0; i < size; i++) {
             TypeElement typeElement = in.readParcelable(TypeElement.class.getClassLoader());
             Object object = in.readValue(getClass().getClassLoader());
-            switch(typeElement.type) {
-                case type_boolean:
-                    putBoolean(typeElement.key, (Boolean) object);
-                    break;
-                case type_byte:
-                    putByte(typeElement.key, (Byte) object);
-                    break;
-                case type_char:
-                    putChar(typeElement.key, (Character) object);
-                    break;
-                case type_short:
-                    putShort(typeElement.key, (Short) object);
-                    break;
-                case type_int:
-                    putInt(typeElement.key, (Integer) object);
-                    break;
-                case type_long:
-                    putLong(typeElement.key, (Long) object);
-                    break;
-                case type_float:
-                    putFloat(typeElement.key, (Float) object);
-                    break;
-                case type_double:
-                    putDouble(typeElement.key, (Double) object);
-                    break;
-                case type_String:
-                    putString(typeElement.key, (String) object);
-                    break;
-                case type_CharSequence:
-                    putCharSequence(typeElement.key, (CharSequence) object);
-                    break;
-                case type_Serializable:
-                    putSerializable(typeElement.key, (Serializable) object);
-                    break;
-                case type_IntegerArrayList:
-                    putIntegerArrayList(typeElement.key, (ArrayList<Integer>) object);
-                    break;
-                case type_StringArrayList:
-                    putStringArrayList(typeElement.key, (ArrayList<String>) object);
-                    break;
-                case type_CharSequenceArrayList:
-                    putCharSequenceArrayList(typeElement.key, (ArrayList<CharSequence>) object);
-                    break;
-                case type_BooleanArray:
-                    putBooleanArray(typeElement.key, (boolean[]) object);
-                    break;
-                case type_ByteArray:
-                    putByteArray(typeElement.key, (byte[]) object);
-                    break;
-                case type_ShortArray:
-                    putShortArray(typeElement.key, (short[]) object);
-                    break;
-                case type_CharArray:
-                    putCharArray(typeElement.key, (char[]) object);
-                    break;
-                case type_IntArray:
-                    putIntArray(typeElement.key, (int[]) object);
-                    break;
-                case type_LongArray:
-                    putLongArray(typeElement.key, (long[]) object);
-                    break;
-                case type_FloatArray:
-                    putFloatArray(typeElement.key, (float[]) object);
-                    break;
-                case type_DoubleArray:
-                    putDoubleArray(typeElement.key, (double[]) object);
-                    break;
-                case type_StateBundle:
-                    putBundle(typeElement.key, (StateBundle) object);
-                    break;
-                case type_Parcelable:
-                    putParcelable(typeElement.key, (Parcelable) object);
-                    break;
-                case type_ParcelableArrayList:
-                    putParcelableArrayList(typeElement.key, (ArrayList<Parcelable>) object);
-                    break;
-                case type_SparseParcelableArray:
-                    putSparseParcelableArray(typeElement.key, (SparseArray<Parcelable>) object);
-                    break;
+            int type = typeElement.type;
+            if(typeCodec(type) == null) {
+                throw new IllegalArgumentException("Unknown type [" + type + "] for [" + typeElement.key + "]");
+            }
+            if(isWrittenByCodec(type) && object != null) {
+                object = typeCodec(type).fromByteArray((byte[]) object);
+            } else if(object instanceof StateBundleSerializables.EncodedValue) {
+                object = ((StateBundleSerializables.EncodedValue) object).decode();
+            }
+            putValue(typeElement.key, type, object);
+        }
+        return this;
+    }
+
+    private static final int POOL_SIZE = 6;
+    private static final StateBundle[] pool = new StateBundle[POOL_SIZE];
+
+    /**
+     * Returns an empty StateBundle from the pool of recycled instances, or a new one if the pool is empty.
+     *
+     * @return an empty StateBundle
+     */
+    @Nonnull
+    public static StateBundle obtain() {
+        synchronized(pool) {
+            for(int i = POOL_SIZE - 1; i >= 0; i--) {
+                StateBundle bundle = pool[i];
+                if(bundle != null) {
+                    pool[i] = null;
+                    return bundle;
+                }
+            }
+        }
+        return new StateBundle();
+    }
+
+    /**
+     * Clears this StateBundle and puts it back into the pool used by {@link #obtain()}.
+     *
+     * The internal tables keep their size, so a reused instance does not need to grow again.
+     * This StateBundle must not be used after it was recycled.
+     */
+    public void recycle() {
+        if(immutable) {
+            throw new IllegalStateException("An immutable snapshot cannot be recycled.");
+        }
+        journal = null;
+        if(shared) {
+            map = new LinkedHashMap<>();
+            typeMap = new LinkedHashMap<>();
+            shared = false;
+        } else {
+            map.clear();
+            typeMap.clear();
+        }
+        synchronized(pool) {
+            for(int i = 0; i < POOL_SIZE; i++) {
+                if(pool[i] == this) {
+                    return;
+                }
+            }
+            for(int i = 0; i < POOL_SIZE; i++) {
+                if(pool[i] == null) {
+                    pool[i] = this;
+                    return;
+                }
             }
         }
     }
@@ -262,6 +370,11 @@ public class StateBundle
      */
     @Nonnull
     public StateBundle clear() {
+        checkMutable();
+        if(journal != null) {
+            journal.recordClear();
+        }
+        beforeMutation();
         map.clear();
         typeMap.clear();
         return this;
@@ -278,17 +391,19 @@ public class StateBundle
         return map.containsKey(key);
     }
 
-    /**
-     * Returns the entry with the given key as an object.
-     *
-     * @param key a String key
-     * @return an Object, or null
-     */
     @Nullable
+    @Override
     public Object get(String key) {
         return map.get(key);
     }
 
+    @Nullable
+    @Override
+    Entry getEntry(@Nullable String key) {
+        Integer type = typeMap.get(key);
+        return type == null ? null : new Entry(key, type, map.get(key));
+    }
+
     /**
      * Removes any entry with the given key from the mapping of this StateBundle.
      *
@@ -297,6 +412,11 @@ public class StateBundle
      */
     @Nonnull
     public StateBundle remove(String key) {
+        checkMutable();
+        if(journal != null) {
+            journal.recordRemove(key);
+        }
+        beforeMutation();
         map.remove(key);
         typeMap.remove(key);
         return this;
@@ -313,6 +433,13 @@ public class StateBundle
         if(bundle == null) {
             throw new IllegalArgumentException("The provided bundle should not be null!");
         }
+        checkMutable();
+        if(journal != null) {
+            for(Entry entry : bundle.entries()) {
+                journal.recordPut(entry.getKey(), entry.getType(), entry.getValue());
+            }
+        }
+        beforeMutation();
         if(bundle.map != null) {
             map.putAll(bundle.map);
             typeMap.putAll(bundle.typeMap);
@@ -320,1407 +447,1067 @@ public class StateBundle
         return this;
     }
 
+    /**
+     * Returns a copy of this StateBundle that does not share mutable values with it.
+     *
+     * Arrays, ArrayLists and SparseArrays are copied, and nested StateBundles are deep copied as well.
+     * Immutable values (Strings, primitives, enums, UUIDs and BigDecimals) are shared, and so are Parcelables and Serializables,
+     * as they cannot be copied in general. Values of custom types are copied by encoding and decoding them with their codec.
+     *
+     * @return a new, modifiable StateBundle
+     */
+    @Nonnull
+    public StateBundle deepCopy() {
+        StateBundle root = new StateBundle(size());
+        // nested bundles are copied with an explicit stack, so deep trees do not overflow the call stack
+        ArrayDeque<StateBundle[]> stack = new ArrayDeque<>();
+        stack.push(new StateBundle[]{this, root});
+        while(!stack.isEmpty()) {
+            StateBundle[] pair = stack.pop();
+            StateBundle source = pair[0];
+            StateBundle target = pair[1];
+            Iterator<Map.Entry<String, Integer>> typeIterator = source.typeMap.entrySet().iterator();
+            for(Map.Entry<String, Object> entry : source.map.entrySet()) {
+                String key = entry.getKey();
+                int type = source.nextType(key, typeIterator);
+                Object value = entry.getValue();
+                if(value instanceof StateBundle) {
+                    value = copyLater((StateBundle) value, stack);
+                } else if(value != null) {
+                    value = copyValue(type, value, stack);
+                }
+                target.map.put(key, value);
+                target.typeMap.put(key, type);
+            }
+        }
+        return root;
+    }
+
+    // Returns the empty copy of a nested bundle, whose mappings are filled in when it is popped from the stack
+    private static StateBundle copyLater(StateBundle nested, ArrayDeque<StateBundle[]> stack) {
+        StateBundle nestedCopy = new StateBundle(nested.size());
+        stack.push(new StateBundle[]{nested, nestedCopy});
+        return nestedCopy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object copyValue(int type, Object value, ArrayDeque<StateBundle[]> stack) {
+        switch(type) {
+            case type_IntegerArrayList:
+            case type_StringArrayList:
+            case type_CharSequenceArrayList:
+            case type_ParcelableArrayList: {
+                ArrayList<?> list = (ArrayList<?>) value;
+                ArrayList<Object> copy = new ArrayList<>(list.size());
+                for(int i = 0, size = list.size(); i < size; i++) {
+                    Object element = list.get(i);
+                    copy.add(element instanceof StateBundle ? copyLater((StateBundle) element, stack) : element);
+                }
+                return copy;
+            }
+            case type_BooleanArray:
+                return ((boolean[]) value).clone();
+            case type_ByteArray:
+                return ((byte[]) value).clone();
+            case type_ShortArray:
+                return ((short[]) value).clone();
+            case type_CharArray:
+                return ((char[]) value).clone();
+            case type_IntArray:
+                return ((int[]) value).clone();
+            case type_LongArray:
+                return ((long[]) value).clone();
+            case type_FloatArray:
+                return ((float[]) value).clone();
+            case type_DoubleArray:
+                return ((double[]) value).clone();
+            case type_StringArray:
+                return ((String[]) value).clone();
+            case type_CharSequenceArray:
+                return ((CharSequence[]) value).clone();
+            case type_ParcelableArray: {
+                Parcelable[] copy = ((Parcelable[]) value).clone();
+                for(int i = 0; i < copy.length; i++) {
+                    if(copy[i] instanceof StateBundle) {
+                        copy[i] = copyLater((StateBundle) copy[i], stack);
+                    }
+                }
+                return copy;
+            }
+            case type_SparseParcelableArray: {
+                SparseArray<Object> copy = ((SparseArray<Object>) value).clone();
+                for(int i = 0, size = copy.size(); i < size; i++) {
+                    if(copy.valueAt(i) instanceof StateBundle) {
+                        copy.setValueAt(i, copyLater((StateBundle) copy.valueAt(i), stack));
+                    }
+                }
+                return copy;
+            }
+            case type_Date:
+                return ((Date) value).clone();
+            default:
+                if(type >= FIRST_CUSTOM_TYPE) {
+                    StateBundleTypeCodec<Object> codec = typeCodec(type);
+                    return codec.fromByteArray(codec.toByteArray(value));
+                }
+                return value;
+        }
+    }
+
     /**
      * Returns a Set containing the Strings used as keys in this StateBundle.
      *
+     * Keys removed through the returned Set are not recorded by a {@link StateBundleJournal}.
+     *
      * @return a Set of String keys
      */
     @Nonnull
     public Set<String> keySet() {
+        if(immutable) {
+            return Collections.unmodifiableSet(map.keySet());
+        }
+        beforeMutation(); // the returned view can be used to remove keys
         return map.keySet();
     }
 
     /**
-     * Inserts a Boolean value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
+     * Returns an immutable snapshot of the current mappings of this StateBundle.
      *
-     * @param key   a String, or null
-     * @param value a boolean
-     * @return this StateBundle
+     * Nested StateBundles are replaced by their snapshots, recursively, so modifying them afterwards does not affect the snapshot.
+     * Taking the snapshot does not copy the mappings of a bundle without nested StateBundles. They are copied only if that bundle
+     * is modified afterwards.
+     *
+     * Immutability covers the StateBundles only. Other values are shared, just like with {@link #StateBundle(StateBundle)}:
+     * arrays, ArrayLists, SparseArrays and Parcelables (including StateBundles inside them) can still be modified through
+     * the snapshot. Use {@link #deepCopy()} to detach them, or to create a copy whose nested StateBundles are modifiable.
+     *
+     * @return an immutable StateBundle, or this StateBundle if it is already immutable
      */
     @Nonnull
-    public StateBundle putBoolean(@Nullable String key, boolean value) {
-        map.put(key, value);
-        typeMap.put(key, type_boolean);
-        return this;
+    public StateBundle snapshot() {
+        // nested bundles are frozen with an explicit stack, so deep trees do not overflow the call stack
+        ArrayDeque<StateBundle[]> stack = new ArrayDeque<>();
+        StateBundle root = freeze(this, stack);
+        while(!stack.isEmpty()) {
+            StateBundle[] pair = stack.pop();
+            StateBundle source = pair[0];
+            StateBundle target = pair[1];
+            Iterator<Map.Entry<String, Integer>> typeIterator = source.typeMap.entrySet().iterator();
+            for(Map.Entry<String, Object> entry : source.map.entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if(value instanceof StateBundle) {
+                    value = freeze((StateBundle) value, stack);
+                }
+                target.map.put(key, value);
+                target.typeMap.put(key, source.nextType(key, typeIterator));
+            }
+        }
+        return root;
+    }
+
+    // Shares the maps of a bundle without nested bundles, otherwise pushes it to fill the mappings of a new snapshot
+    private static StateBundle freeze(StateBundle bundle, ArrayDeque<StateBundle[]> stack) {
+        if(bundle.immutable) {
+            return bundle;
+        }
+        StateBundle snapshot;
+        if(bundle.hasNestedBundles()) {
+            snapshot = new StateBundle(bundle.size());
+            stack.push(new StateBundle[]{bundle, snapshot});
+        } else {
+            snapshot = new StateBundle(bundle.map, bundle.typeMap);
+            bundle.shared = true;
+        }
+        snapshot.immutable = true;
+        return snapshot;
+    }
+
+    private boolean hasNestedBundles() {
+        for(Object value : map.values()) {
+            if(value instanceof StateBundle) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Inserts a byte value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.
+     * Returns true if this StateBundle is a snapshot that cannot be modified, false otherwise.
      *
-     * @param key   a String, or null
-     * @param value a byte
-     * @return this StateBundle
+     * Use {@link #StateBundle(StateBundle)} to create a modifiable copy.
      */
-    @Nonnull
-    public StateBundle putByte(@Nullable String key, byte value) {
+    public boolean isImmutable() {
+        return immutable;
+    }
+
+    private void checkMutable() {
+        if(immutable) {
+            throw new UnsupportedOperationException("This StateBundle is an immutable snapshot, use `new StateBundle(bundle)` to create a modifiable copy.");
+        }
+    }
+
+    // Must be called after the modification was journaled, as the journal may take a snapshot that shares the maps
+    private void beforeMutation() {
+        checkMutable();
+        if(shared) {
+            map = new LinkedHashMap<>(map);
+            typeMap = new LinkedHashMap<>(typeMap);
+            shared = false;
+        }
+    }
+
+    @Override
+    StateBundle putValue(String key, int type, Object value) {
+        checkMutable();
+        if(journal != null) {
+            journal.recordPut(key, type, value);
+        }
+        beforeMutation();
         map.put(key, value);
-        typeMap.put(key, type_byte);
+        typeMap.put(key, type);
         return this;
     }
 
-    /**
-     * Inserts a char value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.
-     *
-     * @param key   a String, or null
-     * @param value a char
-     * @return this StateBundle
-     */
+    // The put methods are overridden to return StateBundle, so the method descriptors of earlier versions still exist
+
+    @Nonnull
+    @Override
+    public StateBundle putBoolean(@Nullable String key, boolean value) {
+        return super.putBoolean(key, value);
+    }
+
+    @Nonnull
+    @Override
+    public StateBundle putByte(@Nullable String key, byte value) {
+        return super.putByte(key, value);
+    }
+
     @Nonnull
+    @Override
     public StateBundle putChar(@Nullable String key, char value) {
-        map.put(key, value);
-        typeMap.put(key, type_char);
-        return this;
+        return super.putChar(key, value);
     }
 
-    /**
-     * Inserts a short value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.
-     *
-     * @param key   a String, or null
-     * @param value a short
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putShort(@Nullable String key, short value) {
-        map.put(key, value);
-        typeMap.put(key, type_short);
-        return this;
+        return super.putShort(key, value);
     }
 
-    /**
-     * Inserts an int value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.
-     *
-     * @param key   a String, or null
-     * @param value an int
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putInt(@Nullable String key, int value) {
-        map.put(key, value);
-        typeMap.put(key, type_int);
-        return this;
+        return super.putInt(key, value);
     }
 
-    /**
-     * Inserts a long value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.
-     *
-     * @param key   a String, or null
-     * @param value a long
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putLong(@Nullable String key, long value) {
-        map.put(key, value);
-        typeMap.put(key, type_long);
-        return this;
+        return super.putLong(key, value);
     }
 
-    /**
-     * Inserts a float value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.
-     *
-     * @param key   a String, or null
-     * @param value a float
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putFloat(@Nullable String key, float value) {
-        map.put(key, value);
-        typeMap.put(key, type_float);
-        return this;
+        return super.putFloat(key, value);
     }
 
-    /**
-     * Inserts a double value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.
-     *
-     * @param key   a String, or null
-     * @param value a double
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putDouble(@Nullable String key, double value) {
-        map.put(key, value);
-        typeMap.put(key, type_double);
-        return this;
+        return super.putDouble(key, value);
     }
 
-    /**
-     * Inserts a String value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a String, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putString(@Nullable String key, @Nullable String value) {
-        map.put(key, value);
-        typeMap.put(key, type_String);
-        return this;
+        return super.putString(key, value);
     }
 
-    /**
-     * Inserts a CharSequence value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a CharSequence, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putCharSequence(@Nullable String key, @Nullable CharSequence value) {
-        map.put(key, value);
-        typeMap.put(key, type_CharSequence);
-        return this;
+        return super.putCharSequence(key, value);
     }
 
-    /**
-     * Inserts an ArrayList of Integer value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value an ArrayList of Integer object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putIntegerArrayList(@Nullable String key, @Nullable ArrayList<Integer> value) {
-        map.put(key, value);
-        typeMap.put(key, type_IntegerArrayList);
-        return this;
+        return super.putIntegerArrayList(key, value);
     }
 
-    /**
-     * Inserts an ArrayList of String value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value an ArrayList of String object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putStringArrayList(@Nullable String key, @Nullable ArrayList<String> value) {
-        map.put(key, value);
-        typeMap.put(key, type_StringArrayList);
-        return this;
+        return super.putStringArrayList(key, value);
     }
 
-    /**
-     * Inserts an ArrayList of CharSequence value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value an ArrayList of CharSequence object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putCharSequenceArrayList(@Nullable String key, @Nullable ArrayList<CharSequence> value) {
-        map.put(key, value);
-        typeMap.put(key, type_CharSequenceArrayList);
-        return this;
+        return super.putCharSequenceArrayList(key, value);
     }
 
-    /**
-     * Inserts a Serializable value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a Serializable object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putSerializable(@Nullable String key, @Nullable Serializable value) {
-        map.put(key, value);
-        typeMap.put(key, type_Serializable);
-        return this;
+        return super.putSerializable(key, value);
+    }
+
+    @Nonnull
+    @Override
+    public StateBundle putEnum(@Nullable String key, @Nullable Enum<?> value) {
+        return super.putEnum(key, value);
+    }
+
+    @Nonnull
+    @Override
+    public StateBundle putUUID(@Nullable String key, @Nullable UUID value) {
+        return super.putUUID(key, value);
     }
 
-    /**
-     * Inserts a boolean array value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a boolean array object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
+    public StateBundle putDate(@Nullable String key, @Nullable Date value) {
+        return super.putDate(key, value);
+    }
+
+    @Nonnull
+    @Override
+    public StateBundle putBigDecimal(@Nullable String key, @Nullable BigDecimal value) {
+        return super.putBigDecimal(key, value);
+    }
+
+    @Nonnull
+    @Override
     public StateBundle putBooleanArray(@Nullable String key, @Nullable boolean[] value) {
-        map.put(key, value);
-        typeMap.put(key, type_BooleanArray);
-        return this;
+        return super.putBooleanArray(key, value);
     }
 
-    /**
-     * Inserts a byte array value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a byte array object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putByteArray(@Nullable String key, @Nullable byte[] value) {
-        map.put(key, value);
-        typeMap.put(key, type_ByteArray);
-        return this;
+        return super.putByteArray(key, value);
     }
 
-    /**
-     * Inserts a short array value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a short array object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putShortArray(@Nullable String key, @Nullable short[] value) {
-        map.put(key, value);
-        typeMap.put(key, type_ShortArray);
-        return this;
+        return super.putShortArray(key, value);
     }
 
-    /**
-     * Inserts a char array value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a char array object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putCharArray(@Nullable String key, @Nullable char[] value) {
-        map.put(key, value);
-        typeMap.put(key, type_CharArray);
-        return this;
+        return super.putCharArray(key, value);
     }
 
-    /**
-     * Inserts an int array value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value an int array object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putIntArray(@Nullable String key, @Nullable int[] value) {
-        map.put(key, value);
-        typeMap.put(key, type_IntArray);
-        return this;
+        return super.putIntArray(key, value);
     }
 
-    /**
-     * Inserts a long array value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a long array object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putLongArray(@Nullable String key, @Nullable long[] value) {
-        map.put(key, value);
-        typeMap.put(key, type_LongArray);
-        return this;
+        return super.putLongArray(key, value);
     }
 
-    /**
-     * Inserts a float array value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a float array object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putFloatArray(@Nullable String key, @Nullable float[] value) {
-        map.put(key, value);
-        typeMap.put(key, type_FloatArray);
-        return this;
+        return super.putFloatArray(key, value);
     }
 
-    /**
-     * Inserts a double array value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a double array object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putDoubleArray(@Nullable String key, @Nullable double[] value) {
-        map.put(key, value);
-        typeMap.put(key, type_DoubleArray);
-        return this;
+        return super.putDoubleArray(key, value);
     }
 
-    /**
-     * Inserts a String array value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a String array object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putStringArray(@Nullable String key, @Nullable String[] value) {
-        map.put(key, value);
-        typeMap.put(key, type_StringArray);
-        return this;
+        return super.putStringArray(key, value);
     }
 
-    /**
-     * Inserts a CharSequence array value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a CharSequence array object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putCharSequenceArray(@Nullable String key, @Nullable CharSequence[] value) {
-        map.put(key, value);
-        typeMap.put(key, type_CharSequenceArray);
-        return this;
+        return super.putCharSequenceArray(key, value);
     }
 
-
-    /**
-     * Inserts a Parcelable value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a Parcelable object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putParcelable(@Nullable String key, @Nullable Parcelable value) {
-        map.put(key, value);
-        typeMap.put(key, type_Parcelable);
-        return this;
+        return super.putParcelable(key, value);
     }
 
-    /**
-     * Inserts a Size value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a Size object, or null
-     * @return this StateBundle
-     */
-//    @Nonnull
-//    public StateBundle putSize(@Nullable String key, @Nullable Size value) {
-//        map.put(key, value);
-//        typeMap.put(key, type_Size);
-//        return this;
-//    }
+    @Nonnull
+    @Override
+    public StateBundle putSize(@Nullable String key, int width, int height) {
+        return super.putSize(key, width, height);
+    }
 
-    /**
-     * Inserts a SizeF value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a SizeF object, or null
-     * @return this StateBundle
-     */
-//    @Nonnull
-//    public StateBundle putSizeF(@Nullable String key, @Nullable SizeF value) {
-//        map.put(key, value);
-//        typeMap.put(key, type_SizeF);
-//        return this;
-//    }
+    @Nonnull
+    @Override
+    public StateBundle putSizeF(@Nullable String key, float width, float height) {
+        return super.putSizeF(key, width, height);
+    }
 
-    /**
-     * Inserts an array of Parcelable values into the mapping of this StateBundle,
-     * replacing any existing value for the given key.  Either key or value may
-     * be null.
-     *
-     * @param key   a String, or null
-     * @param value an array of Parcelable objects, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putParcelableArray(@Nullable String key, @Nullable Parcelable[] value) {
-        map.put(key, value);
-        typeMap.put(key, type_ParcelableArray);
-        return this;
+        return super.putParcelableArray(key, value);
     }
 
-    /**
-     * Inserts a List of Parcelable values into the mapping of this StateBundle,
-     * replacing any existing value for the given key.  Either key or value may
-     * be null.
-     *
-     * @param key   a String, or null
-     * @param value an ArrayList of Parcelable objects, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putParcelableArrayList(@Nullable String key, @Nullable ArrayList<? extends Parcelable> value) {
-        map.put(key, value);
-        typeMap.put(key, type_ParcelableArrayList);
-        return this;
+        return super.putParcelableArrayList(key, value);
     }
 
-    /**
-     * Inserts a SparceArray of Parcelable values into the mapping of this
-     * Bundle, replacing any existing value for the given key.  Either key
-     * or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a SparseArray of Parcelable objects, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putSparseParcelableArray(@Nullable String key, @Nullable SparseArray<? extends Parcelable> value) {
-        map.put(key, value);
-        typeMap.put(key, type_SparseParcelableArray);
-        return this;
+        return super.putSparseParcelableArray(key, value);
     }
 
-    /**
-     * Inserts a StateBundle value into the mapping of this StateBundle, replacing
-     * any existing value for the given key.  Either key or value may be null.
-     *
-     * @param key   a String, or null
-     * @param value a StateBundle object, or null
-     * @return this StateBundle
-     */
     @Nonnull
+    @Override
     public StateBundle putBundle(@Nullable String key, @Nullable StateBundle value) {
-        map.put(key, value);
-        typeMap.put(key, type_StateBundle);
-        return this;
-    }
-
-    /**
-     * Returns the value associated with the given key, or false if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key a String
-     * @return a boolean value
-     */
-    public boolean getBoolean(@Nonnull String key) {
-        return getBoolean(key, false);
+        return super.putBundle(key, value);
     }
 
-    /**
-     * Returns the value associated with the given key, or defaultValue if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key          a String
-     * @param defaultValue Value to return if key does not exist
-     * @return a boolean value
-     */
-    public boolean getBoolean(@Nonnull String key, boolean defaultValue) {
-        Object o = map.get(key);
-        if(o == null) {
-            return defaultValue;
-        }
-        try {
-            return (Boolean) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "Boolean", defaultValue, e);
-            return defaultValue;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or (byte) 0 if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key a String
-     * @return a byte value
-     */
-    public byte getByte(@Nonnull String key) {
-        return getByte(key, (byte) 0);
-    }
-
-    /**
-     * Returns the value associated with the given key, or defaultValue if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key          a String
-     * @param defaultValue Value to return if key does not exist
-     * @return a byte value
-     */
     @Nonnull
-    public Byte getByte(@Nonnull String key, byte defaultValue) { // TODO: why is this Byte?
-        Object o = map.get(key);
-        if(o == null) {
-            return defaultValue;
-        }
-        try {
-            return (Byte) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "Byte", defaultValue, e);
-            return defaultValue;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or (char) 0 if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key a String
-     * @return a char value
-     */
-    public char getChar(@Nonnull String key) {
-        return getChar(key, (char) 0);
-    }
-
-    /**
-     * Returns the value associated with the given key, or defaultValue if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key          a String
-     * @param defaultValue Value to return if key does not exist
-     * @return a char value
-     */
-    public char getChar(@Nonnull String key, char defaultValue) {
-        Object o = map.get(key);
-        if(o == null) {
-            return defaultValue;
-        }
-        try {
-            return (char) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "Character", defaultValue, e);
-            return defaultValue;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or (short) 0 if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key a String
-     * @return a short value
-     */
-    public short getShort(@Nonnull String key) {
-        return getShort(key, (short) 0);
-    }
-
-    /**
-     * Returns the value associated with the given key, or defaultValue if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key          a String
-     * @param defaultValue Value to return if key does not exist
-     * @return a short value
-     */
-    public short getShort(@Nonnull String key, short defaultValue) {
-        Object o = map.get(key);
-        if(o == null) {
-            return defaultValue;
-        }
-        try {
-            return (Short) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "Short", defaultValue, e);
-            return defaultValue;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or 0 if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key a String
-     * @return an int value
-     */
-    public int getInt(@Nonnull String key) {
-        return getInt(key, 0);
-    }
-
-    /**
-     * Returns the value associated with the given key, or defaultValue if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key          a String
-     * @param defaultValue Value to return if key does not exist
-     * @return an int value
-     */
-    public int getInt(@Nonnull String key, int defaultValue) {
-        Object o = map.get(key);
-        if(o == null) {
-            return defaultValue;
-        }
-        try {
-            return (Integer) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "Integer", defaultValue, e);
-            return defaultValue;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or 0L if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key a String
-     * @return a long value
-     */
-    public long getLong(@Nonnull String key) {
-        return getLong(key, 0L);
-    }
-
-    /**
-     * Returns the value associated with the given key, or defaultValue if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key          a String
-     * @param defaultValue Value to return if key does not exist
-     * @return a long value
-     */
-    public long getLong(@Nonnull String key, long defaultValue) {
-        Object o = map.get(key);
-        if(o == null) {
-            return defaultValue;
-        }
-        try {
-            return (Long) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "Long", defaultValue, e);
-            return defaultValue;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or 0.0f if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key a String
-     * @return a float value
-     */
-    public float getFloat(@Nonnull String key) {
-        return getFloat(key, 0.0f);
-    }
-
-    /**
-     * Returns the value associated with the given key, or defaultValue if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key          a String
-     * @param defaultValue Value to return if key does not exist
-     * @return a float value
-     */
-    public float getFloat(@Nonnull String key, float defaultValue) {
-        Object o = map.get(key);
-        if(o == null) {
-            return defaultValue;
-        }
-        try {
-            return (Float) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "Float", defaultValue, e);
-            return defaultValue;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or 0.0 if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key a String
-     * @return a double value
-     */
-    public double getDouble(@Nonnull String key) {
-        return getDouble(key, 0.0);
-    }
-
-    /**
-     * Returns the value associated with the given key, or defaultValue if
-     * no mapping of the desired type exists for the given key.
-     *
-     * @param key          a String
-     * @param defaultValue Value to return if key does not exist
-     * @return a double value
-     */
-    public double getDouble(@Nonnull String key, double defaultValue) {
-        Object o = map.get(key);
-        if(o == null) {
-            return defaultValue;
-        }
-        try {
-            return (Double) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "Double", defaultValue, e);
-            return defaultValue;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a String value, or null
-     */
-    @Nullable
-    public String getString(@Nullable String key) {
-        final Object o = map.get(key);
-        try {
-            return (String) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "String", e);
-            return null;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or defaultValue if
-     * no mapping of the desired type exists for the given key or if a null
-     * value is explicitly associated with the given key.
-     *
-     * @param key          a String, or null
-     * @param defaultValue Value to return if key does not exist or if a null
-     *                     value is associated with the given key.
-     * @return the String value associated with the given key, or defaultValue
-     * if no valid String object is currently mapped to that key.
-     */
-    @Nonnull
-    public String getString(@Nullable String key, @Nonnull String defaultValue) {
-        final String s = getString(key);
-        return (s == null) ? defaultValue : s;
+    @Override
+    public StateBundle putCustom(@Nullable String key, int type, @Nullable Object value) {
+        return super.putCustom(key, type, value);
     }
 
     /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
+     * Returns a snapshot of the entries of this StateBundle, in insertion order.
      *
-     * @param key a String, or null
-     * @return a CharSequence value, or null
-     */
-    @Nullable
-    public CharSequence getCharSequence(@Nullable String key) {
-        final Object o = map.get(key);
-        try {
-            return (CharSequence) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "CharSequence", e);
-            return null;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or defaultValue if
-     * no mapping of the desired type exists for the given key or if a null
-     * value is explicitly associated with the given key.
+     * The returned list is random-access and exactly sized, so on API 24+ its spliterator
+     * is SIZED and SUBSIZED and splits evenly, allowing the entries to be processed with {@code entries().parallelStream()}.
      *
-     * @param key          a String, or null
-     * @param defaultValue Value to return if key does not exist or if a null
-     *                     value is associated with the given key.
-     * @return the CharSequence value associated with the given key, or defaultValue
-     * if no valid CharSequence object is currently mapped to that key.
+     * @return an unmodifiable List of entries
      */
     @Nonnull
-    public CharSequence getCharSequence(@Nullable String key, @Nonnull CharSequence defaultValue) {
-        final CharSequence cs = getCharSequence(key);
-        return (cs == null) ? defaultValue : cs;
-    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a Serializable value, or null
-     */
-    @Nullable
-    public Serializable getSerializable(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (Serializable) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "Serializable", e);
-            return null;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return an ArrayList of String value, or null
-     */
-    @Nullable
-    public ArrayList<Integer> getIntegerArrayList(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (ArrayList<Integer>) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "ArrayList<Integer>", e);
-            return null;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return an ArrayList of String value, or null
-     */
-    @Nullable
-    public ArrayList<String> getStringArrayList(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (ArrayList<String>) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "ArrayList<String>", e);
-            return null;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return an ArrayList of CharSequence value, or null
-     */
-    @Nullable
-    public ArrayList<CharSequence> getCharSequenceArrayList(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (ArrayList<CharSequence>) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "ArrayList<CharSequence>", e);
-            return null;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a boolean[] value, or null
-     */
-    @Nullable
-    public boolean[] getBooleanArray(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (boolean[]) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "byte[]", e);
-            return null;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a byte[] value, or null
-     */
-    @Nullable
-    public byte[] getByteArray(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (byte[]) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "byte[]", e);
-            return null;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a short[] value, or null
-     */
-    @Nullable
-    public short[] getShortArray(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (short[]) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "short[]", e);
-            return null;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a char[] value, or null
-     */
-    @Nullable
-    public char[] getCharArray(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (char[]) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "char[]", e);
-            return null;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return an int[] value, or null
-     */
-    @Nullable
-    public int[] getIntArray(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (int[]) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "int[]", e);
-            return null;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a long[] value, or null
-     */
-    @Nullable
-    public long[] getLongArray(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (long[]) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "long[]", e);
-            return null;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a float[] value, or null
-     */
-    @Nullable
-    public float[] getFloatArray(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (float[]) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "float[]", e);
-            return null;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a double[] value, or null
-     */
-    @Nullable
-    public double[] getDoubleArray(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (double[]) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "double[]", e);
-            return null;
-        }
-    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a String[] value, or null
-     */
-    @Nullable
-    public String[] getStringArray(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (String[]) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "String[]", e);
-            return null;
+    public List<Entry> entries() {
+        ArrayList<Entry> entries = new ArrayList<>(map.size());
+        Iterator<Map.Entry<String, Integer>> typeIterator = typeMap.entrySet().iterator();
+        for(Map.Entry<String, Object> entry : map.entrySet()) {
+            String key = entry.getKey();
+            entries.add(new Entry(key, nextType(key, typeIterator), entry.getValue()));
         }
+        return Collections.unmodifiableList(entries);
     }
 
     /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a CharSequence[] value, or null
+     * A key, the type it was put with, and its value.
      */
-    @Nullable
-    public CharSequence[] getCharSequenceArray(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (CharSequence[]) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "CharSequence[]", e);
-            return null;
-        }
-    }
+    public static final class Entry {
+        private final String key;
+        private final int type;
+        private final Object value;
 
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a Size value, or null
-     */
-//    @Nullable
-//    public Size getSize(@Nullable String key) {
-//        final Object o = map.get(key);
-//        try {
-//            return (Size) o;
-//        } catch(ClassCastException e) {
-//            typeWarning(key, o, "Size", e);
-//            return null;
-//        }
-//    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a Size value, or null
-     */
-//    @Nullable
-//    public SizeF getSizeF(@Nullable String key) {
-//        final Object o = map.get(key);
-//        try {
-//            return (SizeF) o;
-//        } catch(ClassCastException e) {
-//            typeWarning(key, o, "SizeF", e);
-//            return null;
-//        }
-//    }
-
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a Bundle value, or null
-     */
-    @Nullable
-    public StateBundle getBundle(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (StateBundle) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "Bundle", e);
-            return null;
+        Entry(String key, int type, Object value) {
+            this.key = key;
+            this.type = type;
+            this.value = value;
         }
-    }
 
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a Parcelable value, or null
-     */
-    @Nullable
-    public <T extends Parcelable> T getParcelable(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
+        /**
+         * Returns the key of this entry.
+         *
+         * @return a String key, or null
+         */
+        @Nullable
+        public String getKey() {
+            return key;
         }
-        try {
-            return (T) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "Parcelable", e);
-            return null;
-        }
-    }
 
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a Parcelable[] value, or null
-     */
-    @Nullable
-    public Parcelable[] getParcelableArray(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (Parcelable[]) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "Parcelable[]", e);
-            return null;
+        /**
+         * Returns the type this entry was put with, one of the {@code StateBundle.type_*} constants.
+         *
+         * @return the type
+         */
+        public int getType() {
+            return type;
         }
-    }
 
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return an ArrayList of T value, or null
-     */
-    @Nullable
-    public <T extends Parcelable> ArrayList<T> getParcelableArrayList(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
+        /**
+         * Returns the value of this entry.
+         *
+         * @return an Object, or null
+         */
+        @Nullable
+        public Object getValue() {
+            return value;
         }
-        try {
-            return (ArrayList<T>) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "ArrayList", e);
-            return null;
-        }
-    }
 
-    /**
-     * Returns the value associated with the given key, or null if
-     * no mapping of the desired type exists for the given key or a null
-     * value is explicitly associated with the key.
-     *
-     * @param key a String, or null
-     * @return a SparseArray of T values, or null
-     */
-    @Nullable
-    public <T extends Parcelable> SparseArray<T> getSparseParcelableArray(@Nullable String key) {
-        Object o = map.get(key);
-        if(o == null) {
-            return null;
-        }
-        try {
-            return (SparseArray<T>) o;
-        } catch(ClassCastException e) {
-            typeWarning(key, o, "SparseArray", e);
-            return null;
+        @Override
+        public String toString() {
+            return "{[" + key + "]::[" + type + "]::[" + value + "]}";
         }
     }
 
-    // Log a message if the value was non-null but not of the expected type
-    protected void typeWarning(String key, Object value, String className, Object defaultValue, ClassCastException e) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Key ");
-        sb.append(key);
-        sb.append(" expected ");
-        sb.append(className);
-        sb.append(" but value was a ");
-        sb.append(value.getClass().getName());
-        sb.append(".  The default value ");
-        sb.append(defaultValue);
-        sb.append(" was returned.");
-        System.out.println(sb.toString());
-    }
-
-    void typeWarning(String key, Object value, String className, ClassCastException e) {
-        typeWarning(key, value, className, "<null>", e);
-    }
 
     /**
-     * Copies the keys and values of this {@link StateBundle} into the provided android.os.Bundle
+     * Calls the typed callback of the visitor for each entry of this {@link StateBundle}, in insertion order.
+     *
+     * @param visitor the visitor, must not be null.
      */
-    public void copyToBundle(@Nonnull Bundle bundle) {
-        if(bundle == null) {
-            throw new IllegalArgumentException("Bundle should not be null!");
+    public void accept(@Nonnull StateBundleVisitor visitor) {
+        if(visitor == null) {
+            throw new IllegalArgumentException("The provided visitor should not be null!");
         }
-
+        Iterator<Map.Entry<String, Integer>> typeIterator = typeMap.entrySet().iterator();
         for(Map.Entry<String, Object> entry : map.entrySet()) {
             String key = entry.getKey();
             Object object = entry.getValue();
-
-            Integer typeValue = typeMap.get(entry.getKey());
-
-            if(typeValue == null) {
-                throw new IllegalStateException("Unexpected null in [" + key + " ]");
-            }
-
-            switch(typeValue) {
+            int type = nextType(key, typeIterator);
+            switch(type) {
                 case type_boolean:
-                    bundle.putBoolean(key, (Boolean) object);
+                    visitor.visitBoolean(key, (Boolean) object);
                     break;
                 case type_byte:
-                    bundle.putByte(key, (Byte) object);
+                    visitor.visitByte(key, (Byte) object);
                     break;
                 case type_char:
-                    bundle.putChar(key, (Character) object);
+                    visitor.visitChar(key, (Character) object);
                     break;
                 case type_short:
-                    bundle.putShort(key, (Short) object);
+                    visitor.visitShort(key, (Short) object);
                     break;
                 case type_int:
-                    bundle.putInt(key, (Integer) object);
+                    visitor.visitInt(key, (Integer) object);
                     break;
                 case type_long:
-                    bundle.putLong(key, (Long) object);
+                    visitor.visitLong(key, (Long) object);
                     break;
                 case type_float:
-                    bundle.putFloat(key, (Float) object);
+                    visitor.visitFloat(key, (Float) object);
                     break;
                 case type_double:
-                    bundle.putDouble(key, (Double) object);
+                    visitor.visitDouble(key, (Double) object);
+                    break;
+                case type_Size: {
+                    long size = (Long) object;
+                    visitor.visitSize(key, StateBundleSize.getWidth(size), StateBundleSize.getHeight(size));
+                    break;
+                }
+                case type_SizeF: {
+                    long size = (Long) object;
+                    visitor.visitSizeF(key, StateBundleSize.getWidthF(size), StateBundleSize.getHeightF(size));
                     break;
+                }
                 case type_String:
-                    bundle.putString(key, (String) object);
+                    visitor.visitString(key, (String) object);
                     break;
                 case type_CharSequence:
-                    bundle.putCharSequence(key, (CharSequence) object);
+                    visitor.visitCharSequence(key, (CharSequence) object);
                     break;
                 case type_Serializable:
-                    bundle.putSerializable(key, (Serializable) object);
+                    visitor.visitSerializable(key, (Serializable) object);
+                    break;
+                case type_Enum:
+                    visitor.visitEnum(key, (Enum<?>) object);
+                    break;
+                case type_UUID:
+                    visitor.visitUUID(key, (UUID) object);
+                    break;
+                case type_Date:
+                    visitor.visitDate(key, (Date) object);
+                    break;
+                case type_BigDecimal:
+                    visitor.visitBigDecimal(key, (BigDecimal) object);
                     break;
                 case type_IntegerArrayList:
                     // noinspection unchecked
-                    bundle.putIntegerArrayList(key, (ArrayList<Integer>) object);
+                    visitor.visitIntegerArrayList(key, (ArrayList<Integer>) object);
                     break;
                 case type_StringArrayList:
                     // noinspection unchecked
-                    bundle.putStringArrayList(key, (ArrayList<String>) object);
+                    visitor.visitStringArrayList(key, (ArrayList<String>) object);
                     break;
                 case type_CharSequenceArrayList:
                     // noinspection unchecked
-                    bundle.putCharSequenceArrayList(key, (ArrayList<CharSequence>) object);
+                    visitor.visitCharSequenceArrayList(key, (ArrayList<CharSequence>) object);
                     break;
                 case type_BooleanArray:
-                    bundle.putBooleanArray(key, (boolean[]) object);
+                    visitor.visitBooleanArray(key, (boolean[]) object);
                     break;
                 case type_ByteArray:
-                    bundle.putByteArray(key, (byte[]) object);
+                    visitor.visitByteArray(key, (byte[]) object);
                     break;
                 case type_ShortArray:
-                    bundle.putShortArray(key, (short[]) object);
+                    visitor.visitShortArray(key, (short[]) object);
                     break;
                 case type_CharArray:
-                    bundle.putCharArray(key, (char[]) object);
+                    visitor.visitCharArray(key, (char[]) object);
                     break;
                 case type_IntArray:
-                    bundle.putIntArray(key, (int[]) object);
+                    visitor.visitIntArray(key, (int[]) object);
                     break;
                 case type_LongArray:
-                    bundle.putLongArray(key, (long[]) object);
+                    visitor.visitLongArray(key, (long[]) object);
                     break;
                 case type_FloatArray:
-                    bundle.putFloatArray(key, (float[]) object);
+                    visitor.visitFloatArray(key, (float[]) object);
                     break;
                 case type_DoubleArray:
-                    bundle.putDoubleArray(key, (double[]) object);
+                    visitor.visitDoubleArray(key, (double[]) object);
                     break;
                 case type_StateBundle:
-                    bundle.putParcelable(key, (StateBundle) object);
+                    visitor.visitBundle(key, (StateBundle) object);
                     break;
                 case type_Parcelable:
-                    bundle.putParcelable(key, (Parcelable) object);
+                    visitor.visitParcelable(key, (Parcelable) object);
                     break;
                 case type_ParcelableArrayList:
                     // noinspection unchecked
-                    bundle.putParcelableArrayList(key, (ArrayList<Parcelable>) object);
+                    visitor.visitParcelableArrayList(key, (ArrayList<Parcelable>) object);
                     break;
                 case type_SparseParcelableArray:
                     // noinspection unchecked
-                    bundle.putSparseParcelableArray(key, (SparseArray<Parcelable>) object);
+                    visitor.visitSparseParcelableArray(key, (SparseArray<Parcelable>) object);
                     break;
                 case type_StringArray:
-                    // noinspection unchecked
-                    bundle.putStringArray(key, (String[]) object);
+                    visitor.visitStringArray(key, (String[]) object);
                     break;
                 case type_CharSequenceArray:
-                    // noinspection unchecked
-                    bundle.putCharSequenceArray(key, (CharSequence[]) object);
+                    visitor.visitCharSequenceArray(key, (CharSequence[]) object);
                     break;
                 case type_ParcelableArray:
-                    // noinspection unchecked
-                    bundle.putParcelableArray(key, (Parcelable[]) object);
+                    visitor.visitParcelableArray(key, (Parcelable[]) object);
+                    break;
+                default:
+                    visitor.visitCustom(key, type, object);
                     break;
             }
         }
     }
 
+    // typeMap is kept in the same insertion order as map, so it is iterated in lockstep instead of looked up per key
+    int nextType(String key, Iterator<Map.Entry<String, Integer>> typeIterator) {
+        if(typeIterator.hasNext()) {
+            Map.Entry<String, Integer> typeEntry = typeIterator.next();
+            if(objectsEquals(typeEntry.getKey(), key)) {
+                return typeEntry.getValue();
+            }
+        }
+        Integer type = typeMap.get(key); // keys removed through keySet() leave the type behind
+        if(type == null) {
+            throw new IllegalStateException("Unexpected null in [" + key + "]");
+        }
+        return type;
+    }
+
+    /**
+     * Copies the keys and values of this {@link StateBundle} into the provided android.os.Bundle
+     */
+    public void copyToBundle(@Nonnull Bundle bundle) {
+        if(bundle == null) {
+            throw new IllegalArgumentException("Bundle should not be null!");
+        }
+        accept(new BundleCopier(bundle));
+    }
+
+    private static class BundleCopier
+        implements StateBundleVisitor {
+        private final Bundle bundle;
+
+        BundleCopier(Bundle bundle) {
+            this.bundle = bundle;
+        }
+
+        @Override
+        public void visitBoolean(String key, boolean value) {
+            bundle.putBoolean(key, value);
+        }
+
+        @Override
+        public void visitByte(String key, byte value) {
+            bundle.putByte(key, value);
+        }
+
+        @Override
+        public void visitChar(String key, char value) {
+            bundle.putChar(key, value);
+        }
+
+        @Override
+        public void visitShort(String key, short value) {
+            bundle.putShort(key, value);
+        }
+
+        @Override
+        public void visitInt(String key, int value) {
+            bundle.putInt(key, value);
+        }
+
+        @Override
+        public void visitLong(String key, long value) {
+            bundle.putLong(key, value);
+        }
+
+        @Override
+        public void visitFloat(String key, float value) {
+            bundle.putFloat(key, value);
+        }
+
+        @Override
+        public void visitDouble(String key, double value) {
+            bundle.putDouble(key, value);
+        }
+
+        // android.util.Size and SizeF were added in API 21, so older versions get the packed long
+        @Override
+        public void visitSize(String key, int width, int height) {
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                bundle.putSize(key, new Size(width, height));
+            } else {
+                bundle.putLong(key, StateBundleSize.pack(width, height));
+            }
+        }
+
+        @Override
+        public void visitSizeF(String key, float width, float height) {
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                bundle.putSizeF(key, new SizeF(width, height));
+            } else {
+                bundle.putLong(key, StateBundleSize.packF(width, height));
+            }
+        }
+
+        @Override
+        public void visitString(String key, String value) {
+            bundle.putString(key, value);
+        }
+
+        @Override
+        public void visitCharSequence(String key, CharSequence value) {
+            bundle.putCharSequence(key, value);
+        }
+
+        @Override
+        public void visitSerializable(String key, Serializable value) {
+            bundle.putSerializable(key, value);
+        }
+
+        @Override
+        public void visitEnum(String key, Enum<?> value) {
+            bundle.putSerializable(key, value);
+        }
+
+        @Override
+        public void visitUUID(String key, UUID value) {
+            bundle.putSerializable(key, value);
+        }
+
+        @Override
+        public void visitDate(String key, Date value) {
+            bundle.putSerializable(key, value);
+        }
+
+        @Override
+        public void visitBigDecimal(String key, BigDecimal value) {
+            bundle.putSerializable(key, value);
+        }
+
+        @Override
+        public void visitIntegerArrayList(String key, ArrayList<Integer> value) {
+            bundle.putIntegerArrayList(key, value);
+        }
+
+        @Override
+        public void visitStringArrayList(String key, ArrayList<String> value) {
+            bundle.putStringArrayList(key, value);
+        }
+
+        @Override
+        public void visitCharSequenceArrayList(String key, ArrayList<CharSequence> value) {
+            bundle.putCharSequenceArrayList(key, value);
+        }
+
+        @Override
+        public void visitBooleanArray(String key, boolean[] value) {
+            bundle.putBooleanArray(key, value);
+        }
+
+        @Override
+        public void visitByteArray(String key, byte[] value) {
+            bundle.putByteArray(key, value);
+        }
+
+        @Override
+        public void visitShortArray(String key, short[] value) {
+            bundle.putShortArray(key, value);
+        }
+
+        @Override
+        public void visitCharArray(String key, char[] value) {
+            bundle.putCharArray(key, value);
+        }
+
+        @Override
+        public void visitIntArray(String key, int[] value) {
+            bundle.putIntArray(key, value);
+        }
+
+        @Override
+        public void visitLongArray(String key, long[] value) {
+            bundle.putLongArray(key, value);
+        }
+
+        @Override
+        public void visitFloatArray(String key, float[] value) {
+            bundle.putFloatArray(key, value);
+        }
+
+        @Override
+        public void visitDoubleArray(String key, double[] value) {
+            bundle.putDoubleArray(key, value);
+        }
+
+        @Override
+        public void visitStringArray(String key, String[] value) {
+            bundle.putStringArray(key, value);
+        }
+
+        @Override
+        public void visitCharSequenceArray(String key, CharSequence[] value) {
+            bundle.putCharSequenceArray(key, value);
+        }
+
+        @Override
+        public void visitBundle(String key, StateBundle value) {
+            bundle.putParcelable(key, value);
+        }
+
+        @Override
+        public void visitParcelable(String key, Parcelable value) {
+            bundle.putParcelable(key, value);
+        }
+
+        @Override
+        public void visitParcelableArray(String key, Parcelable[] value) {
+            bundle.putParcelableArray(key, value);
+        }
+
+        @Override
+        public void visitParcelableArrayList(String key, ArrayList<Parcelable> value) {
+            bundle.putParcelableArrayList(key, value);
+        }
+
+        @Override
+        public void visitSparseParcelableArray(String key, SparseArray<Parcelable> value) {
+            bundle.putSparseParcelableArray(key, value);
+        }
+
+        @Override
+        public void visitCustom(String key, int type, Object value) {
+            if(value == null) {
+                bundle.putByteArray(key, null);
+            } else {
+                typeCodec(type).copyToBundle(bundle, key, value);
+            }
+        }
+    }
+
+    /**
+     * Creates a new {@link StateBundle} that contains the keys and values of the provided android.os.Bundle.
+     *
+     * Nested Bundles are converted into nested StateBundles. Values that {@link #copyToBundle(Bundle)} puts as
+     * Serializable (enums, UUIDs, Dates and BigDecimals) or as android.util.Size and SizeF keep their types.
+     * Below API 21, sizes are copied as packed longs, so they are read back as longs.
+     *
+     * @param bundle the android.os.Bundle to copy, must not be null.
+     * @return a new StateBundle
+     * @throws IllegalArgumentException if the Bundle contains a value that cannot be stored in a StateBundle
+     */
+    @Nonnull
+    public static StateBundle fromBundle(@Nonnull Bundle bundle) {
+        if(bundle == null) {
+            throw new IllegalArgumentException("Bundle should not be null!");
+        }
+        Set<String> keys = bundle.keySet();
+        StateBundle stateBundle = new StateBundle(keys.size());
+        for(String key : keys) {
+            Object value = bundle.get(key);
+            if(value instanceof Bundle) {
+                stateBundle.map.put(key, fromBundle((Bundle) value));
+                stateBundle.typeMap.put(key, type_StateBundle);
+                continue;
+            }
+            int type = typeOf(value);
+            if(type == type_unknown) {
+                throw new IllegalArgumentException("The value of [" + key + "] of type [" + value.getClass().getName() + "] cannot be stored in a StateBundle");
+            }
+            if(type == type_Size) {
+                Size size = (Size) value;
+                value = StateBundleSize.pack(size.getWidth(), size.getHeight());
+            } else if(type == type_SizeF) {
+                SizeF size = (SizeF) value;
+                value = StateBundleSize.packF(size.getWidth(), size.getHeight());
+            }
+            stateBundle.map.put(key, value);
+            stateBundle.typeMap.put(key, type);
+        }
+        return stateBundle;
+    }
+
+    static final int type_unknown = -1;
+
+    // Determines the type that a value read from an android.os.Bundle would have been put with
+    static int typeOf(@Nullable Object value) {
+        if(value == null) {
+            return type_String;
+        }
+        if(value instanceof String) {
+            return type_String;
+        }
+        if(value instanceof Integer) {
+            return type_int;
+        }
+        if(value instanceof Boolean) {
+            return type_boolean;
+        }
+        if(value instanceof Long) {
+            return type_long;
+        }
+        if(value instanceof Float) {
+            return type_float;
+        }
+        if(value instanceof Double) {
+            return type_double;
+        }
+        if(value instanceof Byte) {
+            return type_byte;
+        }
+        if(value instanceof Character) {
+            return type_char;
+        }
+        if(value instanceof Short) {
+            return type_short;
+        }
+        if(value instanceof StateBundle) {
+            return type_StateBundle;
+        }
+        if(value instanceof CharSequence) {
+            return type_CharSequence;
+        }
+        if(value instanceof ArrayList) {
+            return typeOfArrayList((ArrayList<?>) value);
+        }
+        if(value instanceof SparseArray) {
+            return type_SparseParcelableArray;
+        }
+        if(value instanceof Parcelable) {
+            return type_Parcelable;
+        }
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if(value instanceof Size) {
+                return type_Size;
+            }
+            if(value instanceof SizeF) {
+                return type_SizeF;
+            }
+        }
+        if(value instanceof boolean[]) {
+            return type_BooleanArray;
+        }
+        if(value instanceof byte[]) {
+            return type_ByteArray;
+        }
+        if(value instanceof short[]) {
+            return type_ShortArray;
+        }
+        if(value instanceof char[]) {
+            return type_CharArray;
+        }
+        if(value instanceof int[]) {
+            return type_IntArray;
+        }
+        if(value instanceof long[]) {
+            return type_LongArray;
+        }
+        if(value instanceof float[]) {
+            return type_FloatArray;
+        }
+        if(value instanceof double[]) {
+            return type_DoubleArray;
+        }
+        if(value instanceof String[]) {
+            return type_StringArray;
+        }
+        if(value instanceof CharSequence[]) {
+            return type_CharSequenceArray;
+        }
+        if(value instanceof Parcelable[]) {
+            return type_ParcelableArray;
+        }
+        if(value instanceof Enum) {
+            return type_Enum;
+        }
+        if(value instanceof UUID) {
+            return type_UUID;
+        }
+        if(value instanceof Date) {
+            return type_Date;
+        }
+        if(value instanceof BigDecimal) {
+            return type_BigDecimal;
+        }
+        if(value instanceof Serializable) {
+            return type_Serializable;
+        }
+        return type_unknown;
+    }
+
+    // The element type of a list is erased, so every non-null element has to agree on the list type
+    private static int typeOfArrayList(ArrayList<?> list) {
+        boolean integers = true;
+        boolean strings = true;
+        boolean charSequences = true;
+        boolean parcelables = true;
+        boolean serializables = true;
+        for(int i = 0, size = list.size(); i < size; i++) {
+            Object element = list.get(i);
+            if(element == null) {
+                continue;
+            }
+            integers &= element instanceof Integer;
+            strings &= element instanceof String;
+            charSequences &= element instanceof CharSequence;
+            parcelables &= element instanceof Parcelable;
+            serializables &= element instanceof Serializable;
+        }
+        if(integers && strings) { // empty, or only nulls
+            return type_StringArrayList;
+        }
+        if(integers) {
+            return type_IntegerArrayList;
+        }
+        if(strings) {
+            return type_StringArrayList;
+        }
+        if(charSequences) {
+            return type_CharSequenceArrayList;
+        }
+        if(parcelables) {
+            return type_ParcelableArrayList;
+        }
+        if(serializables) {
+            return type_Serializable;
+        }
+        return type_unknown;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -1728,17 +1515,25 @@ public class StateBundle
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeInt(map.keySet().size());
-        for(String key : map.keySet()) {
-            Integer type = typeMap.get(key);
-
-            if(type == null) {
-                throw new IllegalStateException("Unexpected null in [" + key + "]");
-            }
-
+        dest.writeInt(map.size());
+        Iterator<Map.Entry<String, Integer>> typeIterator = typeMap.entrySet().iterator();
+        for(Map.Entry<String, Object> entry : map.entrySet()) {
+            String key = entry.getKey();
+            int type = nextType(key, typeIterator);
             TypeElement typeElement = new TypeElement(key, type);
             dest.writeParcelable(typeElement, 0);
-            dest.writeValue(get(key));
+            Object value = entry.getValue();
+            if(isWrittenByCodec(type) && value != null) {
+                value = typeCodec(type).toByteArray(value);
+            } else if(type == type_Serializable && value != null) {
+                int codecId = StateBundleSerializables.codecId((Serializable) value);
+                if(codecId != 0) {
+                    value = new StateBundleSerializables.EncodedValue(codecId, StateBundleSerializables.codec(codecId).toByteArray(value));
+                } else {
+                    StateBundleSerializables.recordFallback((Serializable) value);
+                }
+            }
+            dest.writeValue(value);
         }
     }
 
@@ -1750,43 +1545,18 @@ public class StateBundle
         if(entrySet.isEmpty()) {
             stringBuilder.append("[]");
         } else {
+            Iterator<Map.Entry<String, Integer>> typeIterator = typeMap.entrySet().iterator();
             for(Map.Entry<String, Object> entry : entrySet) {
                 stringBuilder.append("{[");
                 stringBuilder.append(entry.getKey());
                 stringBuilder.append("]::[");
 
-                Integer type = typeMap.get(entry.getKey());
-
-                if(type == null) {
-                    throw new IllegalStateException("Unexpected null in [" + entry.getKey() + "]");
-                }
+                int type = nextType(entry.getKey(), typeIterator);
 
                 if(entry.getValue() == null) {
                     stringBuilder.append("<null>");
-                } else if(type == type_BooleanArray) {
-                    stringBuilder.append(Arrays.toString((boolean[]) entry.getValue()));
-                } else if(type == type_ByteArray) {
-                    stringBuilder.append(Arrays.toString((byte[]) entry.getValue()));
-                } else if(type == type_ShortArray) {
-                    stringBuilder.append(Arrays.toString((short[]) entry.getValue()));
-                } else if(type == type_CharArray) {
-                    stringBuilder.append(Arrays.toString((char[]) entry.getValue()));
-                } else if(type == type_IntArray) {
-                    stringBuilder.append(Arrays.toString((int[]) entry.getValue()));
-                } else if(type == type_LongArray) {
-                    stringBuilder.append(Arrays.toString((long[]) entry.getValue()));
-                } else if(type == type_FloatArray) {
-                    stringBuilder.append(Arrays.toString((float[]) entry.getValue()));
-                } else if(type == type_DoubleArray) {
-                    stringBuilder.append(Arrays.toString((double[]) entry.getValue()));
-                } else if(type == type_StringArray) {
-                    stringBuilder.append(Arrays.toString((String[]) entry.getValue()));
-                } else if(type == type_CharSequenceArray) {
-                    stringBuilder.append(Arrays.toString((CharSequence[]) entry.getValue()));
-                } else if(type == type_ParcelableArray) {
-                    stringBuilder.append(Arrays.toString((Parcelable[]) entry.getValue()));
                 } else {
-                    stringBuilder.append(entry.getValue());
+                    stringBuilder.append(typeCodec(type).toString(entry.getValue()));
                 }
                 stringBuilder.append("]}");
                 ++i;
@@ -1798,44 +1568,32 @@ public class StateBundle
         return stringBuilder.toString();
     }
 
+    /**
+     * Returns a 128-bit digest of the content of this StateBundle and its nested StateBundles.
+     *
+     * Unlike {@link #hashCode()}, the fingerprint does not depend on the hashCode() of the values, so it is stable
+     * across processes and runs. It does not depend on the insertion order of the keys.
+     *
+     * Parcelables other than StateBundles are marshalled through a Parcel to compute the fingerprint.
+     *
+     * @return the fingerprint
+     * @throws IllegalArgumentException if a value of the bundle cannot be encoded
+     */
+    @Nonnull
+    public StateBundleFingerprint fingerprint() {
+        return StateBundleFingerprint.of(this);
+    }
+
     @Override
     public int hashCode() {
         int result = 0;
-        Set<Map.Entry<String, Object>> entrySet = map.entrySet();
-        for(Map.Entry<String, Object> entry : entrySet) {
+        Iterator<Map.Entry<String, Integer>> typeIterator = typeMap.entrySet().iterator();
+        for(Map.Entry<String, Object> entry : map.entrySet()) {
             result += 31 * entry.getKey().hashCode();
-            Integer type = typeMap.get(entry.getKey());
-
-            if(type == null) {
-                throw new IllegalStateException("Unexpected null in hashCode for [" + entry.getKey() + "]");
-            }
+            int type = nextType(entry.getKey(), typeIterator);
 
-            if(entry.getValue() == null) {
-                result += 0;
-            } else if(type == type_BooleanArray) {
-                result += 31 * (Arrays.hashCode((boolean[]) entry.getValue()));
-            } else if(type == type_ByteArray) {
-                result += 31 * (Arrays.hashCode((byte[]) entry.getValue()));
-            } else if(type == type_ShortArray) {
-                result += 31 * (Arrays.hashCode((short[]) entry.getValue()));
-            } else if(type == type_CharArray) {
-                result += 31 * (Arrays.hashCode((char[]) entry.getValue()));
-            } else if(type == type_IntArray) {
-                result += 31 * (Arrays.hashCode((int[]) entry.getValue()));
-            } else if(type == type_LongArray) {
-                result += 31 * (Arrays.hashCode((long[]) entry.getValue()));
-            } else if(type == type_FloatArray) {
-                result += 31 * (Arrays.hashCode((float[]) entry.getValue()));
-            } else if(type == type_DoubleArray) {
-                result += 31 * (Arrays.hashCode((double[]) entry.getValue()));
-            } else if(type == type_StringArray) {
-                result += 31 * (Arrays.hashCode((String[]) entry.getValue()));
-            } else if(type == type_CharSequenceArray) {
-                result += 31 * (Arrays.hashCode((CharSequence[]) entry.getValue()));
-            } else if(type == type_ParcelableArray) {
-                result += 31 * (Arrays.hashCode((Parcelable[]) entry.getValue()));
-            } else {
-                result += 31 * entry.getValue().hashCode();
+            if(entry.getValue() != null) {
+                result += 31 * typeCodec(type).hashCode(entry.getValue());
             }
         }
         return result;
@@ -1884,65 +1642,8 @@ public class StateBundle
             if((thisObj == null && thatObj != null) || (thisObj != null && thatObj == null)) {
                 return false;
             }
-            if(type == type_BooleanArray) {
-                boolean eq = Arrays.equals((boolean[]) thisObj, (boolean[]) thatObj);
-                if(!eq) {
-                    return false;
-                }
-            } else if(type == type_ByteArray) {
-                boolean eq = Arrays.equals((byte[]) thisObj, (byte[]) thatObj);
-                if(!eq) {
-                    return false;
-                }
-            } else if(type == type_ShortArray) {
-                boolean eq = Arrays.equals((short[]) thisObj, (short[]) thatObj);
-                if(!eq) {
-                    return false;
-                }
-            } else if(type == type_CharArray) {
-                boolean eq = Arrays.equals((char[]) thisObj, (char[]) thatObj);
-                if(!eq) {
-                    return false;
-                }
-            } else if(type == type_IntArray) {
-                boolean eq = Arrays.equals((int[]) thisObj, (int[]) thatObj);
-                if(!eq) {
-                    return false;
-                }
-            } else if(type == type_LongArray) {
-                boolean eq = Arrays.equals((long[]) thisObj, (long[]) thatObj);
-                if(!eq) {
-                    return false;
-                }
-            } else if(type == type_FloatArray) {
-                boolean eq = Arrays.equals((float[]) thisObj, (float[]) thatObj);
-                if(!eq) {
-                    return false;
-                }
-            } else if(type == type_DoubleArray) {
-                boolean eq = Arrays.equals((double[]) thisObj, (double[]) thatObj);
-                if(!eq) {
-                    return false;
-                }
-            } else if(type == type_StringArray) {
-                boolean eq = Arrays.equals((String[]) thisObj, (String[]) thatObj);
-                if(!eq) {
-                    return false;
-                }
-            } else if(type == type_CharSequenceArray) {
-                boolean eq = Arrays.equals((CharSequence[]) thisObj, (CharSequence[]) thatObj);
-                if(!eq) {
-                    return false;
-                }
-            } else if(type == type_ParcelableArray) {
-                boolean eq = Arrays.equals((Parcelable[]) thisObj, (Parcelable[]) thatObj);
-                if(!eq) {
-                    return false;
-                }
-            } else {
-                if(!thisObj.equals(thatObj)) {
-                    return false;
-                }
+            if(!typeCodec(type).equals(thisObj, thatObj)) {
+                return false;
             }
         }
         return true;
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Keeps StateBundles by key in memory, up to a total size in bytes, and spills the least recently used ones to disk.
+ *
+ * The size of a StateBundle is the size of its {@link StateBundleCodec} encoding, which is computed when it is put.
+ * The StateBundles are kept as they were put and are only encoded again when they are spilled, so they should not be modified while they are in the cache.
+ *
+ * If there is no spill directory, the least recently used StateBundles are dropped instead.
+ */
+public class StateBundleCache {
+    private static class CacheEntry {
+        final StateBundle bundle;
+        final int weight;
+
+        CacheEntry(StateBundle bundle, int weight) {
+            this.bundle = bundle;
+            this.weight = weight;
+        }
+    }
+
+    private static final String SPILL_SUFFIX = ".spill";
+
+    private final long maxSize;
+    private final File spillDirectory;
+    private final StateBundleCodec codec;
+
+    // Guards the spill files, it is taken before the cache itself, and the cache is not locked while the files are accessed
+    private final Object spillLock = new Object();
+
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // the evicted entries which are not written to the spill directory yet, they are still found by get
+    private final HashMap<String, CacheEntry> spilling = new HashMap<>();
+    private long size;
+
+    private long hitCount;
+    private long missCount;
+    private long spillHitCount;
+    private long evictionCount;
+
+    /**
+     * Constructs a StateBundleCache.
+     *
+     * @param maxSize        the maximum total size of the StateBundles kept in memory, in bytes
+     * @param spillDirectory the directory where evicted StateBundles are written, or null to drop them
+     * @throws IOException if the spill directory could not be created
+     */
+    public StateBundleCache(long maxSize, @Nullable File spillDirectory)
+            throws IOException {
+        this(maxSize, spillDirectory, new StateBundleCodec());
+    }
+
+    /**
+     * Constructs a StateBundleCache.
+     *
+     * The spill files are named with a {@code .spill} suffix, other files in the spill directory are left alone.
+     *
+     * @param maxSize        the maximum total size of the StateBundles kept in memory, in bytes
+     * @param spillDirectory the directory where evicted StateBundles are written, or null to drop them
+     * @param codec          the codec used to measure and spill the StateBundles, must not be null.
+     * @throws IOException if the spill directory could not be created
+     */
+    public StateBundleCache(long maxSize, @Nullable File spillDirectory, @Nonnull StateBundleCodec codec)
+            throws IOException {
+        if(maxSize <= 0) {
+            throw new IllegalArgumentException("The provided max size should be positive!");
+        }
+        if(codec == null) {
+            throw new IllegalArgumentException("The provided codec should not be null!");
+        }
+        if(spillDirectory != null && !spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+            throw new IOException("Could not create [" + spillDirectory + "]");
+        }
+        this.maxSize = maxSize;
+        this.spillDirectory = spillDirectory;
+        this.codec = codec;
+    }
+
+    /**
+     * Puts the StateBundle into the cache, replacing the one stored under the key.
+     *
+     * @param key    the key, must not be null.
+     * @param bundle the StateBundle, must not be null.
+     * @throws IllegalArgumentException if a value of the bundle cannot be encoded
+     */
+    public void put(@Nonnull String key, @Nonnull StateBundle bundle) {
+        if(key == null) {
+            throw new IllegalArgumentException("The provided key should not be null!");
+        }
+        if(bundle == null) {
+            throw new IllegalArgumentException("The provided bundle should not be null!");
+        }
+        CacheEntry entry = new CacheEntry(bundle, codec.encodeToEncoder(bundle, false).size());
+        List<String> evicted = new ArrayList<>();
+        synchronized(this) {
+            removeEntry(key);
+            entries.put(key, entry);
+            size += entry.weight;
+            trimToSize(evicted);
+        }
+        if(spillDirectory != null) {
+            synchronized(spillLock) {
+                boolean stale;
+                synchronized(this) {
+                    // if the entry was already spilled by another thread, the spill file is not stale anymore
+                    stale = entries.get(key) == entry || spilling.get(key) == entry;
+                }
+                if(stale) {
+                    spillFile(key).delete();
+                }
+                spill(evicted);
+            }
+        }
+    }
+
+    /**
+     * Returns the StateBundle stored under the key. A StateBundle that was spilled to disk is read back into memory.
+     *
+     * @param key the key, must not be null.
+     * @return the StateBundle, or null if the cache has no StateBundle for the key
+     */
+    @Nullable
+    public StateBundle get(@Nonnull String key) {
+        if(key == null) {
+            throw new IllegalArgumentException("The provided key should not be null!");
+        }
+        List<String> evicted = new ArrayList<>();
+        CacheEntry entry;
+        synchronized(this) {
+            entry = findCached(key, evicted);
+            if(entry == null && spillDirectory == null) {
+                missCount++;
+                return null;
+            }
+        }
+        if(entry == null || !evicted.isEmpty()) {
+            synchronized(spillLock) {
+                if(entry == null) {
+                    entry = load(key, evicted);
+                }
+                spill(evicted);
+            }
+        }
+        return entry == null ? null : entry.bundle;
+    }
+
+    /**
+     * Removes the StateBundle stored under the key, from memory and from disk.
+     *
+     * @param key the key, must not be null.
+     */
+    public void remove(@Nonnull String key) {
+        if(key == null) {
+            throw new IllegalArgumentException("The provided key should not be null!");
+        }
+        synchronized(spillLock) {
+            synchronized(this) {
+                removeEntry(key);
+            }
+            if(spillDirectory != null) {
+                spillFile(key).delete();
+            }
+        }
+    }
+
+    /**
+     * Removes every StateBundle, from memory and from disk.
+     */
+    public void clear() {
+        synchronized(spillLock) {
+            synchronized(this) {
+                entries.clear();
+                spilling.clear();
+                size = 0;
+            }
+            if(spillDirectory != null) {
+                File[] files = spillDirectory.listFiles();
+                if(files != null) {
+                    for(File file : files) {
+                        if(file.getName().endsWith(SPILL_SUFFIX)) {
+                            file.delete();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the total size of the StateBundles kept in memory, in bytes.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of times {@link #get(String)} found the StateBundle in memory.
+     */
+    public synchronized long hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of times {@link #get(String)} read the StateBundle back from disk.
+     */
+    public synchronized long spillHitCount() {
+        return spillHitCount;
+    }
+
+    /**
+     * Returns the number of times {@link #get(String)} did not find the StateBundle.
+     */
+    public synchronized long missCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of StateBundles that were evicted from memory.
+     */
+    public synchronized long evictionCount() {
+        return evictionCount;
+    }
+
+    private void removeEntry(String key) {
+        CacheEntry previous = entries.remove(key);
+        if(previous != null) {
+            size -= previous.weight;
+        }
+        spilling.remove(key);
+    }
+
+    // Returns the entry kept in memory, also if it was evicted but not spilled yet. Must be called with the cache locked.
+    private CacheEntry findCached(String key, List<String> evicted) {
+        CacheEntry entry = entries.get(key);
+        if(entry == null) {
+            entry = spilling.remove(key);
+            if(entry != null) {
+                entries.put(key, entry);
+                size += entry.weight;
+                trimToSize(evicted);
+            }
+        }
+        if(entry != null) {
+            hitCount++;
+        }
+        return entry;
+    }
+
+    // Evicts the least recently used entries, which are spilled by the caller once the cache is unlocked
+    private void trimToSize(List<String> evicted) {
+        Iterator<Map.Entry<String, CacheEntry>> iterator = entries.entrySet().iterator();
+        while(size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, CacheEntry> eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue().weight;
+            evictionCount++;
+            if(spillDirectory != null) {
+                spilling.put(eldest.getKey(), eldest.getValue());
+                evicted.add(eldest.getKey());
+            }
+        }
+    }
+
+    // Reads the spilled entry back into memory. Must be called with the spill lock held.
+    private CacheEntry load(String key, List<String> evicted) {
+        File spillFile = spillFile(key);
+        CacheEntry spilled = null;
+        if(spillFile.exists()) {
+            spilled = readSpilled(spillFile, key);
+            spillFile.delete();
+        }
+        synchronized(this) {
+            // the key may have been put while the file was read, then the spilled entry is stale
+            CacheEntry entry = findCached(key, evicted);
+            if(entry != null) {
+                return entry;
+            }
+            if(spilled == null) {
+                missCount++;
+                return null;
+            }
+            spillHitCount++;
+            entries.put(key, spilled);
+            size += spilled.weight;
+            trimToSize(evicted);
+            return spilled;
+        }
+    }
+
+    // Writes the evicted entries which are still waiting to be spilled. Must be called with the spill lock held.
+    private void spill(List<String> evicted) {
+        for(String key : evicted) {
+            CacheEntry entry;
+            synchronized(this) {
+                entry = spilling.get(key);
+            }
+            if(entry == null) {
+                continue; // already spilled, read back or removed
+            }
+            write(key, entry.bundle);
+            synchronized(this) {
+                if(spilling.get(key) == entry) {
+                    spilling.remove(key);
+                }
+            }
+        }
+    }
+
+    // The spill file starts with the key, as the file name is only a hash of it
+    private void write(String key, StateBundle bundle) {
+        File spillFile = spillFile(key);
+        byte[] encoded = codec.encode(bundle);
+        byte[] keyBytes = key.getBytes(StateBundleEncoder.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + keyBytes.length + encoded.length);
+        buffer.putInt(keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.put(encoded);
+        try {
+            AtomicFiles.write(spillFile, buffer.array());
+        } catch(IOException e) {
+            // the entry is dropped, just like without a spill directory
+            spillFile.delete();
+        }
+    }
+
+    private CacheEntry readSpilled(File spillFile, String key) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(AtomicFiles.read(spillFile));
+            byte[] keyBytes = new byte[buffer.getInt()];
+            buffer.get(keyBytes);
+            if(!key.equals(new String(keyBytes, StateBundleEncoder.UTF_8))) {
+                return null;
+            }
+            int weight = buffer.remaining();
+            return new CacheEntry(codec.decode(buffer), weight);
+        } catch(IOException | BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            // an unreadable entry is treated as a miss
+            return null;
+        }
+    }
+
+    private File spillFile(String key) {
+        return new File(spillDirectory, StateBundleSnapshotStore.toHex(StateBundleSnapshotStore.sha256(key.getBytes(StateBundleEncoder.UTF_8))) + SPILL_SUFFIX);
+    }
+}
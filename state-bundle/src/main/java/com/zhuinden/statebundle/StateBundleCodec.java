@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Encodes a {@link StateBundle} tree into a compact binary form that can be written to a file, and decodes it.
+ *
+ * Unlike {@link StateBundle#writeToParcel(android.os.Parcel, int)}, this does not need the Android runtime,
+ * except for Parcelable values (other than StateBundles) which are marshalled through a Parcel.
+ *
+ * CharSequence values are stored as Strings, so styling spans are not kept.
+ *
+ * A canonical codec (see {@link Builder#setCanonical(boolean)}) writes the keys of each bundle in sorted order and
+ * writes every NaN with the same bits, so bundles that are equal produce the same bytes.
+ *
+ * Bundles that match a schema registered with {@link Builder#addSchema(StateBundleSchema)} are encoded without their keys and types.
+ * Data that uses schemas can only be decoded by a codec that has the same schemas.
+ *
+ * With a key dictionary (see {@link Builder#setKeyDictionary(boolean)}), each distinct key of the bundle tree is written once.
+ *
+ * With compact integers (see {@link Builder#setCompactIntegers(boolean)}), integer values and arrays are written with a variable length.
+ *
+ * With packed booleans (see {@link Builder#setPackedBooleans(boolean)}), booleans are written as bits.
+ *
+ * With shared values (see {@link Builder#setSharedValues(boolean)}), a value stored more than once is written once,
+ * and decoded as a single instance.
+ */
+public class StateBundleCodec {
+    static final byte MAGIC_0 = 'S';
+    static final byte MAGIC_1 = 'B';
+    static final byte VERSION = 1;
+
+    static final byte FLAG_CANONICAL = 1;
+    static final byte FLAG_SCHEMAS = 2;
+    static final byte FLAG_KEY_DICTIONARY = 4;
+    static final byte FLAG_COMPACT_INTEGERS = 8;
+    static final byte FLAG_PACKED_BOOLEANS = 16;
+    static final byte FLAG_SHARED_VALUES = 32;
+    static final byte KNOWN_FLAGS = FLAG_CANONICAL | FLAG_SCHEMAS | FLAG_KEY_DICTIONARY | FLAG_COMPACT_INTEGERS | FLAG_PACKED_BOOLEANS | FLAG_SHARED_VALUES;
+
+    // how the elements of an integer array are written in compact integer mode
+    static final byte INTEGERS_FIXED = 0;
+    static final byte INTEGERS_VARINT = 1;
+    static final byte INTEGERS_DELTA = 2;
+
+    // written instead of a schema id for bundles that do not match any schema
+    static final int NO_SCHEMA = 0;
+
+    static final byte PARCELABLE_STATE_BUNDLE = 0;
+    static final byte PARCELABLE_PARCEL = 1;
+
+    /**
+     * Builds a StateBundleCodec with non-default options.
+     */
+    public static class Builder {
+        private ClassLoader classLoader = StateBundleCodec.class.getClassLoader();
+        private boolean canonical;
+        private boolean keyDictionary;
+        private boolean compactIntegers;
+        private boolean packedBooleans;
+        private boolean sharedValues;
+        private final Map<Integer, StateBundleSchema> schemas = new LinkedHashMap<>();
+
+        /**
+         * Sets the class loader used to load Parcelable classes.
+         *
+         * @param classLoader the class loader, must not be null.
+         * @return the builder
+         */
+        @Nonnull
+        public Builder setClassLoader(@Nonnull ClassLoader classLoader) {
+            if(classLoader == null) {
+                throw new IllegalArgumentException("The provided class loader should not be null!");
+            }
+            this.classLoader = classLoader;
+            return this;
+        }
+
+        /**
+         * Sets whether the encoding is canonical: keys are written in sorted order (null first) at every level,
+         * and all NaN values are written with the same bits. Positive and negative zero stay distinct, just like in {@link StateBundle#equals(Object)}.
+         *
+         * Serializable values and Parcelables other than StateBundles are written as they serialize themselves,
+         * so they are only canonical if their own serialized form is.
+         *
+         * @param canonical whether the encoding is canonical
+         * @return the builder
+         */
+        @Nonnull
+        public Builder setCanonical(boolean canonical) {
+            this.canonical = canonical;
+            return this;
+        }
+
+        /**
+         * Sets whether the distinct keys of the bundle tree are written once, at the start of the data.
+         * The entries of the bundles then refer to the keys by index, and the decoded bundles share the key Strings.
+         *
+         * This makes the data smaller if nested bundles, or the bundles in a list, have the same keys.
+         *
+         * @param keyDictionary whether to write a key dictionary
+         * @return the builder
+         */
+        @Nonnull
+        public Builder setKeyDictionary(boolean keyDictionary) {
+            this.keyDictionary = keyDictionary;
+            return this;
+        }
+
+        /**
+         * Sets whether int and long values, and the elements of int[], long[] and Integer ArrayList values, are written
+         * as zigzag varints, so that values close to zero take fewer bytes.
+         *
+         * For each array, the elements are written either at fixed width, as varints, or as varint differences from the
+         * previous element (which is small for sorted arrays such as ids or timestamps), whichever is the smallest.
+         *
+         * @param compactIntegers whether to write compact integers
+         * @return the builder
+         */
+        @Nonnull
+        public Builder setCompactIntegers(boolean compactIntegers) {
+            this.compactIntegers = compactIntegers;
+            return this;
+        }
+
+        /**
+         * Sets whether booleans are written as bits: the elements of boolean[] values 8 per byte,
+         * and the boolean values of each bundle together in one bitset before its other entries.
+         *
+         * @param packedBooleans whether to write packed booleans
+         * @return the builder
+         */
+        @Nonnull
+        public Builder setPackedBooleans(boolean packedBooleans) {
+            this.packedBooleans = packedBooleans;
+            return this;
+        }
+
+        /**
+         * Sets whether the identity of values is preserved: if the same array, list, nested StateBundle or other object is
+         * stored under several keys of the bundle tree, it is written once and referenced afterwards, and the decoded
+         * bundle tree shares a single decoded instance in the same places. Nulls, primitive values, Strings, CharSequences,
+         * sizes, enums, UUIDs and BigDecimals are not tracked.
+         *
+         * The bundle tree must not contain cycles, just like without this option. Shared values cannot be combined with
+         * {@link #setCanonical(boolean)}, as bundles that are equal may share different values.
+         *
+         * @param sharedValues whether to preserve the identity of values
+         * @return the builder
+         */
+        @Nonnull
+        public Builder setSharedValues(boolean sharedValues) {
+            this.sharedValues = sharedValues;
+            return this;
+        }
+
+        /**
+         * Registers a schema. Bundles that match the schema are encoded as its id followed by the values.
+         *
+         * @param schema the schema, must not be null.
+         * @return the builder
+         */
+        @Nonnull
+        public Builder addSchema(@Nonnull StateBundleSchema schema) {
+            if(schema == null) {
+                throw new IllegalArgumentException("The provided schema should not be null!");
+            }
+            if(schemas.containsKey(schema.getId())) {
+                throw new IllegalArgumentException("A schema with id [" + schema.getId() + "] is already registered!");
+            }
+            schemas.put(schema.getId(), schema);
+            return this;
+        }
+
+        /**
+         * Creates the StateBundleCodec.
+         *
+         * @return the codec
+         * @throws IllegalStateException if both canonical encoding and shared values are enabled
+         */
+        @Nonnull
+        public StateBundleCodec build() {
+            if(canonical && sharedValues) {
+                // equal bundle trees may share different values, so they would not produce the same bytes
+                throw new IllegalStateException("A canonical codec cannot preserve shared values!");
+            }
+            return new StateBundleCodec(this);
+        }
+    }
+
+    private final ClassLoader classLoader;
+    private final boolean canonical;
+    private final boolean keyDictionary;
+    private final boolean compactIntegers;
+    private final boolean packedBooleans;
+    private final boolean sharedValues;
+    private final Map<Integer, StateBundleSchema> schemas;
+    private final StateBundleSchema[] schemaArray;
+
+    /**
+     * Constructs a StateBundleCodec that loads Parcelable and Serializable classes with the class loader of the library.
+     */
+    public StateBundleCodec() {
+        this(StateBundleCodec.class.getClassLoader());
+    }
+
+    /**
+     * Constructs a StateBundleCodec that loads Parcelable classes with the given class loader.
+     *
+     * @param classLoader the class loader, must not be null.
+     */
+    public StateBundleCodec(@Nonnull ClassLoader classLoader) {
+        if(classLoader == null) {
+            throw new IllegalArgumentException("The provided class loader should not be null!");
+        }
+        this.classLoader = classLoader;
+        this.canonical = false;
+        this.keyDictionary = false;
+        this.compactIntegers = false;
+        this.packedBooleans = false;
+        this.sharedValues = false;
+        this.schemas = Collections.emptyMap();
+        this.schemaArray = null;
+    }
+
+    private StateBundleCodec(Builder builder) {
+        this.classLoader = builder.classLoader;
+        this.canonical = builder.canonical;
+        this.keyDictionary = builder.keyDictionary;
+        this.compactIntegers = builder.compactIntegers;
+        this.packedBooleans = builder.packedBooleans;
+        this.sharedValues = builder.sharedValues;
+        this.schemas = new HashMap<>(builder.schemas);
+        this.schemaArray = schemas.isEmpty() ? null : builder.schemas.values().toArray(new StateBundleSchema[schemas.size()]);
+    }
+
+    /**
+     * Returns whether the codec produces canonical output, see {@link Builder#setCanonical(boolean)}.
+     *
+     * @return whether the encoding is canonical
+     */
+    public boolean isCanonical() {
+        return canonical;
+    }
+
+    /**
+     * Encodes the StateBundle into a byte array.
+     *
+     * @param bundle the StateBundle, must not be null.
+     * @return the encoded bytes
+     * @throws IllegalArgumentException if a value of the bundle cannot be encoded
+     */
+    @Nonnull
+    public byte[] encode(@Nonnull StateBundle bundle) {
+        return encodeToEncoder(bundle, true).toByteArray();
+    }
+
+    /**
+     * Encodes the StateBundle and writes it into the OutputStream. The stream is not closed.
+     *
+     * @param bundle       the StateBundle, must not be null.
+     * @param outputStream the OutputStream, must not be null.
+     * @throws IOException if the stream could not be written
+     */
+    public void encode(@Nonnull StateBundle bundle, @Nonnull OutputStream outputStream)
+            throws IOException {
+        if(outputStream == null) {
+            throw new IllegalArgumentException("The provided output stream should not be null!");
+        }
+        outputStream.write(encode(bundle));
+    }
+
+    ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    // Fingerprinting and measuring also encode, but they should not count as Java serialization fallbacks
+    StateBundleEncoder encodeToEncoder(StateBundle bundle, boolean countFallbacks) {
+        if(bundle == null) {
+            throw new IllegalArgumentException("The provided bundle should not be null!");
+        }
+        StateBundleEncoder encoder = new StateBundleEncoder(canonical, schemaArray);
+        encoder.writeByte(MAGIC_0);
+        encoder.writeByte(MAGIC_1);
+        encoder.writeByte(VERSION);
+        encoder.writeByte((byte) ((canonical ? FLAG_CANONICAL : 0)
+                | (schemaArray != null ? FLAG_SCHEMAS : 0)
+                | (keyDictionary ? FLAG_KEY_DICTIONARY : 0)
+                | (compactIntegers ? FLAG_COMPACT_INTEGERS : 0)
+                | (packedBooleans ? FLAG_PACKED_BOOLEANS : 0)
+                | (sharedValues ? FLAG_SHARED_VALUES : 0)));
+        encoder.setCompactIntegers(compactIntegers);
+        encoder.setPackedBooleans(packedBooleans);
+        encoder.setSharedValues(sharedValues);
+        encoder.setClassDictionary(true);
+        encoder.setCountFallbacks(countFallbacks);
+        try {
+            if(keyDictionary) {
+                encoder.writeKeyDictionary(bundle);
+            }
+            encoder.writeBundle(bundle);
+        } catch(IOException e) {
+            throw new IllegalArgumentException("The provided bundle could not be encoded", e);
+        }
+        return encoder;
+    }
+
+    /**
+     * Decodes a StateBundle from a byte array.
+     *
+     * @param bytes the encoded bytes, must not be null.
+     * @return the decoded StateBundle
+     * @throws IllegalArgumentException if the bytes are not a valid encoded StateBundle
+     */
+    @Nonnull
+    public StateBundle decode(@Nonnull byte[] bytes) {
+        if(bytes == null) {
+            throw new IllegalArgumentException("The provided bytes should not be null!");
+        }
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decodes a StateBundle from the remaining bytes of the ByteBuffer.
+     *
+     * @param buffer the buffer, must not be null.
+     * @return the decoded StateBundle
+     * @throws IllegalArgumentException if the bytes are not a valid encoded StateBundle
+     */
+    @Nonnull
+    public StateBundle decode(@Nonnull ByteBuffer buffer) {
+        if(buffer == null) {
+            throw new IllegalArgumentException("The provided buffer should not be null!");
+        }
+        StateBundleDecoder decoder = new StateBundleDecoder(buffer.slice(), classLoader);
+        try {
+            if(decoder.readByte() != MAGIC_0 || decoder.readByte() != MAGIC_1) {
+                throw new IllegalArgumentException("Malformed data: not an encoded StateBundle");
+            }
+            byte version = decoder.readByte();
+            if(version != VERSION) {
+                throw new IllegalArgumentException("Malformed data: unsupported version [" + version + "]");
+            }
+            byte flags = decoder.readByte();
+            if((flags & ~KNOWN_FLAGS) != 0) {
+                throw new IllegalArgumentException("Malformed data: unsupported flags [" + flags + "]");
+            }
+            if((flags & FLAG_SCHEMAS) != 0) {
+                decoder.setSchemas(schemas);
+            }
+            decoder.setCompactIntegers((flags & FLAG_COMPACT_INTEGERS) != 0);
+            decoder.setPackedBooleans((flags & FLAG_PACKED_BOOLEANS) != 0);
+            decoder.setSharedValues((flags & FLAG_SHARED_VALUES) != 0);
+            decoder.setClassDictionary(true);
+            if((flags & FLAG_KEY_DICTIONARY) != 0) {
+                decoder.readKeyDictionary();
+            }
+            StateBundle bundle = decoder.readBundle();
+            if(decoder.hasRemaining()) {
+                throw new IllegalArgumentException("Malformed data: unexpected trailing bytes");
+            }
+            return bundle;
+        } catch(BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed data: unexpected end of data", e);
+        } catch(IOException e) {
+            throw new IllegalArgumentException("The encoded bundle could not be decoded", e);
+        }
+    }
+
+    /**
+     * Reads the InputStream until its end and decodes a StateBundle from it. The stream is not closed.
+     *
+     * @param inputStream the InputStream, must not be null.
+     * @return the decoded StateBundle
+     * @throws IOException if the stream could not be read
+     */
+    @Nonnull
+    public StateBundle decode(@Nonnull InputStream inputStream)
+            throws IOException {
+        if(inputStream == null) {
+            throw new IllegalArgumentException("The provided input stream should not be null!");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = inputStream.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return decode(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,700 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.SparseArray;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Reads the binary form of a StateBundle tree, see {@link StateBundleCodec}.
+ */
+final class StateBundleDecoder {
+    // the placeholder of a shared value that is being read
+    private static final Object PENDING = new Object();
+
+    private final ByteBuffer buffer;
+    private final ClassLoader classLoader;
+    private Map<Integer, StateBundleSchema> schemas;
+    private String[] keys;
+    private boolean compactIntegers;
+    private boolean packedBooleans;
+
+    // the values read so far in the order they were written, if identities are preserved
+    private List<Object> sharedValues;
+
+    // the enum classes read so far, if enum classes are written once
+    private List<Class<?>> classes;
+
+    StateBundleDecoder(ByteBuffer buffer, ClassLoader classLoader) {
+        this.buffer = buffer;
+        this.classLoader = classLoader;
+    }
+
+    // If there are schemas, each bundle starts with the id of its schema as a varint
+    void setSchemas(Map<Integer, StateBundleSchema> schemas) {
+        this.schemas = schemas;
+    }
+
+    boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+
+    boolean readBoolean() {
+        return buffer.get() != 0;
+    }
+
+    byte readByte() {
+        return buffer.get();
+    }
+
+    char readChar() {
+        return buffer.getChar();
+    }
+
+    short readShort() {
+        return buffer.getShort();
+    }
+
+    int readInt() {
+        return buffer.getInt();
+    }
+
+    long readLong() {
+        return buffer.getLong();
+    }
+
+    float readFloat() {
+        return buffer.getFloat();
+    }
+
+    double readDouble() {
+        return buffer.getDouble();
+    }
+
+    int readVarInt() {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed data: invalid varint");
+    }
+
+    long readVarLong() {
+        long value = 0;
+        for(int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed data: invalid varint");
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    void setCompactIntegers(boolean compactIntegers) {
+        this.compactIntegers = compactIntegers;
+    }
+
+    void setPackedBooleans(boolean packedBooleans) {
+        this.packedBooleans = packedBooleans;
+    }
+
+    void setClassDictionary(boolean classDictionary) {
+        this.classes = classDictionary ? new ArrayList<Class<?>>() : null;
+    }
+
+    private Class<?> readEnumClass()
+            throws IOException {
+        int reference = readVarInt();
+        if(reference == 0) {
+            Class<?> enumClass = findEnumClass(readStringValue(), classLoader);
+            if(classes != null) {
+                classes.add(enumClass);
+            }
+            return enumClass;
+        }
+        if(classes == null || reference < 0 || reference > classes.size()) {
+            throw new IllegalArgumentException("Malformed data: invalid class reference [" + reference + "]");
+        }
+        return classes.get(reference - 1);
+    }
+
+    static Class<?> findEnumClass(String name, ClassLoader classLoader)
+            throws IOException {
+        Class<?> enumClass;
+        try {
+            // the class is only initialized once it is known to be an enum
+            enumClass = Class.forName(name, false, classLoader != null ? classLoader : StateBundle.class.getClassLoader());
+        } catch(ClassNotFoundException e) {
+            throw new IOException("Could not find enum class [" + name + "]", e);
+        }
+        if(!enumClass.isEnum()) {
+            throw new IllegalArgumentException("Malformed data: [" + name + "] is not an enum class");
+        }
+        return enumClass;
+    }
+
+    static Enum<?> enumConstant(Class<?> enumClass, String name) {
+        for(Object constant : enumClass.getEnumConstants()) {
+            if(((Enum<?>) constant).name().equals(name)) {
+                return (Enum<?>) constant;
+            }
+        }
+        throw new IllegalArgumentException("[" + enumClass.getName() + "] has no constant [" + name + "]");
+    }
+
+    void setSharedValues(boolean sharedValues) {
+        this.sharedValues = sharedValues ? new ArrayList<>() : null;
+    }
+
+    boolean[] readBits(int count) {
+        byte[] packed = new byte[(count + 7) / 8];
+        buffer.get(packed);
+        boolean[] bits = new boolean[count];
+        for(int i = 0; i < count; i++) {
+            bits[i] = (packed[i / 8] & (1 << (i % 8))) != 0;
+        }
+        return bits;
+    }
+
+    // Every element takes at least one byte, so a count larger than the remaining bytes is invalid
+    private int readVarLength() {
+        int length = readVarInt();
+        if(length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed data: invalid length [" + length + "]");
+        }
+        return length;
+    }
+
+    private int[] readCompactInts(int count) {
+        byte mode = readByte();
+        int[] values = new int[count];
+        int previous = 0;
+        for(int i = 0; i < count; i++) {
+            switch(mode) {
+                case StateBundleCodec.INTEGERS_FIXED:
+                    values[i] = readInt();
+                    break;
+                case StateBundleCodec.INTEGERS_VARINT:
+                    values[i] = unzigzag(readVarInt());
+                    break;
+                case StateBundleCodec.INTEGERS_DELTA:
+                    previous += unzigzag(readVarInt());
+                    values[i] = previous;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Malformed data: unknown integer mode [" + mode + "]");
+            }
+        }
+        return values;
+    }
+
+    private long[] readCompactLongs(int count) {
+        byte mode = readByte();
+        long[] values = new long[count];
+        long previous = 0;
+        for(int i = 0; i < count; i++) {
+            switch(mode) {
+                case StateBundleCodec.INTEGERS_FIXED:
+                    values[i] = readLong();
+                    break;
+                case StateBundleCodec.INTEGERS_VARINT:
+                    values[i] = unzigzag(readVarLong());
+                    break;
+                case StateBundleCodec.INTEGERS_DELTA:
+                    previous += unzigzag(readVarLong());
+                    values[i] = previous;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Malformed data: unknown integer mode [" + mode + "]");
+            }
+        }
+        return values;
+    }
+
+    private ArrayList<Integer> readCompactIntegerList() {
+        int size = readVarLength();
+        byte[] nullMasks = null;
+        if(readBoolean()) {
+            nullMasks = new byte[(size + 7) / 8];
+            buffer.get(nullMasks);
+        }
+        int count = size;
+        if(nullMasks != null) {
+            for(int i = 0; i < size; i++) {
+                if((nullMasks[i / 8] & (1 << (i % 8))) != 0) {
+                    count--;
+                }
+            }
+        }
+        int[] values = readCompactInts(count);
+        ArrayList<Integer> list = new ArrayList<>(size);
+        int valueIndex = 0;
+        for(int i = 0; i < size; i++) {
+            if(nullMasks != null && (nullMasks[i / 8] & (1 << (i % 8))) != 0) {
+                list.add(null);
+            } else {
+                list.add(values[valueIndex++]);
+            }
+        }
+        return list;
+    }
+
+    int readLength() {
+        int length = readInt();
+        if(length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed data: invalid length [" + length + "]");
+        }
+        return length;
+    }
+
+    // The length of an array of elements of the given size, validated against the remaining bytes
+    private int readArrayLength(int elementSize) {
+        int length = readInt();
+        if(length < 0 || (long) length * elementSize > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed data: invalid length [" + length + "]");
+        }
+        return length;
+    }
+
+    private byte[] readNonEmptyBytes() {
+        byte[] bytes = readBytes();
+        if(bytes.length == 0) {
+            throw new IllegalArgumentException("Malformed data: empty number");
+        }
+        return bytes;
+    }
+
+    byte[] readBytes() {
+        byte[] bytes = new byte[readLength()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    String readString() {
+        if(!readBoolean()) {
+            return null;
+        }
+        return readStringValue();
+    }
+
+    private String readStringValue() {
+        return readUtf8(readLength());
+    }
+
+    private String readUtf8(int length) {
+        if(!buffer.hasArray()) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StateBundleEncoder.UTF_8);
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StateBundleEncoder.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    void readKeyDictionary() {
+        int count = readVarInt();
+        if(count < 0 || count > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed data: invalid key count [" + count + "]");
+        }
+        keys = new String[count];
+        for(int i = 0; i < count; i++) {
+            int length = readVarInt();
+            if(length < 0 || length > buffer.remaining()) {
+                throw new IllegalArgumentException("Malformed data: invalid length [" + length + "]");
+            }
+            keys[i] = readUtf8(length);
+        }
+    }
+
+    private String readKey() {
+        if(keys == null) {
+            return readString();
+        }
+        int index = readVarInt();
+        if(index == 0) {
+            return null;
+        }
+        if(index < 0 || index > keys.length) {
+            throw new IllegalArgumentException("Malformed data: invalid key index [" + index + "]");
+        }
+        return keys[index - 1];
+    }
+
+    StateBundle readBundle()
+            throws IOException {
+        if(schemas != null) {
+            int schemaId = readVarInt();
+            if(schemaId != StateBundleCodec.NO_SCHEMA) {
+                StateBundleSchema schema = schemas.get(schemaId);
+                if(schema == null) {
+                    throw new IllegalArgumentException("Malformed data: unknown schema [" + schemaId + "]");
+                }
+                return readSchemaBundle(schema);
+            }
+        }
+        int size = readLength();
+        boolean[] booleans = null;
+        int booleanIndex = 0;
+        if(packedBooleans) {
+            int count = readVarInt();
+            if(count < 0 || count > size) {
+                throw new IllegalArgumentException("Malformed data: invalid boolean count [" + count + "]");
+            }
+            booleans = readBits(count);
+        }
+        StateBundle bundle = new StateBundle(size);
+        for(int i = 0; i < size; i++) {
+            int type = readByte();
+            String key = readKey();
+            Object value;
+            if(booleans != null && type == StateBundle.type_boolean) {
+                if(booleanIndex == booleans.length) {
+                    throw new IllegalArgumentException("Malformed data: missing boolean value");
+                }
+                value = booleans[booleanIndex++];
+            } else {
+                value = readValue(type);
+            }
+            bundle.map.put(key, value);
+            bundle.typeMap.put(key, type);
+        }
+        return bundle;
+    }
+
+    private StateBundle readSchemaBundle(StateBundleSchema schema)
+            throws IOException {
+        int size = schema.size();
+        byte[] masks = new byte[(size + 7) / 8];
+        buffer.get(masks);
+        boolean[] booleans = null;
+        int booleanIndex = 0;
+        if(packedBooleans) {
+            int count = 0;
+            for(int i = 0; i < size; i++) {
+                if(schema.getType(i) == StateBundle.type_boolean && (masks[i / 8] & (1 << (i % 8))) != 0) {
+                    count++;
+                }
+            }
+            booleans = readBits(count);
+        }
+        StateBundle bundle = new StateBundle(size);
+        for(int i = 0; i < size; i++) {
+            if((masks[i / 8] & (1 << (i % 8))) != 0) {
+                String key = schema.getKey(i);
+                int type = schema.getType(i);
+                bundle.map.put(key, booleans != null && type == StateBundle.type_boolean ? booleans[booleanIndex++] : readValue(type));
+                bundle.typeMap.put(key, type);
+            }
+        }
+        return bundle;
+    }
+
+    Object readValue(int type)
+            throws IOException {
+        if(sharedValues != null && StateBundleEncoder.isShareable(type)) {
+            int reference = readVarInt();
+            if(reference != 0) {
+                // a value that is still being read can only be referenced by a cycle
+                if(reference < 0 || reference > sharedValues.size() || sharedValues.get(reference - 1) == PENDING) {
+                    throw new IllegalArgumentException("Malformed data: invalid reference [" + reference + "]");
+                }
+                return sharedValues.get(reference - 1);
+            }
+            int index = sharedValues.size();
+            sharedValues.add(PENDING);
+            Object value = readValueContent(type);
+            if(value != null) {
+                sharedValues.set(index, value);
+            } else {
+                // a null has no nested values, so its placeholder is the last one
+                sharedValues.remove(index);
+            }
+            return value;
+        }
+        return readValueContent(type);
+    }
+
+    private Object readValueContent(int type)
+            throws IOException {
+        switch(type) {
+            case StateBundle.type_boolean:
+                return readBoolean();
+            case StateBundle.type_byte:
+                return readByte();
+            case StateBundle.type_char:
+                return readChar();
+            case StateBundle.type_short:
+                return readShort();
+            case StateBundle.type_int:
+                return compactIntegers ? unzigzag(readVarInt()) : readInt();
+            case StateBundle.type_long:
+                return compactIntegers ? unzigzag(readVarLong()) : readLong();
+            case StateBundle.type_float:
+                return readFloat();
+            case StateBundle.type_double:
+                return readDouble();
+            case StateBundle.type_Size:
+                return compactIntegers ? StateBundleSize.pack(unzigzag(readVarInt()), unzigzag(readVarInt())) : readLong();
+            case StateBundle.type_SizeF:
+                return readLong();
+        }
+        if(!readBoolean()) {
+            return null;
+        }
+        switch(type) {
+            case StateBundle.type_String:
+            case StateBundle.type_CharSequence:
+                return readStringValue();
+            case StateBundle.type_Serializable:
+                return readSerializable();
+            case StateBundle.type_Enum: {
+                Class<?> enumClass = readEnumClass();
+                return enumConstant(enumClass, readStringValue());
+            }
+            case StateBundle.type_UUID:
+                return new UUID(readLong(), readLong());
+            case StateBundle.type_Date:
+                return new Date(compactIntegers ? unzigzag(readVarLong()) : readLong());
+            case StateBundle.type_BigDecimal: {
+                int scale = unzigzag(readVarInt());
+                return new BigDecimal(new BigInteger(readNonEmptyBytes()), scale);
+            }
+            case StateBundle.type_IntegerArrayList: {
+                if(compactIntegers) {
+                    return readCompactIntegerList();
+                }
+                int size = readLength();
+                ArrayList<Integer> list = new ArrayList<>(size);
+                for(int i = 0; i < size; i++) {
+                    list.add(readBoolean() ? readInt() : null);
+                }
+                return list;
+            }
+            case StateBundle.type_StringArrayList: {
+                int size = readLength();
+                ArrayList<String> list = new ArrayList<>(size);
+                for(int i = 0; i < size; i++) {
+                    list.add(readString());
+                }
+                return list;
+            }
+            case StateBundle.type_CharSequenceArrayList: {
+                int size = readLength();
+                ArrayList<CharSequence> list = new ArrayList<>(size);
+                for(int i = 0; i < size; i++) {
+                    list.add(readString());
+                }
+                return list;
+            }
+            case StateBundle.type_BooleanArray: {
+                if(packedBooleans) {
+                    int length = readInt();
+                    if(length < 0 || (length + 7L) / 8 > buffer.remaining()) {
+                        throw new IllegalArgumentException("Malformed data: invalid length [" + length + "]");
+                    }
+                    return readBits(length);
+                }
+                boolean[] array = new boolean[readLength()];
+                for(int i = 0; i < array.length; i++) {
+                    array[i] = readBoolean();
+                }
+                return array;
+            }
+            case StateBundle.type_ByteArray:
+                return readBytes();
+            case StateBundle.type_ShortArray: {
+                short[] array = new short[readArrayLength(2)];
+                buffer.asShortBuffer().get(array);
+                buffer.position(buffer.position() + array.length * 2);
+                return array;
+            }
+            case StateBundle.type_CharArray: {
+                char[] array = new char[readLength()];
+                for(int i = 0; i < array.length; i++) {
+                    array[i] = readChar();
+                }
+                return array;
+            }
+            case StateBundle.type_IntArray: {
+                if(compactIntegers) {
+                    return readCompactInts(readVarLength());
+                }
+                int[] array = new int[readArrayLength(4)];
+                buffer.asIntBuffer().get(array);
+                buffer.position(buffer.position() + array.length * 4);
+                return array;
+            }
+            case StateBundle.type_LongArray: {
+                if(compactIntegers) {
+                    return readCompactLongs(readVarLength());
+                }
+                long[] array = new long[readArrayLength(8)];
+                buffer.asLongBuffer().get(array);
+                buffer.position(buffer.position() + array.length * 8);
+                return array;
+            }
+            case StateBundle.type_FloatArray: {
+                float[] array = new float[readArrayLength(4)];
+                buffer.asFloatBuffer().get(array);
+                buffer.position(buffer.position() + array.length * 4);
+                return array;
+            }
+            case StateBundle.type_DoubleArray: {
+                double[] array = new double[readArrayLength(8)];
+                buffer.asDoubleBuffer().get(array);
+                buffer.position(buffer.position() + array.length * 8);
+                return array;
+            }
+            case StateBundle.type_StringArray: {
+                String[] array = new String[readLength()];
+                for(int i = 0; i < array.length; i++) {
+                    array[i] = readString();
+                }
+                return array;
+            }
+            case StateBundle.type_CharSequenceArray: {
+                CharSequence[] array = new CharSequence[readLength()];
+                for(int i = 0; i < array.length; i++) {
+                    array[i] = readString();
+                }
+                return array;
+            }
+            case StateBundle.type_StateBundle:
+                return readBundle();
+            case StateBundle.type_Parcelable:
+                return readParcelable();
+            case StateBundle.type_ParcelableArray: {
+                Parcelable[] array = new Parcelable[readLength()];
+                for(int i = 0; i < array.length; i++) {
+                    array[i] = readBoolean() ? readParcelable() : null;
+                }
+                return array;
+            }
+            case StateBundle.type_ParcelableArrayList: {
+                int size = readLength();
+                ArrayList<Parcelable> list = new ArrayList<>(size);
+                for(int i = 0; i < size; i++) {
+                    list.add(readBoolean() ? readParcelable() : null);
+                }
+                return list;
+            }
+            case StateBundle.type_SparseParcelableArray: {
+                int size = readLength();
+                SparseArray<Parcelable> sparseArray = new SparseArray<>(size);
+                for(int i = 0; i < size; i++) {
+                    int key = readInt();
+                    sparseArray.append(key, readBoolean() ? readParcelable() : null);
+                }
+                return sparseArray;
+            }
+            default: {
+                if(type < StateBundle.FIRST_CUSTOM_TYPE || StateBundle.typeCodec(type) == null) {
+                    throw new IllegalArgumentException("Malformed data: unknown type [" + type + "]");
+                }
+                return StateBundle.typeCodec(type).fromByteArray(readBytes());
+            }
+        }
+    }
+
+    Serializable readSerializable()
+            throws IOException {
+        int codecId = readVarInt();
+        if(codecId != 0) {
+            return (Serializable) StateBundleSerializables.codec(codecId).fromByteArray(readBytes());
+        }
+        ObjectInputStream objectInputStream = new ClassLoaderObjectInputStream(new ByteArrayInputStream(readBytes()), classLoader);
+        try {
+            return (Serializable) objectInputStream.readObject();
+        } catch(ClassNotFoundException e) {
+            throw new IOException("Could not read Serializable value", e);
+        } finally {
+            objectInputStream.close();
+        }
+    }
+
+    // Resolves the classes of a Serializable with the ClassLoader of the codec, instead of the one of the caller
+    private static class ClassLoaderObjectInputStream
+            extends ObjectInputStream {
+        private final ClassLoader classLoader;
+
+        ClassLoaderObjectInputStream(InputStream inputStream, ClassLoader classLoader)
+                throws IOException {
+            super(inputStream);
+            this.classLoader = classLoader != null ? classLoader : StateBundle.class.getClassLoader();
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, classLoader);
+            } catch(ClassNotFoundException e) {
+                return super.resolveClass(desc); // primitive types
+            }
+        }
+    }
+
+    Parcelable readParcelable()
+            throws IOException {
+        byte kind = readByte();
+        if(kind == StateBundleCodec.PARCELABLE_STATE_BUNDLE) {
+            return readBundle();
+        }
+        if(kind != StateBundleCodec.PARCELABLE_PARCEL) {
+            throw new IllegalArgumentException("Malformed data: unknown Parcelable kind [" + kind + "]");
+        }
+        byte[] bytes = readBytes();
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            return parcel.readParcelable(classLoader);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,869 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.SparseArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Writes the binary form of a StateBundle tree, see {@link StateBundleCodec}.
+ */
+final class StateBundleEncoder {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // sorts keys by their natural order, the null key first
+    static final Comparator<StateBundle.Entry> KEY_ORDER = new Comparator<StateBundle.Entry>() {
+        @Override
+        public int compare(StateBundle.Entry left, StateBundle.Entry right) {
+            String leftKey = left.getKey();
+            String rightKey = right.getKey();
+            if(leftKey == null) {
+                return rightKey == null ? 0 : -1;
+            }
+            return rightKey == null ? 1 : leftKey.compareTo(rightKey);
+        }
+    };
+
+    private final boolean canonical;
+    private final StateBundleSchema[] schemas;
+
+    // big-endian, which also applies to the views used to write primitive arrays in bulk
+    private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+    // the indices of the keys in the key dictionary, if one was written
+    private Map<String, Integer> keyIndices;
+
+    private boolean compactIntegers;
+    private boolean packedBooleans;
+
+    // whether Java serialization fallbacks are counted, only the encoding of StateBundleCodec.encode() counts them
+    private boolean countFallbacks;
+
+    // the indices of the values written so far, if identities are preserved
+    private IdentityHashMap<Object, Integer> sharedIndices;
+
+    // the indices of the enum classes written so far, if enum classes are written once
+    private Map<Class<?>, Integer> classIndices;
+
+    StateBundleEncoder() {
+        this(false);
+    }
+
+    StateBundleEncoder(boolean canonical) {
+        this(canonical, null);
+    }
+
+    // If there are schemas, each bundle starts with the id of the matching schema as a varint
+    StateBundleEncoder(boolean canonical, StateBundleSchema[] schemas) {
+        this.canonical = canonical;
+        this.schemas = schemas;
+    }
+
+    void ensureCapacity(int byteCount) {
+        if(buffer.remaining() < byteCount) {
+            int capacity = Math.max(buffer.capacity() * 2, buffer.position() + byteCount);
+            ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+    }
+
+    int size() {
+        return buffer.position();
+    }
+
+    void reset() {
+        buffer.clear();
+    }
+
+    // The backing array, valid up to size()
+    byte[] array() {
+        return buffer.array();
+    }
+
+    byte[] toByteArray() {
+        byte[] bytes = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    void writeBoolean(boolean value) {
+        writeByte(value ? (byte) 1 : (byte) 0);
+    }
+
+    void writeByte(byte value) {
+        ensureCapacity(1);
+        buffer.put(value);
+    }
+
+    void writeChar(char value) {
+        ensureCapacity(2);
+        buffer.putChar(value);
+    }
+
+    void writeShort(short value) {
+        ensureCapacity(2);
+        buffer.putShort(value);
+    }
+
+    void writeInt(int value) {
+        ensureCapacity(4);
+        buffer.putInt(value);
+    }
+
+    void writeLong(long value) {
+        ensureCapacity(8);
+        buffer.putLong(value);
+    }
+
+    // floatToIntBits and doubleToLongBits collapse every NaN into one value, the raw bits are written otherwise
+    void writeFloat(float value) {
+        ensureCapacity(4);
+        if(canonical) {
+            buffer.putInt(Float.floatToIntBits(value));
+        } else {
+            buffer.putFloat(value);
+        }
+    }
+
+    void writeDouble(double value) {
+        ensureCapacity(8);
+        if(canonical) {
+            buffer.putLong(Double.doubleToLongBits(value));
+        } else {
+            buffer.putDouble(value);
+        }
+    }
+
+    // Unsigned LEB128: 7 bits per byte, the high bit is set on every byte but the last
+    void writeVarInt(int value) {
+        ensureCapacity(5);
+        while((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    void writeVarLong(long value) {
+        ensureCapacity(10);
+        while((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    // Zigzag maps signed values to unsigned ones so that small negative values are small too: 0, -1, 1, -2 -> 0, 1, 2, 3
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static int varIntSize(int value) {
+        int size = 1;
+        while((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    void setCompactIntegers(boolean compactIntegers) {
+        this.compactIntegers = compactIntegers;
+    }
+
+    void setPackedBooleans(boolean packedBooleans) {
+        this.packedBooleans = packedBooleans;
+    }
+
+    void setCountFallbacks(boolean countFallbacks) {
+        this.countFallbacks = countFallbacks;
+    }
+
+    void setClassDictionary(boolean classDictionary) {
+        this.classIndices = classDictionary ? new HashMap<Class<?>, Integer>() : null;
+    }
+
+    // The class is written as 0 followed by its name, or with a class dictionary as its index + 1 if it was written before
+    private void writeEnumClass(Class<?> enumClass) {
+        if(classIndices != null) {
+            Integer index = classIndices.get(enumClass);
+            if(index != null) {
+                writeVarInt(index + 1);
+                return;
+            }
+            classIndices.put(enumClass, classIndices.size());
+        }
+        writeVarInt(0);
+        writeBytes(enumClass.getName().getBytes(UTF_8));
+    }
+
+    void setSharedValues(boolean sharedValues) {
+        this.sharedIndices = sharedValues ? new IdentityHashMap<Object, Integer>() : null;
+    }
+
+    // Primitives, packed sizes and immutable scalars are not shared, as sharing them would not preserve anything.
+    // This is decided by the type, so that the encoder and the decoder agree even if a value is decoded as another class.
+    static boolean isShareable(int type) {
+        switch(type) {
+            case StateBundle.type_String:
+            case StateBundle.type_CharSequence:
+            case StateBundle.type_Size:
+            case StateBundle.type_SizeF:
+            case StateBundle.type_Enum:
+            case StateBundle.type_UUID:
+            case StateBundle.type_BigDecimal:
+                return false;
+            default:
+                return type > StateBundle.type_double;
+        }
+    }
+
+    // 8 bits per byte, the first one in the lowest bit
+    void writeBits(boolean[] bits, int count) {
+        ensureCapacity((count + 7) / 8);
+        for(int i = 0; i < count; i += 8) {
+            int packed = 0;
+            for(int bit = 0; bit < 8 && i + bit < count; bit++) {
+                if(bits[i + bit]) {
+                    packed |= 1 << bit;
+                }
+            }
+            buffer.put((byte) packed);
+        }
+    }
+
+    // Writes the elements at fixed width, as zigzag varints, or as zigzag varint deltas, whichever is the smallest
+    private void writeCompactInts(int[] values, int count) {
+        long varIntSize = 0;
+        long deltaSize = 0;
+        int previous = 0;
+        for(int i = 0; i < count; i++) {
+            varIntSize += varIntSize(zigzag(values[i]));
+            deltaSize += varIntSize(zigzag(values[i] - previous));
+            previous = values[i];
+        }
+        if(4L * count <= varIntSize && 4L * count <= deltaSize) {
+            writeByte(StateBundleCodec.INTEGERS_FIXED);
+            for(int i = 0; i < count; i++) {
+                writeInt(values[i]);
+            }
+        } else if(varIntSize <= deltaSize) {
+            writeByte(StateBundleCodec.INTEGERS_VARINT);
+            for(int i = 0; i < count; i++) {
+                writeVarInt(zigzag(values[i]));
+            }
+        } else {
+            writeByte(StateBundleCodec.INTEGERS_DELTA);
+            previous = 0;
+            for(int i = 0; i < count; i++) {
+                writeVarInt(zigzag(values[i] - previous));
+                previous = values[i];
+            }
+        }
+    }
+
+    private void writeCompactLongs(long[] values) {
+        long varLongSize = 0;
+        long deltaSize = 0;
+        long previous = 0;
+        for(long value : values) {
+            varLongSize += varLongSize(zigzag(value));
+            deltaSize += varLongSize(zigzag(value - previous));
+            previous = value;
+        }
+        if(8L * values.length <= varLongSize && 8L * values.length <= deltaSize) {
+            writeByte(StateBundleCodec.INTEGERS_FIXED);
+            for(long value : values) {
+                writeLong(value);
+            }
+        } else if(varLongSize <= deltaSize) {
+            writeByte(StateBundleCodec.INTEGERS_VARINT);
+            for(long value : values) {
+                writeVarLong(zigzag(value));
+            }
+        } else {
+            writeByte(StateBundleCodec.INTEGERS_DELTA);
+            previous = 0;
+            for(long value : values) {
+                writeVarLong(zigzag(value - previous));
+                previous = value;
+            }
+        }
+    }
+
+    // The nulls are written as a bitmask, only if there are any
+    private void writeCompactIntegerList(List<?> list) {
+        int size = list.size();
+        int[] values = new int[size];
+        int count = 0;
+        boolean hasNulls = false;
+        for(int i = 0; i < size; i++) {
+            Integer element = (Integer) list.get(i);
+            if(element == null) {
+                hasNulls = true;
+            } else {
+                values[count++] = element;
+            }
+        }
+        writeVarInt(size);
+        writeBoolean(hasNulls);
+        if(hasNulls) {
+            for(int i = 0; i < size; i += 8) {
+                int mask = 0;
+                for(int bit = 0; bit < 8 && i + bit < size; bit++) {
+                    if(list.get(i + bit) == null) {
+                        mask |= 1 << bit;
+                    }
+                }
+                writeByte((byte) mask);
+            }
+        }
+        writeCompactInts(values, count);
+    }
+
+    void writeBytes(byte[] bytes) {
+        writeInt(bytes.length);
+        writeRawBytes(bytes);
+    }
+
+    // Writes the bytes without a length
+    void writeRawBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        buffer.put(bytes);
+    }
+
+    // Writes whether a reference is present, returns true if the value should be written
+    boolean writePresence(Object value) {
+        writeBoolean(value != null);
+        return value != null;
+    }
+
+    void writeString(String value) {
+        if(writePresence(value)) {
+            writeBytes(value.getBytes(UTF_8));
+        }
+    }
+
+    void writeBundle(StateBundle bundle)
+            throws IOException {
+        if(schemas != null) {
+            for(StateBundleSchema schema : schemas) {
+                if(schema.matches(bundle)) {
+                    writeVarInt(schema.getId());
+                    writeSchemaBundle(schema, bundle);
+                    return;
+                }
+            }
+            writeVarInt(StateBundleCodec.NO_SCHEMA);
+        }
+        writeInt(bundle.size());
+        List<StateBundle.Entry> entries = bundle.entries();
+        if(canonical) {
+            entries = new ArrayList<>(entries);
+            Collections.sort(entries, KEY_ORDER);
+        }
+        if(packedBooleans) {
+            // the boolean values are written together, and left out of their entries
+            boolean[] booleans = new boolean[entries.size()];
+            int count = 0;
+            for(StateBundle.Entry entry : entries) {
+                if(entry.getType() == StateBundle.type_boolean) {
+                    booleans[count++] = (Boolean) entry.getValue();
+                }
+            }
+            writeVarInt(count);
+            writeBits(booleans, count);
+        }
+        for(StateBundle.Entry entry : entries) {
+            writeByte((byte) entry.getType());
+            writeKey(entry.getKey());
+            if(!packedBooleans || entry.getType() != StateBundle.type_boolean) {
+                writeValue(entry.getType(), entry.getValue());
+            }
+        }
+    }
+
+    // With a key dictionary, a key is written as its index + 1, and the null key as 0
+    private void writeKey(String key) {
+        if(keyIndices == null) {
+            writeString(key);
+        } else {
+            writeVarInt(key == null ? 0 : keyIndices.get(key) + 1);
+        }
+    }
+
+    // Writes the distinct keys of the bundle tree in the order they are first seen
+    void writeKeyDictionary(StateBundle bundle) {
+        Map<String, Integer> keyIndices = new LinkedHashMap<>();
+        ArrayDeque<StateBundle> stack = new ArrayDeque<>();
+        stack.push(bundle);
+        while(!stack.isEmpty()) {
+            StateBundle current = stack.pop();
+            boolean keysWritten = !matchesSchema(current);
+            Iterator<Map.Entry<String, Integer>> typeIterator = current.typeMap.entrySet().iterator();
+            for(Map.Entry<String, Object> entry : current.map.entrySet()) {
+                String key = entry.getKey();
+                int type = current.nextType(key, typeIterator);
+                if(keysWritten && key != null && !keyIndices.containsKey(key)) {
+                    keyIndices.put(key, keyIndices.size());
+                }
+                pushNestedBundles(type, entry.getValue(), stack);
+            }
+        }
+        if(canonical) {
+            List<String> sortedKeys = new ArrayList<>(keyIndices.keySet());
+            Collections.sort(sortedKeys);
+            keyIndices.clear();
+            for(String key : sortedKeys) {
+                keyIndices.put(key, keyIndices.size());
+            }
+        }
+        writeVarInt(keyIndices.size());
+        for(String key : keyIndices.keySet()) {
+            byte[] bytes = key.getBytes(UTF_8);
+            writeVarInt(bytes.length);
+            writeRawBytes(bytes);
+        }
+        this.keyIndices = keyIndices;
+    }
+
+    private boolean matchesSchema(StateBundle bundle) {
+        if(schemas != null) {
+            for(StateBundleSchema schema : schemas) {
+                if(schema.matches(bundle)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Finds the bundles that are encoded as part of the value
+    private static void pushNestedBundles(int type, Object value, ArrayDeque<StateBundle> stack) {
+        if(value == null) {
+            return;
+        }
+        switch(type) {
+            case StateBundle.type_StateBundle:
+            case StateBundle.type_Parcelable:
+                if(value instanceof StateBundle) {
+                    stack.push((StateBundle) value);
+                }
+                break;
+            case StateBundle.type_ParcelableArray:
+                for(Object element : (Object[]) value) {
+                    if(element instanceof StateBundle) {
+                        stack.push((StateBundle) element);
+                    }
+                }
+                break;
+            case StateBundle.type_ParcelableArrayList:
+                for(Object element : (List<?>) value) {
+                    if(element instanceof StateBundle) {
+                        stack.push((StateBundle) element);
+                    }
+                }
+                break;
+            case StateBundle.type_SparseParcelableArray: {
+                SparseArray<?> sparseArray = (SparseArray<?>) value;
+                for(int i = 0, size = sparseArray.size(); i < size; i++) {
+                    if(sparseArray.valueAt(i) instanceof StateBundle) {
+                        stack.push((StateBundle) sparseArray.valueAt(i));
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    // The presence of each key of the schema as a bitmask, then the values of the present keys in the order of the schema
+    private void writeSchemaBundle(StateBundleSchema schema, StateBundle bundle)
+            throws IOException {
+        int size = schema.size();
+        for(int i = 0; i < size; i += 8) {
+            int mask = 0;
+            for(int bit = 0; bit < 8 && i + bit < size; bit++) {
+                if(bundle.typeMap.containsKey(schema.getKey(i + bit))) {
+                    mask |= 1 << bit;
+                }
+            }
+            writeByte((byte) mask);
+        }
+        if(packedBooleans) {
+            boolean[] booleans = new boolean[size];
+            int count = 0;
+            for(int i = 0; i < size; i++) {
+                if(schema.getType(i) == StateBundle.type_boolean && bundle.typeMap.containsKey(schema.getKey(i))) {
+                    booleans[count++] = (Boolean) bundle.map.get(schema.getKey(i));
+                }
+            }
+            writeBits(booleans, count);
+        }
+        for(int i = 0; i < size; i++) {
+            String key = schema.getKey(i);
+            if(bundle.typeMap.containsKey(key) && (!packedBooleans || schema.getType(i) != StateBundle.type_boolean)) {
+                writeValue(schema.getType(i), bundle.map.get(key));
+            }
+        }
+    }
+
+    // With shared values, a value is preceded by 0 when it is written for the first time, or by its index + 1 when it was written before
+    void writeValue(int type, Object value)
+            throws IOException {
+        if(sharedIndices != null && isShareable(type)) {
+            Integer index = sharedIndices.get(value);
+            if(index != null) {
+                writeVarInt(index + 1);
+                return;
+            }
+            writeVarInt(0);
+            // a null is decoded as null, so the decoder skips it as well
+            if(value != null) {
+                sharedIndices.put(value, sharedIndices.size());
+            }
+        }
+        writeValueContent(type, value);
+    }
+
+    private void writeValueContent(int type, Object value)
+            throws IOException {
+        switch(type) {
+            case StateBundle.type_boolean:
+                writeBoolean((Boolean) value);
+                return;
+            case StateBundle.type_byte:
+                writeByte((Byte) value);
+                return;
+            case StateBundle.type_char:
+                writeChar((Character) value);
+                return;
+            case StateBundle.type_short:
+                writeShort((Short) value);
+                return;
+            case StateBundle.type_int:
+                if(compactIntegers) {
+                    writeVarInt(zigzag((Integer) value));
+                } else {
+                    writeInt((Integer) value);
+                }
+                return;
+            case StateBundle.type_long:
+                if(compactIntegers) {
+                    writeVarLong(zigzag((Long) value));
+                } else {
+                    writeLong((Long) value);
+                }
+                return;
+            case StateBundle.type_float:
+                writeFloat((Float) value);
+                return;
+            case StateBundle.type_double:
+                writeDouble((Double) value);
+                return;
+            case StateBundle.type_Size: {
+                long size = (Long) value;
+                if(compactIntegers) {
+                    writeVarInt(zigzag(StateBundleSize.getWidth(size)));
+                    writeVarInt(zigzag(StateBundleSize.getHeight(size)));
+                } else {
+                    writeLong(size);
+                }
+                return;
+            }
+            case StateBundle.type_SizeF:
+                writeLong((Long) value);
+                return;
+        }
+        if(!writePresence(value)) {
+            return;
+        }
+        switch(type) {
+            case StateBundle.type_String:
+                writeBytes(((String) value).getBytes(UTF_8));
+                break;
+            case StateBundle.type_CharSequence:
+                writeBytes(value.toString().getBytes(UTF_8));
+                break;
+            case StateBundle.type_Serializable:
+                writeSerializable((Serializable) value);
+                break;
+            case StateBundle.type_Enum: {
+                Enum<?> constant = (Enum<?>) value;
+                writeEnumClass(constant.getDeclaringClass());
+                writeBytes(constant.name().getBytes(UTF_8));
+                break;
+            }
+            case StateBundle.type_UUID: {
+                UUID uuid = (UUID) value;
+                writeLong(uuid.getMostSignificantBits());
+                writeLong(uuid.getLeastSignificantBits());
+                break;
+            }
+            case StateBundle.type_Date: {
+                long time = ((Date) value).getTime();
+                if(compactIntegers) {
+                    writeVarLong(zigzag(time));
+                } else {
+                    writeLong(time);
+                }
+                break;
+            }
+            case StateBundle.type_BigDecimal: {
+                BigDecimal bigDecimal = (BigDecimal) value;
+                writeVarInt(zigzag(bigDecimal.scale()));
+                writeBytes(bigDecimal.unscaledValue().toByteArray());
+                break;
+            }
+            case StateBundle.type_IntegerArrayList: {
+                List<?> list = (List<?>) value;
+                if(compactIntegers) {
+                    writeCompactIntegerList(list);
+                    break;
+                }
+                writeInt(list.size());
+                for(int i = 0, size = list.size(); i < size; i++) {
+                    Integer element = (Integer) list.get(i);
+                    if(writePresence(element)) {
+                        writeInt(element);
+                    }
+                }
+                break;
+            }
+            case StateBundle.type_StringArrayList:
+            case StateBundle.type_CharSequenceArrayList: {
+                List<?> list = (List<?>) value;
+                writeInt(list.size());
+                for(int i = 0, size = list.size(); i < size; i++) {
+                    Object element = list.get(i);
+                    writeString(element == null ? null : element.toString());
+                }
+                break;
+            }
+            case StateBundle.type_BooleanArray: {
+                boolean[] array = (boolean[]) value;
+                writeInt(array.length);
+                if(packedBooleans) {
+                    writeBits(array, array.length);
+                    break;
+                }
+                for(boolean element : array) {
+                    writeBoolean(element);
+                }
+                break;
+            }
+            case StateBundle.type_ByteArray:
+                writeBytes((byte[]) value);
+                break;
+            case StateBundle.type_ShortArray: {
+                short[] array = (short[]) value;
+                writeInt(array.length);
+                ensureCapacity(array.length * 2);
+                buffer.asShortBuffer().put(array);
+                buffer.position(buffer.position() + array.length * 2);
+                break;
+            }
+            case StateBundle.type_CharArray: {
+                char[] array = (char[]) value;
+                writeInt(array.length);
+                for(char element : array) {
+                    writeChar(element);
+                }
+                break;
+            }
+            case StateBundle.type_IntArray: {
+                int[] array = (int[]) value;
+                if(compactIntegers) {
+                    writeVarInt(array.length);
+                    writeCompactInts(array, array.length);
+                    break;
+                }
+                writeInt(array.length);
+                ensureCapacity(array.length * 4);
+                buffer.asIntBuffer().put(array);
+                buffer.position(buffer.position() + array.length * 4);
+                break;
+            }
+            case StateBundle.type_LongArray: {
+                long[] array = (long[]) value;
+                if(compactIntegers) {
+                    writeVarInt(array.length);
+                    writeCompactLongs(array);
+                    break;
+                }
+                writeInt(array.length);
+                ensureCapacity(array.length * 8);
+                buffer.asLongBuffer().put(array);
+                buffer.position(buffer.position() + array.length * 8);
+                break;
+            }
+            case StateBundle.type_FloatArray: {
+                float[] array = (float[]) value;
+                writeInt(array.length);
+                if(canonical) {
+                    // the NaNs have to be collapsed one by one
+                    for(float element : array) {
+                        writeFloat(element);
+                    }
+                    break;
+                }
+                ensureCapacity(array.length * 4);
+                buffer.asFloatBuffer().put(array);
+                buffer.position(buffer.position() + array.length * 4);
+                break;
+            }
+            case StateBundle.type_DoubleArray: {
+                double[] array = (double[]) value;
+                writeInt(array.length);
+                if(canonical) {
+                    for(double element : array) {
+                        writeDouble(element);
+                    }
+                    break;
+                }
+                ensureCapacity(array.length * 8);
+                buffer.asDoubleBuffer().put(array);
+                buffer.position(buffer.position() + array.length * 8);
+                break;
+            }
+            case StateBundle.type_StringArray:
+            case StateBundle.type_CharSequenceArray: {
+                Object[] array = (Object[]) value;
+                writeInt(array.length);
+                for(Object element : array) {
+                    writeString(element == null ? null : element.toString());
+                }
+                break;
+            }
+            case StateBundle.type_StateBundle:
+                writeBundle((StateBundle) value);
+                break;
+            case StateBundle.type_Parcelable:
+                writeParcelable((Parcelable) value);
+                break;
+            case StateBundle.type_ParcelableArray: {
+                Parcelable[] array = (Parcelable[]) value;
+                writeInt(array.length);
+                for(Parcelable element : array) {
+                    if(writePresence(element)) {
+                        writeParcelable(element);
+                    }
+                }
+                break;
+            }
+            case StateBundle.type_ParcelableArrayList: {
+                List<?> list = (List<?>) value;
+                writeInt(list.size());
+                for(int i = 0, size = list.size(); i < size; i++) {
+                    Parcelable element = (Parcelable) list.get(i);
+                    if(writePresence(element)) {
+                        writeParcelable(element);
+                    }
+                }
+                break;
+            }
+            case StateBundle.type_SparseParcelableArray: {
+                SparseArray<?> sparseArray = (SparseArray<?>) value;
+                int size = sparseArray.size();
+                writeInt(size);
+                for(int i = 0; i < size; i++) {
+                    writeInt(sparseArray.keyAt(i));
+                    Parcelable element = (Parcelable) sparseArray.valueAt(i);
+                    if(writePresence(element)) {
+                        writeParcelable(element);
+                    }
+                }
+                break;
+            }
+            default:
+                writeBytes(StateBundle.customTypeCodec(type).toByteArray(value));
+                break;
+        }
+    }
+
+    // The id of the registered codec of the value's class, or 0 if it is written with Java serialization
+    void writeSerializable(Serializable value)
+            throws IOException {
+        int codecId = StateBundleSerializables.codecId(value);
+        writeVarInt(codecId);
+        if(codecId != 0) {
+            writeBytes(StateBundleSerializables.codec(codecId).toByteArray(value));
+            return;
+        }
+        if(countFallbacks) {
+            StateBundleSerializables.recordFallback(value);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(bytes);
+        objectOutputStream.writeObject(value);
+        objectOutputStream.close();
+        writeBytes(bytes.toByteArray());
+    }
+
+    // StateBundles are written directly, other Parcelables go through a Parcel and need the Android runtime
+    void writeParcelable(Parcelable value)
+            throws IOException {
+        if(value instanceof StateBundle) {
+            writeByte(StateBundleCodec.PARCELABLE_STATE_BUNDLE);
+            writeBundle((StateBundle) value);
+            return;
+        }
+        writeByte(StateBundleCodec.PARCELABLE_PARCEL);
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeParcelable(value, 0);
+            writeBytes(parcel.marshall());
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
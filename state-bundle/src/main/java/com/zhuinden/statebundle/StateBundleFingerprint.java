@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A 128-bit digest of the content of a StateBundle, see {@link StateBundle#fingerprint()}.
+ *
+ * The fingerprint is computed from the binary form of {@link StateBundleCodec}, so it is the same across processes and runs,
+ * and it does not depend on the insertion order of the keys.
+ */
+public final class StateBundleFingerprint {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final long high;
+    private final long low;
+
+    StateBundleFingerprint(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Returns the upper 64 bits of the fingerprint.
+     *
+     * @return the upper 64 bits
+     */
+    public long getHigh() {
+        return high;
+    }
+
+    /**
+     * Returns the lower 64 bits of the fingerprint.
+     *
+     * @return the lower 64 bits
+     */
+    public long getLow() {
+        return low;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) {
+            return true;
+        }
+        if(!(o instanceof StateBundleFingerprint)) {
+            return false;
+        }
+        StateBundleFingerprint that = (StateBundleFingerprint) o;
+        return high == that.high && low == that.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) low;
+    }
+
+    /**
+     * Returns the fingerprint as 32 hexadecimal digits.
+     */
+    @Override
+    public String toString() {
+        return hex(high) + hex(low);
+    }
+
+    private static String hex(long value) {
+        String hex = Long.toHexString(value);
+        StringBuilder stringBuilder = new StringBuilder(16);
+        for(int i = hex.length(); i < 16; i++) {
+            stringBuilder.append('0');
+        }
+        return stringBuilder.append(hex).toString();
+    }
+
+    static StateBundleFingerprint of(StateBundle bundle) {
+        return of(bundle, new StateBundleEncoder(true));
+    }
+
+    // Each entry is encoded and hashed on its own, and the entry hashes are summed so that the order does not matter.
+    // Nested StateBundles contribute their own fingerprint instead of their encoded form, for the same reason.
+    private static StateBundleFingerprint of(StateBundle bundle, StateBundleEncoder encoder) {
+        long sumHigh = 0;
+        long sumLow = 0;
+        Iterator<Map.Entry<String, Integer>> typeIterator = bundle.typeMap.entrySet().iterator();
+        for(Map.Entry<String, Object> entry : bundle.map.entrySet()) {
+            int type = bundle.nextType(entry.getKey(), typeIterator);
+            Object value = entry.getValue();
+            StateBundleFingerprint nested = null;
+            if(value instanceof StateBundle && (type == StateBundle.type_StateBundle || type == StateBundle.type_Parcelable)) {
+                nested = of((StateBundle) value, encoder);
+            }
+            encoder.reset();
+            encoder.writeByte((byte) type);
+            encoder.writeString(entry.getKey());
+            if(nested != null) {
+                encoder.writeLong(nested.high);
+                encoder.writeLong(nested.low);
+            } else {
+                try {
+                    encoder.writeValue(type, value);
+                } catch(IOException e) {
+                    throw new IllegalArgumentException("The value of [" + entry.getKey() + "] could not be encoded", e);
+                }
+            }
+            long[] hash = murmur3(encoder.array(), encoder.size());
+            sumHigh += hash[0];
+            sumLow += hash[1];
+        }
+        long h1 = fmix(sumHigh ^ bundle.size());
+        long h2 = fmix(sumLow + C1);
+        h1 += h2;
+        h2 += h1;
+        return new StateBundleFingerprint(h1, h2);
+    }
+
+    // MurmurHash3 x64 128-bit with seed 0
+    static long[] murmur3(byte[] data, int length) {
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = length / 16;
+        for(int i = 0; i < blocks; i++) {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+        switch(length & 15) {
+            case 15:
+                k2 ^= (data[tail + 14] & 0xffL) << 48;
+            case 14:
+                k2 ^= (data[tail + 13] & 0xffL) << 40;
+            case 13:
+                k2 ^= (data[tail + 12] & 0xffL) << 32;
+            case 12:
+                k2 ^= (data[tail + 11] & 0xffL) << 24;
+            case 11:
+                k2 ^= (data[tail + 10] & 0xffL) << 16;
+            case 10:
+                k2 ^= (data[tail + 9] & 0xffL) << 8;
+            case 9:
+                k2 ^= (data[tail + 8] & 0xffL);
+                k2 *= C2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= C1;
+                h2 ^= k2;
+            case 8:
+                k1 ^= (data[tail + 7] & 0xffL) << 56;
+            case 7:
+                k1 ^= (data[tail + 6] & 0xffL) << 48;
+            case 6:
+                k1 ^= (data[tail + 5] & 0xffL) << 40;
+            case 5:
+                k1 ^= (data[tail + 4] & 0xffL) << 32;
+            case 4:
+                k1 ^= (data[tail + 3] & 0xffL) << 24;
+            case 3:
+                k1 ^= (data[tail + 2] & 0xffL) << 16;
+            case 2:
+                k1 ^= (data[tail + 1] & 0xffL) << 8;
+            case 1:
+                k1 ^= (data[tail] & 0xffL);
+                k1 *= C1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= C2;
+                h1 ^= k1;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new long[]{h1, h2};
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return (data[offset] & 0xffL)
+                | (data[offset + 1] & 0xffL) << 8
+                | (data[offset + 2] & 0xffL) << 16
+                | (data[offset + 3] & 0xffL) << 24
+                | (data[offset + 4] & 0xffL) << 32
+                | (data[offset + 5] & 0xffL) << 40
+                | (data[offset + 6] & 0xffL) << 48
+                | (data[offset + 7] & 0xffL) << 56;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
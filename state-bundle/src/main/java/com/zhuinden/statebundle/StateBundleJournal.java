@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Persists a StateBundle as a checkpoint and a journal of the modifications made since the checkpoint.
+ *
+ * {@link #load()} returns the StateBundle rebuilt from the last checkpoint and the journal, and every later
+ * put, remove and clear on it is recorded as a small binary record. The records are buffered and written on the executor,
+ * several records at once with a single sync (group commit); {@link #flush()} writes them immediately.
+ *
+ * Once the journal grows large, the next modification takes a {@link StateBundle#snapshot()} and starts a new journal,
+ * and the snapshot is written as the new checkpoint on the executor.
+ *
+ * The values are encoded when they are put, so modifying an array after it was put is not recorded.
+ * Keys removed through {@link StateBundle#keySet()} are not recorded either. The journaled StateBundle should only be modified from one thread.
+ */
+public class StateBundleJournal
+        implements Closeable {
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final byte RECORD_CLEAR = 3;
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String JOURNAL_PREFIX = "journal-";
+
+    // length and checksum of the payload
+    private static final int HEADER_SIZE = 8;
+
+    private static final long DEFAULT_CHECKPOINT_SIZE = 256 * 1024;
+
+    private final File directory;
+    private final Executor executor;
+    private final StateBundleCodec codec;
+    private final long checkpointSize;
+
+    private final Object writeLock = new Object();
+
+    private StateBundle bundle;
+    private long generation;
+    private long journalSize;
+    private StateBundleEncoder pending = new StateBundleEncoder();
+
+    // the records of the previous generation which were not written yet when the journal was rotated
+    private byte[] rotatedPending;
+    private StateBundle checkpoint;
+    private boolean scheduled;
+    private IOException failure;
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                write();
+            } catch(IOException e) {
+                synchronized(StateBundleJournal.this) {
+                    failure = e;
+                }
+            }
+        }
+    };
+
+    /**
+     * Constructs a StateBundleJournal that keeps its files in the given directory, and writes them on a shared background thread.
+     *
+     * @param directory the directory, must not be null.
+     * @throws IOException if the directory could not be created
+     */
+    public StateBundleJournal(@Nonnull File directory)
+            throws IOException {
+        this(directory, BackgroundExecutor.get(), new StateBundleCodec(), DEFAULT_CHECKPOINT_SIZE);
+    }
+
+    /**
+     * Constructs a StateBundleJournal that keeps its files in the given directory.
+     *
+     * @param directory      the directory, must not be null.
+     * @param executor       the executor that writes the journal and the checkpoints, must not be null.
+     * @param codec          the codec used to encode the checkpoints, must not be null.
+     * @param checkpointSize the size of the journal in bytes after which a new checkpoint is written
+     * @throws IOException if the directory could not be created
+     */
+    public StateBundleJournal(@Nonnull File directory, @Nonnull Executor executor, @Nonnull StateBundleCodec codec, long checkpointSize)
+            throws IOException {
+        if(directory == null) {
+            throw new IllegalArgumentException("The provided directory should not be null!");
+        }
+        if(executor == null) {
+            throw new IllegalArgumentException("The provided executor should not be null!");
+        }
+        if(codec == null) {
+            throw new IllegalArgumentException("The provided codec should not be null!");
+        }
+        if(checkpointSize <= 0) {
+            throw new IllegalArgumentException("The provided checkpoint size should be positive!");
+        }
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create [" + directory + "]");
+        }
+        this.directory = directory;
+        this.executor = executor;
+        this.codec = codec;
+        this.checkpointSize = checkpointSize;
+    }
+
+    /**
+     * Rebuilds the StateBundle from the last checkpoint and the journal. The returned StateBundle is journaled from now on.
+     *
+     * A record that was being written when the process died is dropped from the end of the last journal,
+     * but a corrupt record anywhere else is reported, as the records after it can't be applied.
+     *
+     * @return the StateBundle, which is empty if nothing was journaled yet
+     * @throws IOException if the checkpoint or a journal could not be read, or is corrupt
+     */
+    @Nonnull
+    public StateBundle load()
+            throws IOException {
+        long checkpointGeneration = 0;
+        StateBundle loaded;
+        File checkpointFile = new File(directory, CHECKPOINT_FILE);
+        if(checkpointFile.exists()) {
+            ByteBuffer buffer = ByteBuffer.wrap(AtomicFiles.read(checkpointFile));
+            try {
+                checkpointGeneration = buffer.getLong();
+                loaded = codec.decode(buffer);
+            } catch(BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("[" + checkpointFile + "] is corrupt", e);
+            }
+        } else {
+            loaded = new StateBundle();
+        }
+        long lastGeneration = checkpointGeneration;
+        List<Long> journalGenerations = journalGenerations();
+        for(int i = 0; i < journalGenerations.size(); i++) {
+            long journalGeneration = journalGenerations.get(i);
+            if(journalGeneration >= checkpointGeneration) {
+                replay(new File(directory, JOURNAL_PREFIX + journalGeneration), loaded, i == journalGenerations.size() - 1);
+                lastGeneration = journalGeneration;
+            }
+        }
+        synchronized(this) {
+            if(bundle != null) {
+                bundle.journal = null;
+            }
+            bundle = loaded;
+            // the loaded state becomes the checkpoint of a new generation, which also drops a torn journal tail
+            generation = lastGeneration + 1;
+            journalSize = 0;
+            pending = new StateBundleEncoder();
+            rotatedPending = null;
+            checkpoint = loaded.snapshot();
+            schedule();
+            loaded.journal = this;
+        }
+        return loaded;
+    }
+
+    private List<Long> journalGenerations() {
+        List<Long> generations = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                String name = file.getName();
+                if(name.startsWith(JOURNAL_PREFIX)) {
+                    try {
+                        generations.add(Long.parseLong(name.substring(JOURNAL_PREFIX.length())));
+                    } catch(NumberFormatException e) {
+                        // not a journal file
+                    }
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    // Applies the records of the journal file. Only the last journal may end with an incomplete record, left by a write
+    // that did not finish. A corrupt record anywhere else means that records are missing, so the journal can't be replayed.
+    private void replay(File file, StateBundle target, boolean last)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(AtomicFiles.read(file));
+        StateBundleDecoder decoder = new StateBundleDecoder(buffer, codec.getClassLoader());
+        while(buffer.hasRemaining()) {
+            int start = buffer.position();
+            int length = recordLength(buffer, start);
+            if(length == -1) {
+                if(last && isIncompleteTail(buffer, start)) {
+                    return;
+                }
+                throw new IOException("[" + file + "] has a corrupt record at offset [" + start + "]");
+            }
+            buffer.position(start + HEADER_SIZE);
+            byte kind = decoder.readByte();
+            if(kind == RECORD_CLEAR) {
+                target.clear();
+            } else {
+                String key = decoder.readString();
+                if(kind == RECORD_REMOVE) {
+                    target.remove(key);
+                } else {
+                    int type = decoder.readByte();
+                    Object value = decoder.readValue(type);
+                    target.map.put(key, value);
+                    target.typeMap.put(key, type);
+                }
+            }
+            buffer.position(start + HEADER_SIZE + length);
+        }
+    }
+
+    // Returns the payload length of the valid record at the offset, or -1 if it is incomplete or corrupt
+    private static int recordLength(ByteBuffer buffer, int offset) {
+        if(buffer.limit() - offset < HEADER_SIZE) {
+            return -1;
+        }
+        int length = buffer.getInt(offset);
+        int checksum = buffer.getInt(offset + 4);
+        if(length <= 0 || length > buffer.limit() - offset - HEADER_SIZE) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), offset + HEADER_SIZE, length);
+        return (int) crc.getValue() == checksum ? length : -1;
+    }
+
+    // An invalid record is the incomplete tail only if no valid record follows it
+    private static boolean isIncompleteTail(ByteBuffer buffer, int offset) {
+        for(int next = offset + 1; next + HEADER_SIZE < buffer.limit(); next++) {
+            if(recordLength(buffer, next) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void recordPut(String key, int type, Object value) {
+        StateBundleEncoder encoder = beginRecord(RECORD_PUT);
+        encoder.writeString(key);
+        encoder.writeByte((byte) type);
+        try {
+            encoder.writeValue(type, value);
+        } catch(IOException e) {
+            throw new IllegalArgumentException("The value of [" + key + "] could not be journaled", e);
+        }
+        endRecord(encoder);
+    }
+
+    void recordRemove(String key) {
+        StateBundleEncoder encoder = beginRecord(RECORD_REMOVE);
+        encoder.writeString(key);
+        endRecord(encoder);
+    }
+
+    void recordClear() {
+        endRecord(beginRecord(RECORD_CLEAR));
+    }
+
+    private static StateBundleEncoder beginRecord(byte kind) {
+        StateBundleEncoder encoder = new StateBundleEncoder();
+        encoder.writeInt(0);
+        encoder.writeInt(0);
+        encoder.writeByte(kind);
+        return encoder;
+    }
+
+    // A rotation snapshots the bundle, which contains the modifications of the earlier records.
+    // The bundle is modified only after its record has ended, so the record itself starts the new generation.
+    private synchronized void endRecord(StateBundleEncoder encoder) {
+        byte[] record = encoder.toByteArray();
+        int length = record.length - HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER_SIZE, length);
+        ByteBuffer.wrap(record).putInt(length).putInt((int) crc.getValue());
+
+        if(journalSize >= checkpointSize && checkpoint == null && rotatedPending == null) {
+            rotatedPending = pending.toByteArray();
+            pending = new StateBundleEncoder();
+            checkpoint = bundle.snapshot();
+            generation++;
+            journalSize = 0;
+        }
+        pending.writeRawBytes(record);
+        journalSize += record.length;
+        schedule();
+    }
+
+    private void schedule() {
+        if(!scheduled) {
+            scheduled = true;
+            executor.execute(writeTask);
+        }
+    }
+
+    /**
+     * Writes the buffered records and the pending checkpoint, and waits until they are written.
+     *
+     * @throws IOException if the journal could not be written, now or on the executor since the last flush
+     */
+    public void flush()
+            throws IOException {
+        write();
+        synchronized(this) {
+            IOException failure = this.failure;
+            this.failure = null;
+            if(failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private void write()
+            throws IOException {
+        synchronized(writeLock) {
+            long currentGeneration;
+            byte[] rotated;
+            byte[] records;
+            StateBundle checkpoint;
+            synchronized(this) {
+                scheduled = false;
+                currentGeneration = generation;
+                rotated = rotatedPending;
+                records = pending.size() == 0 ? null : pending.toByteArray();
+                checkpoint = this.checkpoint;
+                rotatedPending = null;
+                pending = new StateBundleEncoder();
+            }
+            try {
+                if(rotated != null && rotated.length > 0) {
+                    append(currentGeneration - 1, rotated);
+                }
+                if(records != null) {
+                    append(currentGeneration, records);
+                }
+                if(checkpoint != null) {
+                    writeCheckpoint(currentGeneration, checkpoint);
+                }
+            } catch(IOException | RuntimeException e) {
+                synchronized(this) {
+                    // the unwritten data is kept, so that it is retried with the next write
+                    if(rotatedPending == null && rotated != null) {
+                        rotatedPending = rotated;
+                    }
+                    if(records != null) {
+                        StateBundleEncoder retry = new StateBundleEncoder();
+                        retry.writeRawBytes(records);
+                        retry.writeRawBytes(pending.toByteArray());
+                        pending = retry;
+                    }
+                }
+                throw e;
+            }
+            synchronized(this) {
+                if(this.checkpoint == checkpoint) {
+                    this.checkpoint = null;
+                }
+            }
+        }
+    }
+
+    private void append(long journalGeneration, byte[] records)
+            throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(new File(directory, JOURNAL_PREFIX + journalGeneration), true);
+        try {
+            long size = outputStream.getChannel().size();
+            try {
+                outputStream.write(records);
+                outputStream.getFD().sync();
+            } catch(IOException e) {
+                // the records are appended again by the next write, so a partial write would become a corrupt record
+                outputStream.getChannel().truncate(size);
+                throw e;
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private void writeCheckpoint(long checkpointGeneration, StateBundle checkpoint)
+            throws IOException {
+        StateBundleEncoder encoder = codec.encodeToEncoder(checkpoint, true);
+        byte[] encoded = encoder.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(8 + encoded.length);
+        buffer.putLong(checkpointGeneration);
+        buffer.put(encoded);
+        AtomicFiles.write(new File(directory, CHECKPOINT_FILE), buffer.array());
+        for(long journalGeneration : journalGenerations()) {
+            if(journalGeneration < checkpointGeneration) {
+                new File(directory, JOURNAL_PREFIX + journalGeneration).delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered records and stops journaling the loaded StateBundle.
+     *
+     * @throws IOException if the journal could not be written
+     */
+    @Override
+    public void close()
+            throws IOException {
+        synchronized(this) {
+            if(bundle != null) {
+                bundle.journal = null;
+                bundle = null;
+            }
+        }
+        flush();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Holds the latest immutable snapshot of a {@link StateBundle}, which can be read from any thread without locking.
+ *
+ * New versions are published with {@link #set(StateBundle)} or {@link #update(Updater)}.
+ */
+public class StateBundleRef {
+    /**
+     * Creates the next version of the state from the current one.
+     *
+     * The current StateBundle is immutable, the new version should be created with {@code new StateBundle(current)}.
+     * Its nested StateBundles are immutable as well, so they are replaced with modified copies in the same way.
+     * As the update is retried if another thread published a new version in the meantime, it should not have side effects.
+     */
+    public interface Updater {
+        @Nonnull
+        StateBundle update(@Nonnull StateBundle current);
+    }
+
+    /**
+     * Notified when a new version is published.
+     */
+    public interface OnChangedListener {
+        void onChanged(@Nonnull StateBundle previous, @Nonnull StateBundle current);
+    }
+
+    private final AtomicReference<StateBundle> reference;
+
+    private final CopyOnWriteArrayList<OnChangedListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructs a new StateBundleRef that holds an empty StateBundle.
+     */
+    public StateBundleRef() {
+        this(new StateBundle());
+    }
+
+    /**
+     * Constructs a new StateBundleRef that holds a snapshot of the given StateBundle.
+     *
+     * @param initialValue the initial state, must not be null.
+     */
+    public StateBundleRef(@Nonnull StateBundle initialValue) {
+        if(initialValue == null) {
+            throw new IllegalArgumentException("The initial value should not be null!");
+        }
+        reference = new AtomicReference<>(initialValue.snapshot());
+    }
+
+    /**
+     * Returns the latest published snapshot.
+     *
+     * @return an immutable StateBundle
+     */
+    @Nonnull
+    public StateBundle get() {
+        return reference.get();
+    }
+
+    /**
+     * Publishes a snapshot of the given StateBundle, replacing the current one.
+     *
+     * @param bundle the new state, must not be null.
+     * @return the published immutable StateBundle
+     */
+    @Nonnull
+    public StateBundle set(@Nonnull StateBundle bundle) {
+        if(bundle == null) {
+            throw new IllegalArgumentException("The provided bundle should not be null!");
+        }
+        StateBundle next = bundle.snapshot();
+        StateBundle previous = reference.getAndSet(next);
+        if(previous != next) {
+            notifyChanged(previous, next);
+        }
+        return next;
+    }
+
+    /**
+     * Publishes the result of the updater applied to the latest snapshot.
+     *
+     * If another thread publishes a new version while the updater runs, the updater is called again with that version.
+     *
+     * @param updater the updater, must not be null.
+     * @return the published immutable StateBundle
+     */
+    @Nonnull
+    public StateBundle update(@Nonnull Updater updater) {
+        if(updater == null) {
+            throw new IllegalArgumentException("The provided updater should not be null!");
+        }
+        while(true) {
+            StateBundle current = reference.get();
+            StateBundle updated = updater.update(current);
+            if(updated == null) {
+                throw new IllegalStateException("The updater should not return null!");
+            }
+            StateBundle next = updated.snapshot();
+            if(reference.compareAndSet(current, next)) {
+                if(current != next) {
+                    notifyChanged(current, next);
+                }
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Adds a listener that is called on the publishing thread whenever a new version is published.
+     *
+     * @param listener the listener, must not be null.
+     */
+    public void addOnChangedListener(@Nonnull OnChangedListener listener) {
+        if(listener == null) {
+            throw new IllegalArgumentException("The provided listener should not be null!");
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a previously added listener.
+     *
+     * @param listener the listener
+     */
+    public void removeOnChangedListener(@Nonnull OnChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyChanged(StateBundle previous, StateBundle current) {
+        for(OnChangedListener listener : listeners) {
+            listener.onChanged(previous, current);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Writes StateBundles to a file in the background.
+ *
+ * {@link #save(StateBundle)} only takes a {@link StateBundle#snapshot()} on the calling thread, the snapshot is encoded
+ * and written on the executor. If several saves happen before the executor gets to run, only the latest snapshot is written.
+ *
+ * A snapshot that has the same {@link StateBundle#fingerprint()} as the last written one is not written again.
+ *
+ * An exception thrown by the listener propagates to the executor, but does not stop later saves from being written.
+ *
+ * The values of the StateBundle (arrays, nested StateBundles) are not copied, so they should not be modified after the save.
+ */
+public class StateBundleSaver {
+    /**
+     * Notified on the executor when a snapshot was written, or could not be written.
+     */
+    public interface Listener {
+        void onSaved(@Nonnull StateBundle bundle);
+
+        void onSaveFailed(@Nonnull StateBundle bundle, @Nonnull IOException exception);
+    }
+
+    private final File file;
+    private final Executor executor;
+    private final StateBundleCodec codec;
+
+    private final AtomicReference<StateBundle> pending = new AtomicReference<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private volatile Listener listener;
+
+    // only accessed by the write task, which never runs concurrently with itself
+    private StateBundleFingerprint writtenFingerprint;
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    /**
+     * Constructs a StateBundleSaver that writes the given file on a shared background thread.
+     *
+     * @param file the file, must not be null.
+     */
+    public StateBundleSaver(@Nonnull File file) {
+        this(file, BackgroundExecutor.get(), new StateBundleCodec());
+    }
+
+    /**
+     * Constructs a StateBundleSaver that writes the given file on the given executor.
+     *
+     * @param file     the file, must not be null.
+     * @param executor the executor, must not be null.
+     * @param codec    the codec used to encode the snapshots, must not be null.
+     */
+    public StateBundleSaver(@Nonnull File file, @Nonnull Executor executor, @Nonnull StateBundleCodec codec) {
+        if(file == null) {
+            throw new IllegalArgumentException("The provided file should not be null!");
+        }
+        if(executor == null) {
+            throw new IllegalArgumentException("The provided executor should not be null!");
+        }
+        if(codec == null) {
+            throw new IllegalArgumentException("The provided codec should not be null!");
+        }
+        this.file = file;
+        this.executor = executor;
+        this.codec = codec;
+    }
+
+    /**
+     * Sets the listener that is notified of the result of each write.
+     *
+     * @param listener the listener, or null
+     */
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Schedules a snapshot of the StateBundle to be written.
+     *
+     * @param bundle the StateBundle, must not be null.
+     */
+    public void save(@Nonnull StateBundle bundle) {
+        if(bundle == null) {
+            throw new IllegalArgumentException("The provided bundle should not be null!");
+        }
+        pending.set(bundle.snapshot());
+        schedule();
+    }
+
+    private void schedule() {
+        if(scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(writeTask);
+            } catch(RuntimeException e) {
+                scheduled.set(false); // otherwise no later save would schedule the task again
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Reads the last written StateBundle.
+     *
+     * @return the StateBundle, or null if nothing was written yet
+     * @throws IOException if the file could not be read
+     */
+    @Nullable
+    public StateBundle load()
+            throws IOException {
+        if(!file.exists()) {
+            return null;
+        }
+        try {
+            return codec.decode(AtomicFiles.read(file));
+        } catch(IllegalArgumentException e) {
+            throw new IOException("[" + file + "] does not contain a valid StateBundle", e);
+        }
+    }
+
+    // The flag is reset even if a listener throws, so that later saves are still written
+    private void writePending() {
+        try {
+            StateBundle bundle;
+            while((bundle = pending.getAndSet(null)) != null) {
+                write(bundle);
+            }
+        } finally {
+            scheduled.set(false);
+            // a save could have set a pending snapshot after the getAndSet, but seen the task as still scheduled
+            if(pending.get() != null) {
+                schedule();
+            }
+        }
+    }
+
+    private void write(StateBundle bundle) {
+        Listener listener = this.listener;
+        try {
+            StateBundleFingerprint fingerprint;
+            byte[] bytes;
+            try {
+                fingerprint = bundle.fingerprint();
+                if(!fingerprint.equals(writtenFingerprint)) {
+                    bytes = codec.encode(bundle);
+                } else {
+                    bytes = null;
+                }
+            } catch(RuntimeException e) {
+                throw new IOException("The StateBundle could not be encoded", e);
+            }
+            if(bytes != null) {
+                writtenFingerprint = null;
+                AtomicFiles.write(file, bytes);
+                writtenFingerprint = fingerprint;
+            }
+        } catch(IOException e) {
+            if(listener != null) {
+                listener.onSaveFailed(bundle, e);
+            }
+            return;
+        }
+        if(listener != null) {
+            listener.onSaved(bundle);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Describes the keys and types of StateBundles that always have the same structure, see {@link StateBundleCodec.Builder#addSchema(StateBundleSchema)}.
+ *
+ * A StateBundle matches the schema if each of its keys is in the schema with the same type. Not every key of the schema has to be present.
+ * Such a StateBundle is encoded as the id of the schema, a bitmask of the present keys and the values, without the keys and the types.
+ */
+public final class StateBundleSchema {
+    /**
+     * Builds a StateBundleSchema.
+     */
+    public static class Builder {
+        private final int id;
+        private final List<String> keys = new ArrayList<>();
+        private final List<Integer> types = new ArrayList<>();
+
+        /**
+         * Constructs a Builder for a schema with the given id.
+         *
+         * @param id the id that identifies the schema in the encoded data, must be positive.
+         */
+        public Builder(int id) {
+            if(id <= 0) {
+                throw new IllegalArgumentException("The provided id should be positive!");
+            }
+            this.id = id;
+        }
+
+        /**
+         * Adds a key to the schema.
+         *
+         * @param key  the key, must not be null.
+         * @param type the type of the value, one of the {@code type_*} constants of {@link StateBundle} or a registered custom type.
+         * @return the builder
+         */
+        @Nonnull
+        public Builder add(@Nonnull String key, int type) {
+            if(key == null) {
+                throw new IllegalArgumentException("The provided key should not be null!");
+            }
+            if(StateBundle.typeCodec(type) == null) {
+                throw new IllegalArgumentException("The provided type [" + type + "] is not a valid type!");
+            }
+            if(keys.contains(key)) {
+                throw new IllegalArgumentException("The key [" + key + "] is already in the schema!");
+            }
+            keys.add(key);
+            types.add(type);
+            return this;
+        }
+
+        /**
+         * Creates the StateBundleSchema.
+         *
+         * @return the schema
+         */
+        @Nonnull
+        public StateBundleSchema build() {
+            return new StateBundleSchema(this);
+        }
+    }
+
+    private final int id;
+    private final String[] keys;
+    private final int[] types;
+    private final Map<String, Integer> indices;
+
+    private StateBundleSchema(Builder builder) {
+        this.id = builder.id;
+        int size = builder.keys.size();
+        this.keys = builder.keys.toArray(new String[size]);
+        this.types = new int[size];
+        this.indices = new HashMap<>(size * 2);
+        for(int i = 0; i < size; i++) {
+            types[i] = builder.types.get(i);
+            indices.put(keys[i], i);
+        }
+    }
+
+    /**
+     * Returns the id of the schema.
+     *
+     * @return the id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the number of keys in the schema.
+     *
+     * @return the number of keys
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    String getKey(int index) {
+        return keys[index];
+    }
+
+    int getType(int index) {
+        return types[index];
+    }
+
+    boolean matches(StateBundle bundle) {
+        if(bundle.size() > keys.length) {
+            return false;
+        }
+        for(Map.Entry<String, Integer> entry : bundle.typeMap.entrySet()) {
+            Integer index = entry.getKey() == null ? null : indices.get(entry.getKey());
+            if(index == null || types[index] != entry.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Maps Serializable classes to codecs, so that their values stored with {@link StateBundle#putSerializable(String, Serializable)}
+ * are written without Java serialization, both into a Parcel and by {@link StateBundleCodec}.
+ *
+ * A registered codec handles the values whose class is exactly its value class, subclasses are not included.
+ * The values of other classes are still written with Java serialization, and counted per class, see {@link #getFallbackCounts()}.
+ */
+public final class StateBundleSerializables {
+    private StateBundleSerializables() {
+    }
+
+    // Both maps are replaced when a codec is registered, so they are read without locking.
+    private static volatile Map<Integer, StateBundleTypeCodec<?>> codecsById = new HashMap<>();
+    private static volatile Map<Class<?>, Integer> idsByClass = new HashMap<>();
+
+    private static final ConcurrentHashMap<String, AtomicLong> fallbackCounts = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the codec of a Serializable class.
+     *
+     * The id identifies the codec in the written data, so it must not change between versions of the app. The codec must
+     * be registered before a StateBundle with values of its class is read from a Parcel or decoded, for example when the
+     * Application is created.
+     *
+     * @param id    the id of the codec, must be positive.
+     * @param codec the codec, must not be null.
+     * @throws IllegalStateException if another codec is already registered with the id or for the class
+     */
+    public static void registerCodec(int id, @Nonnull StateBundleTypeCodec<? extends Serializable> codec) {
+        if(id <= 0) {
+            throw new IllegalArgumentException("The provided id should be positive!");
+        }
+        if(codec == null) {
+            throw new IllegalArgumentException("The provided codec should not be null!");
+        }
+        synchronized(StateBundleSerializables.class) {
+            StateBundleTypeCodec<?> registered = codecsById.get(id);
+            if(registered == codec) {
+                return;
+            }
+            if(registered != null) {
+                throw new IllegalStateException("A codec is already registered with id [" + id + "]");
+            }
+            if(idsByClass.containsKey(codec.getValueClass())) {
+                throw new IllegalStateException("A codec is already registered for [" + codec.getValueClass().getName() + "]");
+            }
+            Map<Integer, StateBundleTypeCodec<?>> codecs = new HashMap<>(codecsById);
+            codecs.put(id, codec);
+            Map<Class<?>, Integer> ids = new HashMap<>(idsByClass);
+            ids.put(codec.getValueClass(), id);
+            codecsById = codecs;
+            idsByClass = ids;
+        }
+    }
+
+    /**
+     * Returns how many values of each Serializable class were written with Java serialization since the counts were last reset,
+     * into a Parcel or by {@link StateBundleCodec#encode(StateBundle)}. Fingerprints and other internal encodings are not counted.
+     *
+     * These classes have no registered codec, so they are the candidates for {@link #registerCodec(int, StateBundleTypeCodec)}.
+     *
+     * @return the counts by class name
+     */
+    @Nonnull
+    public static Map<String, Long> getFallbackCounts() {
+        Map<String, Long> counts = new HashMap<>(fallbackCounts.size() * 2);
+        for(Map.Entry<String, AtomicLong> entry : fallbackCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * Resets the counts returned by {@link #getFallbackCounts()}.
+     */
+    public static void resetFallbackCounts() {
+        fallbackCounts.clear();
+    }
+
+    // Returns the id of the codec of the value's class, or 0 if the value is written with Java serialization
+    static int codecId(Serializable value) {
+        Integer id = idsByClass.get(value.getClass());
+        return id == null ? 0 : id;
+    }
+
+    // Counts a value that is written with Java serialization, called where it is actually written
+    static void recordFallback(Serializable value) {
+        String className = value.getClass().getName();
+        AtomicLong count = fallbackCounts.get(className);
+        if(count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = fallbackCounts.putIfAbsent(className, newCount);
+            if(count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    @SuppressWarnings("unchecked")
+    static StateBundleTypeCodec<Object> codec(int id) {
+        StateBundleTypeCodec<Object> codec = (StateBundleTypeCodec<Object>) codecsById.get(id);
+        if(codec == null) {
+            throw new IllegalArgumentException("No Serializable codec is registered with id [" + id + "]!");
+        }
+        return codec;
+    }
+
+    // Carries a value written by a registered codec through a Parcel, in place of the Serializable
+    static class EncodedValue
+            implements Parcelable {
+        int id;
+        byte[] bytes;
+
+        EncodedValue(int id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+
+        protected EncodedValue(Parcel in) {
+            id = in.readInt();
+            bytes = in.createByteArray();
+        }
+
+        public static final Creator<EncodedValue> CREATOR = new Creator<EncodedValue>() {
+            @Override
+            public EncodedValue createFromParcel(Parcel in) {
+                return new EncodedValue(in);
+            }
+
+            @Override
+            public EncodedValue[] newArray(int size) {
+                return new EncodedValue[size];
+            }
+        };
+
+        Serializable decode() {
+            return (Serializable) codec(id).fromByteArray(bytes);
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeInt(id);
+            dest.writeByteArray(bytes);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Keeps an immutable StateBundle snapshot with a version number for each session id.
+ *
+ * Every change of a session gives it a new version, and {@link #compareAndSet(String, long, StateBundle)} only
+ * applies a change if the session is still at the expected version. The versions are drawn from a counter of the store,
+ * so a session that is removed and created again does not reuse the versions it had before. The sessions are kept in a ConcurrentHashMap,
+ * so reads do not lock, and updates of different sessions do not contend with each other.
+ */
+public class StateBundleSessionStore {
+    /**
+     * A snapshot of a session together with its version.
+     */
+    public static final class Versioned {
+        private final StateBundle bundle;
+        private final long version;
+
+        Versioned(StateBundle bundle, long version) {
+            this.bundle = bundle;
+            this.version = version;
+        }
+
+        /**
+         * Returns the state of the session.
+         *
+         * @return an immutable StateBundle
+         */
+        @Nonnull
+        public StateBundle getBundle() {
+            return bundle;
+        }
+
+        /**
+         * Returns the version of the state, which is greater than the versions of the earlier states of the session.
+         *
+         * @return the version
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        public String toString() {
+            return "Versioned{version=" + version + ", bundle=" + bundle + "}";
+        }
+    }
+
+    /**
+     * The version of a session that does not exist.
+     */
+    public static final long NO_VERSION = 0;
+
+    // Versioned does not override equals(), so replace() compares the instances
+    private final ConcurrentHashMap<String, Versioned> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicLong versions = new AtomicLong(NO_VERSION);
+
+    private static void checkId(String id) {
+        if(id == null) {
+            throw new IllegalArgumentException("The provided id should not be null!");
+        }
+    }
+
+    /**
+     * Returns the current state of the session.
+     *
+     * @param id the session id, must not be null.
+     * @return the state and its version, or null if the session does not exist
+     */
+    @Nullable
+    public Versioned get(@Nonnull String id) {
+        checkId(id);
+        return sessions.get(id);
+    }
+
+    /**
+     * Returns the current version of the session.
+     *
+     * @param id the session id, must not be null.
+     * @return the version, or {@link #NO_VERSION} if the session does not exist
+     */
+    public long getVersion(@Nonnull String id) {
+        Versioned current = get(id);
+        return current == null ? NO_VERSION : current.version;
+    }
+
+    /**
+     * Replaces the state of the session with a snapshot of the bundle, regardless of its current version.
+     *
+     * @param id     the session id, must not be null.
+     * @param bundle the new state, must not be null.
+     * @return the published state and its version
+     */
+    @Nonnull
+    public Versioned put(@Nonnull String id, @Nonnull StateBundle bundle) {
+        checkId(id);
+        if(bundle == null) {
+            throw new IllegalArgumentException("The provided bundle should not be null!");
+        }
+        StateBundle snapshot = bundle.snapshot();
+        while(true) {
+            Versioned current = sessions.get(id);
+            Versioned next = publish(id, current, snapshot);
+            if(next != null) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Replaces the state of the session with a snapshot of the bundle if the session is at the expected version.
+     *
+     * @param id              the session id, must not be null.
+     * @param expectedVersion the expected version, or {@link #NO_VERSION} if the session is expected not to exist
+     * @param bundle          the new state, must not be null.
+     * @return the published state and its version, or null if the session was not at the expected version
+     */
+    @Nullable
+    public Versioned compareAndSet(@Nonnull String id, long expectedVersion, @Nonnull StateBundle bundle) {
+        checkId(id);
+        if(bundle == null) {
+            throw new IllegalArgumentException("The provided bundle should not be null!");
+        }
+        Versioned current = sessions.get(id);
+        long currentVersion = current == null ? NO_VERSION : current.version;
+        if(currentVersion != expectedVersion) {
+            return null;
+        }
+        return publish(id, current, bundle.snapshot());
+    }
+
+    /**
+     * Publishes the result of the updater applied to the current state of the session, retrying if the session was changed meanwhile.
+     *
+     * A session that does not exist is updated from an empty StateBundle.
+     *
+     * @param id      the session id, must not be null.
+     * @param updater the updater, must not be null.
+     * @return the published state and its version
+     */
+    @Nonnull
+    public Versioned update(@Nonnull String id, @Nonnull StateBundleRef.Updater updater) {
+        checkId(id);
+        if(updater == null) {
+            throw new IllegalArgumentException("The provided updater should not be null!");
+        }
+        while(true) {
+            Versioned current = sessions.get(id);
+            StateBundle updated = updater.update(current == null ? new StateBundle().snapshot() : current.bundle);
+            if(updated == null) {
+                throw new IllegalStateException("The updater should not return null!");
+            }
+            Versioned next = publish(id, current, updated.snapshot());
+            if(next != null) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Removes the session.
+     *
+     * @param id the session id, must not be null.
+     * @return the removed state and its version, or null if the session did not exist
+     */
+    @Nullable
+    public Versioned remove(@Nonnull String id) {
+        checkId(id);
+        return sessions.remove(id);
+    }
+
+    /**
+     * Removes the session if it is at the expected version.
+     *
+     * @param id              the session id, must not be null.
+     * @param expectedVersion the expected version
+     * @return true if the session was removed
+     */
+    public boolean compareAndRemove(@Nonnull String id, long expectedVersion) {
+        checkId(id);
+        Versioned current = sessions.get(id);
+        return current != null && current.version == expectedVersion && sessions.remove(id, current);
+    }
+
+    /**
+     * Returns the ids of the sessions.
+     *
+     * @return a copy of the session ids
+     */
+    @Nonnull
+    public Set<String> ids() {
+        return new HashSet<>(sessions.keySet());
+    }
+
+    // Returns the published state, or null if the session was changed after current was read
+    private Versioned publish(String id, Versioned current, StateBundle snapshot) {
+        Versioned next = new Versioned(snapshot, versions.incrementAndGet());
+        if(current == null) {
+            return sessions.putIfAbsent(id, next) == null ? next : null;
+        }
+        return sessions.replace(id, current, next) ? next : null;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Packs a width and a height into a single long, the way {@link StateBundle#putSize(String, int, int)} and
+ * {@link StateBundle#putSizeF(String, float, float)} store them.
+ *
+ * The width is kept in the upper 32 bits and the height in the lower 32 bits, so a size needs no object of its own,
+ * and does not depend on android.util.Size or android.util.SizeF.
+ */
+public final class StateBundleSize {
+    private StateBundleSize() {
+    }
+
+    /**
+     * Packs an integer size.
+     *
+     * @param width  the width
+     * @param height the height
+     * @return the packed size
+     */
+    public static long pack(int width, int height) {
+        return ((long) width << 32) | (height & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the width of a size packed by {@link #pack(int, int)}.
+     *
+     * @param size the packed size
+     * @return the width
+     */
+    public static int getWidth(long size) {
+        return (int) (size >> 32);
+    }
+
+    /**
+     * Returns the height of a size packed by {@link #pack(int, int)}.
+     *
+     * @param size the packed size
+     * @return the height
+     */
+    public static int getHeight(long size) {
+        return (int) size;
+    }
+
+    /**
+     * Packs a float size. NaNs are packed with the same bits, so equal sizes are packed into equal longs.
+     *
+     * @param width  the width
+     * @param height the height
+     * @return the packed size
+     */
+    public static long packF(float width, float height) {
+        return pack(Float.floatToIntBits(width), Float.floatToIntBits(height));
+    }
+
+    /**
+     * Returns the width of a size packed by {@link #packF(float, float)}.
+     *
+     * @param size the packed size
+     * @return the width
+     */
+    public static float getWidthF(long size) {
+        return Float.intBitsToFloat(getWidth(size));
+    }
+
+    /**
+     * Returns the height of a size packed by {@link #packF(float, float)}.
+     *
+     * @param size the packed size
+     * @return the height
+     */
+    public static float getHeightF(long size) {
+        return Float.intBitsToFloat(getHeight(size));
+    }
+
+    /**
+     * Returns the text form of a size packed by {@link #pack(int, int)}, like android.util.Size does.
+     *
+     * @param size the packed size
+     * @return the width and the height separated by an "x"
+     */
+    @Nonnull
+    public static String toString(long size) {
+        return getWidth(size) + "x" + getHeight(size);
+    }
+
+    /**
+     * Returns the text form of a size packed by {@link #packF(float, float)}, like android.util.SizeF does.
+     *
+     * @param size the packed size
+     * @return the width and the height separated by an "x"
+     */
+    @Nonnull
+    public static String toStringF(long size) {
+        return getWidthF(size) + "x" + getHeightF(size);
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Stores named StateBundle trees in a directory, keeping each nested StateBundle (put with {@link StateBundle#putBundle(String, StateBundle)})
+ * as a separate blob that is addressed by the SHA-256 hash of its content.
+ *
+ * Identical subtrees are only stored once, even if they belong to different snapshots, so saving a snapshot that is
+ * mostly the same as the previous one only writes the subtrees that changed.
+ *
+ * The bundles are encoded with a canonical {@link StateBundleCodec}, so a loaded bundle does not keep the insertion order of the keys.
+ * Blobs that are no longer reachable from any name are only deleted by {@link #collectGarbage()}.
+ */
+public class StateBundleSnapshotStore {
+    private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*");
+    private static final int HASH_LENGTH = 32;
+
+    private final File refsDirectory;
+    private final File blobsDirectory;
+    private final StateBundleCodec codec;
+
+    /**
+     * Constructs a StateBundleSnapshotStore in the given directory, which is created if it does not exist.
+     *
+     * @param directory the directory, must not be null.
+     * @throws IOException if the directory could not be created
+     */
+    public StateBundleSnapshotStore(@Nonnull File directory)
+            throws IOException {
+        this(directory, StateBundleSnapshotStore.class.getClassLoader());
+    }
+
+    /**
+     * Constructs a StateBundleSnapshotStore in the given directory, which is created if it does not exist.
+     *
+     * @param directory   the directory, must not be null.
+     * @param classLoader the class loader used to load Parcelable classes, must not be null.
+     * @throws IOException if the directory could not be created
+     */
+    public StateBundleSnapshotStore(@Nonnull File directory, @Nonnull ClassLoader classLoader)
+            throws IOException {
+        if(directory == null) {
+            throw new IllegalArgumentException("The provided directory should not be null!");
+        }
+        this.codec = new StateBundleCodec.Builder().setClassLoader(classLoader).setCanonical(true).build();
+        this.refsDirectory = new File(directory, "refs");
+        this.blobsDirectory = new File(directory, "blobs");
+        createDirectory(refsDirectory);
+        createDirectory(blobsDirectory);
+    }
+
+    private static void createDirectory(File directory)
+            throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create [" + directory + "]");
+        }
+    }
+
+    /**
+     * Stores the StateBundle under the given name, replacing the previously stored one.
+     *
+     * @param name   the name, must consist of letters, digits, '.', '_' and '-', and must not start with '.'.
+     * @param bundle the StateBundle, must not be null.
+     * @throws IOException if the bundle could not be written
+     */
+    public synchronized void put(@Nonnull String name, @Nonnull StateBundle bundle)
+            throws IOException {
+        File ref = refFile(name);
+        if(bundle == null) {
+            throw new IllegalArgumentException("The provided bundle should not be null!");
+        }
+        byte[] hash = writeNode(bundle);
+        AtomicFiles.write(ref, toHex(hash).getBytes(StateBundleEncoder.UTF_8));
+    }
+
+    /**
+     * Loads the StateBundle stored under the given name.
+     *
+     * @param name the name, must consist of letters, digits, '.', '_' and '-', and must not start with '.'.
+     * @return the StateBundle, or null if nothing is stored under the name
+     * @throws IOException if the bundle could not be read, or the stored data is corrupt
+     */
+    @Nullable
+    public synchronized StateBundle get(@Nonnull String name)
+            throws IOException {
+        File ref = refFile(name);
+        if(!ref.exists()) {
+            return null;
+        }
+        return readNode(readRef(ref));
+    }
+
+    /**
+     * Removes the name. The blobs of the bundle are deleted by the next {@link #collectGarbage()}.
+     *
+     * @param name the name, must consist of letters, digits, '.', '_' and '-', and must not start with '.'.
+     * @return true if a bundle was stored under the name
+     */
+    public synchronized boolean remove(@Nonnull String name) {
+        return refFile(name).delete();
+    }
+
+    /**
+     * Returns the names that have a stored bundle.
+     *
+     * @return the names
+     */
+    @Nonnull
+    public synchronized Set<String> names() {
+        Set<String> names = new HashSet<>();
+        for(File ref : listFiles(refsDirectory)) {
+            if(NAME_PATTERN.matcher(ref.getName()).matches() && !ref.getName().endsWith(".tmp")) {
+                names.add(ref.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Deletes the blobs that are not reachable from any stored name.
+     *
+     * @return the number of deleted blobs
+     * @throws IOException if a stored bundle could not be read
+     */
+    public synchronized int collectGarbage()
+            throws IOException {
+        Set<String> reachable = new HashSet<>();
+        List<byte[]> stack = new ArrayList<>();
+        for(String name : names()) {
+            stack.add(readRef(new File(refsDirectory, name)));
+        }
+        while(!stack.isEmpty()) {
+            byte[] hash = stack.remove(stack.size() - 1);
+            if(reachable.add(toHex(hash))) {
+                ByteBuffer node = ByteBuffer.wrap(readBlob(hash));
+                try {
+                    int childCount = readChildCount(node);
+                    for(int i = 0; i < childCount; i++) {
+                        skipString(node);
+                        stack.add(readHash(node));
+                    }
+                } catch(BufferUnderflowException | IllegalArgumentException e) {
+                    throw new IOException("Blob [" + toHex(hash) + "] is corrupt", e);
+                }
+            }
+        }
+        int deleted = 0;
+        for(File blob : listFiles(blobsDirectory)) {
+            if(!reachable.contains(blob.getName()) && blob.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private File refFile(String name) {
+        if(name == null) {
+            throw new IllegalArgumentException("The provided name should not be null!");
+        }
+        if(!NAME_PATTERN.matcher(name).matches() || name.endsWith(".tmp")) {
+            throw new IllegalArgumentException("The provided name [" + name + "] is not a valid name!");
+        }
+        return new File(refsDirectory, name);
+    }
+
+    private static File[] listFiles(File directory) {
+        File[] files = directory.listFiles();
+        return files == null ? new File[0] : files;
+    }
+
+    // A node is the list of its nested StateBundles as (key, hash) pairs, followed by the encoded bundle without them.
+    private byte[] writeNode(StateBundle bundle)
+            throws IOException {
+        StateBundle rest = new StateBundle(bundle.size());
+        List<StateBundle.Entry> children = new ArrayList<>();
+        for(StateBundle.Entry entry : bundle.entries()) {
+            if(entry.getType() == StateBundle.type_StateBundle && entry.getValue() != null) {
+                children.add(entry);
+            } else {
+                rest.map.put(entry.getKey(), entry.getValue());
+                rest.typeMap.put(entry.getKey(), entry.getType());
+            }
+        }
+        StateBundleEncoder encoder = new StateBundleEncoder(true);
+        encoder.writeInt(children.size());
+        // the children are written in the order of their keys, so the node does not depend on insertion order
+        Collections.sort(children, StateBundleEncoder.KEY_ORDER);
+        for(StateBundle.Entry child : children) {
+            encoder.writeString(child.getKey());
+            encoder.writeRawBytes(writeNode((StateBundle) child.getValue()));
+        }
+        try {
+            encoder.writeBytes(codec.encode(rest));
+        } catch(IllegalArgumentException e) {
+            throw new IOException("The StateBundle could not be encoded", e);
+        }
+        byte[] node = encoder.toByteArray();
+        byte[] hash = sha256(node);
+        File blob = new File(blobsDirectory, toHex(hash));
+        if(!blob.exists()) {
+            AtomicFiles.write(blob, node);
+        }
+        return hash;
+    }
+
+    private StateBundle readNode(byte[] hash)
+            throws IOException {
+        ByteBuffer node = ByteBuffer.wrap(readBlob(hash));
+        try {
+            int childCount = readChildCount(node);
+            List<String> keys = new ArrayList<>(childCount);
+            List<StateBundle> values = new ArrayList<>(childCount);
+            StateBundleDecoder decoder = new StateBundleDecoder(node, null);
+            for(int i = 0; i < childCount; i++) {
+                keys.add(decoder.readString());
+                values.add(readNode(readHash(node)));
+            }
+            StateBundle bundle = codec.decode(decoder.readBytes());
+            for(int i = 0; i < childCount; i++) {
+                bundle.putBundle(keys.get(i), values.get(i));
+            }
+            return bundle;
+        } catch(BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Blob [" + toHex(hash) + "] is corrupt", e);
+        }
+    }
+
+    private byte[] readBlob(byte[] hash)
+            throws IOException {
+        File blob = new File(blobsDirectory, toHex(hash));
+        if(!blob.exists()) {
+            throw new IOException("Blob [" + toHex(hash) + "] is missing");
+        }
+        byte[] node = AtomicFiles.read(blob);
+        if(!MessageDigest.isEqual(hash, sha256(node))) {
+            throw new IOException("Blob [" + toHex(hash) + "] is corrupt");
+        }
+        return node;
+    }
+
+    private static byte[] readRef(File ref)
+            throws IOException {
+        String hex = new String(AtomicFiles.read(ref), StateBundleEncoder.UTF_8).trim();
+        if(hex.length() != HASH_LENGTH * 2) {
+            throw new IOException("[" + ref + "] is corrupt");
+        }
+        byte[] hash = new byte[HASH_LENGTH];
+        for(int i = 0; i < HASH_LENGTH; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if(high == -1 || low == -1) {
+                throw new IOException("[" + ref + "] is corrupt");
+            }
+            hash[i] = (byte) (high << 4 | low);
+        }
+        return hash;
+    }
+
+    private static int readChildCount(ByteBuffer node) {
+        int childCount = node.getInt();
+        if(childCount < 0 || childCount > node.remaining()) {
+            throw new IllegalArgumentException("Malformed data: invalid child count [" + childCount + "]");
+        }
+        return childCount;
+    }
+
+    private static void skipString(ByteBuffer node) {
+        if(node.get() != 0) {
+            int length = node.getInt();
+            if(length < 0 || length > node.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            node.position(node.position() + length);
+        }
+    }
+
+    private static byte[] readHash(ByteBuffer node) {
+        byte[] hash = new byte[HASH_LENGTH];
+        node.get(hash);
+        return hash;
+    }
+
+    static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            chars[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(chars);
+    }
+}
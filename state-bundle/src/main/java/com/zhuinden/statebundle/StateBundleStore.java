@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Stores StateBundles by key in an append-only log file.
+ *
+ * Every {@link #put(String, StateBundle)} and {@link #remove(String)} appends a checksummed record to the end of the file,
+ * and the position of the latest record of each key is kept in memory. Reads decode the record from a memory-mapped view of the file.
+ *
+ * If the process dies while a record is written, the incomplete record is detected by its checksum and dropped when the file is opened again.
+ * A corrupt record that is followed by other records is not dropped, opening the file fails with an IOException instead.
+ *
+ * Records that were overwritten or removed are reclaimed by compaction, which copies the live records into a new file
+ * and replaces the log with it. Compaction runs on the executor once the reclaimable records take up more than half of the file.
+ */
+public class StateBundleStore
+        implements Closeable {
+    // The position and the size of the latest record of a key
+    private static final class Location {
+        final long offset;
+        final int size;
+
+        Location(long offset, int size) {
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    // length and checksum of the payload
+    private static final int HEADER_SIZE = 8;
+
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+    private final File file;
+    private final StateBundleCodec codec;
+    private final Executor executor;
+
+    private final Map<String, Location> index = new HashMap<>();
+    private final Object compactionLock = new Object();
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer mappedBuffer;
+    private long end;
+    private long liveBytes;
+    private boolean compacting;
+
+    private final Runnable compactionTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                compact();
+            } catch(IOException e) {
+                // the log is still valid, compaction is retried after the next write
+            } catch(IllegalStateException e) {
+                // the store was closed
+            }
+        }
+    };
+
+    /**
+     * Opens the store in the given file, which is created if it does not exist. Compaction runs on a shared background thread.
+     *
+     * @param file the file, must not be null.
+     * @throws IOException if the file could not be opened
+     */
+    public StateBundleStore(@Nonnull File file)
+            throws IOException {
+        this(file, BackgroundExecutor.get(), new StateBundleCodec());
+    }
+
+    /**
+     * Opens the store in the given file, which is created if it does not exist.
+     *
+     * @param file     the file, must not be null.
+     * @param executor the executor that runs compaction, must not be null.
+     * @param codec    the codec used to encode the bundles, must not be null.
+     * @throws IOException if the file could not be opened
+     */
+    public StateBundleStore(@Nonnull File file, @Nonnull Executor executor, @Nonnull StateBundleCodec codec)
+            throws IOException {
+        if(file == null) {
+            throw new IllegalArgumentException("The provided file should not be null!");
+        }
+        if(executor == null) {
+            throw new IllegalArgumentException("The provided executor should not be null!");
+        }
+        if(codec == null) {
+            throw new IllegalArgumentException("The provided codec should not be null!");
+        }
+        this.file = file;
+        this.executor = executor;
+        this.codec = codec;
+        open();
+    }
+
+    private void open()
+            throws IOException {
+        File previousFile = previousFile();
+        if(previousFile.exists() && !file.exists() && !previousFile.renameTo(file)) {
+            // the process died while compaction replaced the log
+            throw new IOException("Could not restore [" + file + "]");
+        }
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        mappedBuffer = null;
+        index.clear();
+        liveBytes = 0;
+        end = 0;
+        long size = channel.size();
+        if(size == 0) {
+            return;
+        }
+        ByteBuffer buffer = map(size);
+        while(end < size) {
+            int recordSize = readRecord(buffer, end, size);
+            if(recordSize == -1) {
+                if(!isIncompleteTail(buffer, end, size)) {
+                    mappedBuffer = null;
+                    channel.close();
+                    randomAccessFile.close();
+                    channel = null;
+                    throw new IOException("[" + file + "] has a corrupt record at offset [" + end + "] followed by other records");
+                }
+                // incomplete tail, left by a write that did not finish
+                channel.truncate(end);
+                channel.force(true);
+                mappedBuffer = null;
+                break;
+            }
+            buffer.position((int) end + HEADER_SIZE);
+            byte kind = buffer.get();
+            String key = readKey(buffer);
+            Location previous = index.remove(key);
+            if(previous != null) {
+                liveBytes -= previous.size;
+            }
+            if(kind == RECORD_PUT) {
+                index.put(key, new Location(end, recordSize));
+                liveBytes += recordSize;
+            }
+            end += recordSize;
+        }
+    }
+
+    // Returns the size of the valid record at the offset, or -1 if it is incomplete or corrupt
+    private static int readRecord(ByteBuffer buffer, long offset, long size) {
+        if(size - offset < HEADER_SIZE) {
+            return -1;
+        }
+        int length = buffer.getInt((int) offset);
+        int checksum = buffer.getInt((int) offset + 4);
+        if(length <= 0 || length > size - offset - HEADER_SIZE) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer payload = buffer.duplicate();
+        payload.position((int) offset + HEADER_SIZE);
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        crc.update(bytes);
+        if((int) crc.getValue() != checksum) {
+            return -1;
+        }
+        byte kind = bytes[0];
+        if(kind != RECORD_PUT && kind != RECORD_REMOVE) {
+            return -1;
+        }
+        return HEADER_SIZE + length;
+    }
+
+    // An invalid record is the tail left by a write that did not finish, or zeros left by a file system that extended the file
+    // before the data was written, only if no valid record starts after it. A corrupt length can point past the end of the file,
+    // so the rest of the file is searched, and any valid record found there means corruption in the middle of the log.
+    private static boolean isIncompleteTail(ByteBuffer buffer, long offset, long size) {
+        for(long next = offset + 1; next + HEADER_SIZE < size; next++) {
+            if(readRecord(buffer, next, size) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int recordSize(ByteBuffer buffer, long offset) {
+        return HEADER_SIZE + buffer.getInt((int) offset);
+    }
+
+    private static String readKey(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StateBundleEncoder.UTF_8);
+    }
+
+    private MappedByteBuffer map(long size)
+            throws IOException {
+        if(size > Integer.MAX_VALUE) {
+            throw new IOException("[" + file + "] is too large");
+        }
+        mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        return mappedBuffer;
+    }
+
+    // The mapping is extended lazily, when a record beyond it is read
+    private ByteBuffer mappedUntil(long offset)
+            throws IOException {
+        if(mappedBuffer == null || mappedBuffer.capacity() < offset) {
+            map(end);
+        }
+        return mappedBuffer.duplicate();
+    }
+
+    private void ensureOpen() {
+        if(channel == null) {
+            throw new IllegalStateException("The store is closed!");
+        }
+    }
+
+    private static void checkKey(String key) {
+        if(key == null) {
+            throw new IllegalArgumentException("The provided key should not be null!");
+        }
+    }
+
+    /**
+     * Stores the StateBundle under the key. When the method returns, the record is written to the storage device.
+     *
+     * @param key    the key, must not be null.
+     * @param bundle the StateBundle, must not be null.
+     * @throws IOException if the record could not be written
+     */
+    public void put(@Nonnull String key, @Nonnull StateBundle bundle)
+            throws IOException {
+        checkKey(key);
+        if(bundle == null) {
+            throw new IllegalArgumentException("The provided bundle should not be null!");
+        }
+        byte[] value;
+        try {
+            value = codec.encode(bundle);
+        } catch(IllegalArgumentException e) {
+            throw new IOException("The StateBundle could not be encoded", e);
+        }
+        append(RECORD_PUT, key, value);
+    }
+
+    /**
+     * Removes the StateBundle stored under the key.
+     *
+     * @param key the key, must not be null.
+     * @return true if a StateBundle was stored under the key
+     * @throws IOException if the record could not be written
+     */
+    public boolean remove(@Nonnull String key)
+            throws IOException {
+        checkKey(key);
+        synchronized(this) {
+            ensureOpen();
+            if(!index.containsKey(key)) {
+                return false;
+            }
+        }
+        append(RECORD_REMOVE, key, null);
+        return true;
+    }
+
+    private void append(byte kind, String key, byte[] value)
+            throws IOException {
+        StateBundleEncoder encoder = new StateBundleEncoder();
+        encoder.writeInt(0);
+        encoder.writeInt(0);
+        encoder.writeByte(kind);
+        encoder.writeBytes(key.getBytes(StateBundleEncoder.UTF_8));
+        if(value != null) {
+            encoder.writeRawBytes(value);
+        }
+        byte[] record = encoder.toByteArray();
+        int length = record.length - HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER_SIZE, length);
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(0, length);
+        buffer.putInt(4, (int) crc.getValue());
+
+        boolean scheduleCompaction;
+        synchronized(this) {
+            ensureOpen();
+            long offset = end;
+            while(buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            channel.force(false);
+            end += record.length;
+            Location previous = index.remove(key);
+            if(previous != null) {
+                liveBytes -= previous.size;
+            }
+            if(kind == RECORD_PUT) {
+                index.put(key, new Location(offset, record.length));
+                liveBytes += record.length;
+            }
+            scheduleCompaction = !compacting && end >= MIN_COMPACTION_SIZE && end - liveBytes > liveBytes;
+            if(scheduleCompaction) {
+                compacting = true;
+            }
+        }
+        if(scheduleCompaction) {
+            try {
+                executor.execute(compactionTask);
+            } catch(RejectedExecutionException e) {
+                // the record is written, compaction is retried after the next write
+                synchronized(this) {
+                    compacting = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the StateBundle stored under the key.
+     *
+     * @param key the key, must not be null.
+     * @return the StateBundle, or null if nothing is stored under the key
+     * @throws IOException if the record could not be read
+     */
+    @Nullable
+    public StateBundle get(@Nonnull String key)
+            throws IOException {
+        checkKey(key);
+        ByteBuffer record;
+        synchronized(this) {
+            ensureOpen();
+            Location location = index.get(key);
+            if(location == null) {
+                return null;
+            }
+            ByteBuffer buffer = mappedUntil(location.offset + location.size);
+            buffer.position((int) location.offset + HEADER_SIZE);
+            buffer.limit((int) location.offset + location.size);
+            record = buffer.slice();
+        }
+        // the mapped record is never modified, so it can be decoded outside of the lock
+        record.get();
+        readKey(record);
+        try {
+            return codec.decode(record);
+        } catch(IllegalArgumentException e) {
+            throw new IOException("The record of [" + key + "] could not be decoded", e);
+        }
+    }
+
+    /**
+     * Returns the keys that have a stored StateBundle.
+     *
+     * @return a copy of the keys
+     */
+    @Nonnull
+    public synchronized Set<String> keys() {
+        ensureOpen();
+        return new HashSet<>(index.keySet());
+    }
+
+    /**
+     * Rewrites the log with only the latest record of each key. Writes are not blocked while the live records are copied.
+     *
+     * @throws IOException if the log could not be rewritten
+     */
+    public void compact()
+            throws IOException {
+        synchronized(compactionLock) {
+            File compactedFile = new File(file.getPath() + ".compact");
+            Iterable<Location> liveRecords;
+            ByteBuffer source;
+            long copiedEnd;
+            synchronized(this) {
+                ensureOpen();
+                compacting = true;
+                liveRecords = new ArrayList<>(index.values());
+                copiedEnd = end;
+                source = mappedUntil(end);
+            }
+            boolean replaced = false;
+            RandomAccessFile compacted = new RandomAccessFile(compactedFile, "rw");
+            try {
+                FileChannel compactedChannel = compacted.getChannel();
+                compactedChannel.truncate(0);
+                long position = 0;
+                for(Location location : liveRecords) {
+                    position += copyRecord(source, location.offset, compactedChannel, position);
+                }
+                synchronized(this) {
+                    ensureOpen();
+                    // records appended while copying are copied as they are
+                    ByteBuffer tail = mappedUntil(end);
+                    for(long offset = copiedEnd; offset < end; ) {
+                        int recordSize = copyRecord(tail, offset, compactedChannel, position);
+                        position += recordSize;
+                        offset += recordSize;
+                    }
+                    compactedChannel.force(true);
+                    compacted.close();
+                    // the mappings of the log can't be released explicitly, only the references to them are dropped
+                    source = null;
+                    tail = null;
+                    close();
+                    if(!replace(compactedFile, file)) {
+                        open();
+                        throw new IOException("Could not replace [" + file + "]");
+                    }
+                    replaced = true;
+                    // the index is rebuilt from the compacted file
+                    open();
+                }
+            } finally {
+                if(!replaced) {
+                    compacted.close();
+                    compactedFile.delete();
+                }
+                synchronized(this) {
+                    compacting = false;
+                }
+            }
+        }
+    }
+
+    private File previousFile() {
+        return new File(file.getPath() + ".old");
+    }
+
+    // The log is moved aside before the compacted file takes its place, so it is never deleted before it is replaced.
+    // Where a file can't be renamed while it is still mapped, the replacement fails and the log stays as it is.
+    private boolean replace(File replacement, File file) {
+        if(replacement.renameTo(file)) {
+            return true;
+        }
+        File previousFile = previousFile();
+        previousFile.delete();
+        if(!file.renameTo(previousFile)) {
+            return false;
+        }
+        if(!replacement.renameTo(file)) {
+            previousFile.renameTo(file);
+            return false;
+        }
+        previousFile.delete();
+        return true;
+    }
+
+    private static int copyRecord(ByteBuffer source, long offset, FileChannel target, long position)
+            throws IOException {
+        int recordSize = recordSize(source, offset);
+        ByteBuffer record = source.duplicate();
+        record.position((int) offset);
+        record.limit((int) offset + recordSize);
+        while(record.hasRemaining()) {
+            target.write(record, position + record.position() - offset);
+        }
+        return recordSize;
+    }
+
+    /**
+     * Closes the log file. The store cannot be used after it is closed.
+     *
+     * @throws IOException if the file could not be closed
+     */
+    @Override
+    public synchronized void close()
+            throws IOException {
+        if(channel != null) {
+            channel.close();
+            randomAccessFile.close();
+            channel = null;
+            mappedBuffer = null;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import android.os.Bundle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Handles the values of a type of a {@link StateBundle}: how they are encoded, decoded, hashed, compared and printed.
+ *
+ * StateBundle looks up the codec of each entry by its type in a table, so the built-in types and the custom types
+ * registered with {@link StateBundle#registerTypeCodec(int, StateBundleTypeCodec)} are dispatched the same way.
+ *
+ * The values of a custom type are stored with {@link StateBundle#putCustom(String, int, Object)}. They are written
+ * into a Parcel and by {@link StateBundleCodec} in the form produced by {@link #encode(DataOutput, Object)}.
+ *
+ * @param <T> the type of the values
+ */
+public abstract class StateBundleTypeCodec<T> {
+    private final Class<T> valueClass;
+
+    /**
+     * Constructs a StateBundleTypeCodec.
+     *
+     * @param valueClass the class of the values, must not be null.
+     */
+    protected StateBundleTypeCodec(@Nonnull Class<T> valueClass) {
+        if(valueClass == null) {
+            throw new IllegalArgumentException("The provided value class should not be null!");
+        }
+        this.valueClass = valueClass;
+    }
+
+    /**
+     * Returns the class of the values handled by this codec.
+     *
+     * @return the value class
+     */
+    @Nonnull
+    public final Class<T> getValueClass() {
+        return valueClass;
+    }
+
+    /**
+     * Writes the value.
+     *
+     * @param output the output
+     * @param value  the value, never null.
+     * @throws IOException if the value could not be written
+     */
+    public abstract void encode(@Nonnull DataOutput output, @Nonnull T value)
+            throws IOException;
+
+    /**
+     * Reads a value written by {@link #encode(DataOutput, Object)}.
+     *
+     * @param input the input
+     * @return the value, must not be null.
+     * @throws IOException if the value could not be read
+     */
+    @Nonnull
+    public abstract T decode(@Nonnull DataInput input)
+            throws IOException;
+
+    /**
+     * Returns the hash code of the value, used by {@link StateBundle#hashCode()}.
+     *
+     * @param value the value, never null.
+     * @return the hash code
+     */
+    public int hashCode(@Nonnull T value) {
+        return value.hashCode();
+    }
+
+    /**
+     * Returns whether the values are equal, used by {@link StateBundle#equals(Object)}.
+     *
+     * @param value the value, never null.
+     * @param other the other value, never null.
+     * @return true if the values are equal
+     */
+    public boolean equals(@Nonnull T value, @Nonnull T other) {
+        return value.equals(other);
+    }
+
+    /**
+     * Returns the text form of the value, used by {@link StateBundle#toString()}.
+     *
+     * @param value the value, never null.
+     * @return the text form
+     */
+    @Nonnull
+    public String toString(@Nonnull T value) {
+        return String.valueOf(value);
+    }
+
+    /**
+     * Puts the value into an android.os.Bundle, used by {@link StateBundle#copyToBundle(Bundle)}.
+     *
+     * By default, the encoded form of the value is put as a byte array.
+     *
+     * @param bundle the Bundle
+     * @param key    the key, or null
+     * @param value  the value, never null.
+     */
+    public void copyToBundle(@Nonnull Bundle bundle, String key, @Nonnull T value) {
+        bundle.putByteArray(key, toByteArray(value));
+    }
+
+    @Nonnull
+    final byte[] toByteArray(@Nonnull T value) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try {
+            DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+            encode(dataOutputStream, value);
+            dataOutputStream.flush();
+        } catch(IOException e) {
+            throw new IllegalArgumentException("The value [" + value + "] could not be encoded", e);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    @Nonnull
+    final T fromByteArray(@Nonnull byte[] bytes) {
+        T value;
+        try {
+            value = decode(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch(IOException e) {
+            throw new IllegalArgumentException("The value could not be decoded", e);
+        }
+        if(!valueClass.isInstance(value)) {
+            throw new IllegalArgumentException("The decoded value [" + value + "] is not a " + valueClass.getName());
+        }
+        return value;
+    }
+}
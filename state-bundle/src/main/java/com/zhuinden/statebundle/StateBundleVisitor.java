@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhuinden.statebundle;
+
+import android.os.Parcelable;
+import android.util.SparseArray;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/**
+ * Receives the entries of a {@link StateBundle} with the type they were put with.
+ *
+ * Primitive values are passed unboxed, so a visitor can read a StateBundle without a lookup per key.
+ *
+ * @see StateBundle#accept(StateBundleVisitor)
+ */
+public interface StateBundleVisitor {
+    void visitBoolean(@Nullable String key, boolean value);
+
+    void visitByte(@Nullable String key, byte value);
+
+    void visitChar(@Nullable String key, char value);
+
+    void visitShort(@Nullable String key, short value);
+
+    void visitInt(@Nullable String key, int value);
+
+    void visitLong(@Nullable String key, long value);
+
+    void visitFloat(@Nullable String key, float value);
+
+    void visitDouble(@Nullable String key, double value);
+
+    void visitSize(@Nullable String key, int width, int height);
+
+    void visitSizeF(@Nullable String key, float width, float height);
+
+    void visitString(@Nullable String key, @Nullable String value);
+
+    void visitCharSequence(@Nullable String key, @Nullable CharSequence value);
+
+    void visitSerializable(@Nullable String key, @Nullable Serializable value);
+
+    void visitEnum(@Nullable String key, @Nullable Enum<?> value);
+
+    void visitUUID(@Nullable String key, @Nullable UUID value);
+
+    void visitDate(@Nullable String key, @Nullable Date value);
+
+    void visitBigDecimal(@Nullable String key, @Nullable BigDecimal value);
+
+    void visitIntegerArrayList(@Nullable String key, @Nullable ArrayList<Integer> value);
+
+    void visitStringArrayList(@Nullable String key, @Nullable ArrayList<String> value);
+
+    void visitCharSequenceArrayList(@Nullable String key, @Nullable ArrayList<CharSequence> value);
+
+    void visitBooleanArray(@Nullable String key, @Nullable boolean[] value);
+
+    void visitByteArray(@Nullable String key, @Nullable byte[] value);
+
+    void visitShortArray(@Nullable String key, @Nullable short[] value);
+
+    void visitCharArray(@Nullable String key, @Nullable char[] value);
+
+    void visitIntArray(@Nullable String key, @Nullable int[] value);
+
+    void visitLongArray(@Nullable String key, @Nullable long[] value);
+
+    void visitFloatArray(@Nullable String key, @Nullable float[] value);
+
+    void visitDoubleArray(@Nullable String key, @Nullable double[] value);
+
+    void visitStringArray(@Nullable String key, @Nullable String[] value);
+
+    void visitCharSequenceArray(@Nullable String key, @Nullable CharSequence[] value);
+
+    void visitBundle(@Nullable String key, @Nullable StateBundle value);
+
+    void visitParcelable(@Nullable String key, @Nullable Parcelable value);
+
+    void visitParcelableArray(@Nullable String key, @Nullable Parcelable[] value);
+
+    void visitParcelableArrayList(@Nullable String key, @Nullable ArrayList<Parcelable> value);
+
+    void visitSparseParcelableArray(@Nullable String key, @Nullable SparseArray<Parcelable> value);
+
+    /**
+     * Receives a value of a custom type, see {@link StateBundle#registerTypeCodec(int, StateBundleTypeCodec)}.
+     */
+    void visitCustom(@Nullable String key, int type, @Nullable Object value);
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrentStateBundleTest {
+    @Test
+    public void valuesArePutAndRetrieved() {
+        ConcurrentStateBundle bundle = new ConcurrentStateBundle();
+        bundle.putInt("int", 5);
+        bundle.putString("string", "hello");
+        bundle.putIntArray("intArray", new int[]{1, 2});
+        bundle.putString(null, "null key");
+        bundle.putString("null value", null);
+
+        assertThat(bundle.getInt("int")).isEqualTo(5);
+        assertThat(bundle.getString("string")).isEqualTo("hello");
+        assertThat(bundle.getIntArray("intArray")).isEqualTo(new int[]{1, 2});
+        assertThat(bundle.getString(null)).isEqualTo("null key");
+        assertThat(bundle.containsKey("null value")).isTrue();
+        assertThat(bundle.getString("null value")).isNull();
+        assertThat(bundle.getLong("int")).isEqualTo(0L);
+        assertThat(bundle.size()).isEqualTo(5);
+        assertThat(bundle.keySet()).containsOnly("int", "string", "intArray", null, "null value");
+
+        bundle.remove("int");
+        assertThat(bundle.containsKey("int")).isFalse();
+        bundle.clear();
+        assertThat(bundle.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void typedAccessorsAreSharedWithStateBundle() {
+        AbstractStateBundle<?>[] bundles = {new StateBundle(), new ConcurrentStateBundle()};
+        for(AbstractStateBundle<?> bundle : bundles) {
+            bundle.putSize("size", 3, 4).putLong("long", 5L).putEnum("enum", Thread.State.NEW);
+
+            assertThat(bundle.getSize("size")).isEqualTo(StateBundleSize.pack(3, 4));
+            assertThat(bundle.getSize("long", -1L)).isEqualTo(-1L);
+            assertThat(bundle.getEnum("enum", Thread.State.class)).isSameAs(Thread.State.NEW);
+            assertThat(bundle.<Object>getCustom("long", StateBundle.FIRST_CUSTOM_TYPE)).isNull();
+        }
+    }
+
+    @Test
+    public void snapshotKeepsTypes() {
+        StateBundle nested = new StateBundle();
+        nested.putString("hello", "world");
+
+        ConcurrentStateBundle bundle = new ConcurrentStateBundle();
+        bundle.putLong("long", 5L);
+        bundle.putBundle("bundle", nested);
+        bundle.putStringArray("stringArray", new String[]{"a", "b"});
+
+        StateBundle expected = new StateBundle();
+        expected.putLong("long", 5L);
+        expected.putBundle("bundle", nested);
+        expected.putStringArray("stringArray", new String[]{"a", "b"});
+
+        Map<String, Object> nestedMap = nested.map;
+        StateBundle snapshot = bundle.snapshot();
+        assertThat(snapshot).isEqualTo(expected);
+        assertThat(snapshot.typeMap.get("bundle")).isEqualTo(StateBundle.type_StateBundle);
+        assertThat(new ConcurrentStateBundle(snapshot).snapshot()).isEqualTo(expected);
+
+        nested.putString("hello", "there");
+        assertThat(snapshot.getBundle("bundle").isImmutable()).isTrue();
+        assertThat(snapshot.getBundle("bundle").getString("hello")).isEqualTo("world");
+        // the nested bundle was not marked as shared, so it keeps its map
+        assertThat(nested.map).isSameAs(nestedMap);
+    }
+
+    @Test
+    public void concurrentWritersAreAllVisibleInSnapshot()
+            throws InterruptedException {
+        final ConcurrentStateBundle bundle = new ConcurrentStateBundle();
+        final int threadCount = 4;
+        final int keysPerThread = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < threadCount; i++) {
+            final int thread = i;
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    for(int j = 0; j < keysPerThread; j++) {
+                        bundle.putInt(thread + "_" + j, j);
+                        if(j % 100 == 0) {
+                            bundle.snapshot();
+                        }
+                    }
+                }
+            });
+            threads.add(writer);
+            writer.start();
+        }
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        StateBundle snapshot = bundle.snapshot();
+        assertThat(snapshot.size()).isEqualTo(threadCount * keysPerThread);
+        assertThat(snapshot.getInt("3_999")).isEqualTo(999);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+
+import android.os.Parcelable;
+import android.util.SparseArray;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+class RecordingVisitor
+        implements StateBundleVisitor {
+    final List<String> visits = new ArrayList<>();
+
+    private void record(String kind, String key, Object value) {
+        visits.add(kind + ":" + key + "=" + value);
+    }
+
+    @Override
+    public void visitBoolean(String key, boolean value) {
+        record("Boolean", key, value);
+    }
+
+    @Override
+    public void visitByte(String key, byte value) {
+        record("Byte", key, value);
+    }
+
+    @Override
+    public void visitChar(String key, char value) {
+        record("Char", key, value);
+    }
+
+    @Override
+    public void visitShort(String key, short value) {
+        record("Short", key, value);
+    }
+
+    @Override
+    public void visitInt(String key, int value) {
+        record("Int", key, value);
+    }
+
+    @Override
+    public void visitLong(String key, long value) {
+        record("Long", key, value);
+    }
+
+    @Override
+    public void visitFloat(String key, float value) {
+        record("Float", key, value);
+    }
+
+    @Override
+    public void visitDouble(String key, double value) {
+        record("Double", key, value);
+    }
+
+    @Override
+    public void visitSize(String key, int width, int height) {
+        record("Size", key, width + "x" + height);
+    }
+
+    @Override
+    public void visitSizeF(String key, float width, float height) {
+        record("SizeF", key, width + "x" + height);
+    }
+
+    @Override
+    public void visitString(String key, String value) {
+        record("String", key, value);
+    }
+
+    @Override
+    public void visitCharSequence(String key, CharSequence value) {
+        record("CharSequence", key, value);
+    }
+
+    @Override
+    public void visitSerializable(String key, Serializable value) {
+        record("Serializable", key, value);
+    }
+
+    @Override
+    public void visitEnum(String key, Enum<?> value) {
+        record("Enum", key, value);
+    }
+
+    @Override
+    public void visitUUID(String key, UUID value) {
+        record("UUID", key, value);
+    }
+
+    @Override
+    public void visitDate(String key, Date value) {
+        record("Date", key, value == null ? null : value.getTime());
+    }
+
+    @Override
+    public void visitBigDecimal(String key, BigDecimal value) {
+        record("BigDecimal", key, value);
+    }
+
+    @Override
+    public void visitIntegerArrayList(String key, ArrayList<Integer> value) {
+        record("IntegerArrayList", key, value);
+    }
+
+    @Override
+    public void visitStringArrayList(String key, ArrayList<String> value) {
+        record("StringArrayList", key, value);
+    }
+
+    @Override
+    public void visitCharSequenceArrayList(String key, ArrayList<CharSequence> value) {
+        record("CharSequenceArrayList", key, value);
+    }
+
+    @Override
+    public void visitBooleanArray(String key, boolean[] value) {
+        record("BooleanArray", key, java.util.Arrays.toString(value));
+    }
+
+    @Override
+    public void visitByteArray(String key, byte[] value) {
+        record("ByteArray", key, java.util.Arrays.toString(value));
+    }
+
+    @Override
+    public void visitShortArray(String key, short[] value) {
+        record("ShortArray", key, java.util.Arrays.toString(value));
+    }
+
+    @Override
+    public void visitCharArray(String key, char[] value) {
+        record("CharArray", key, java.util.Arrays.toString(value));
+    }
+
+    @Override
+    public void visitIntArray(String key, int[] value) {
+        record("IntArray", key, java.util.Arrays.toString(value));
+    }
+
+    @Override
+    public void visitLongArray(String key, long[] value) {
+        record("LongArray", key, java.util.Arrays.toString(value));
+    }
+
+    @Override
+    public void visitFloatArray(String key, float[] value) {
+        record("FloatArray", key, java.util.Arrays.toString(value));
+    }
+
+    @Override
+    public void visitDoubleArray(String key, double[] value) {
+        record("DoubleArray", key, java.util.Arrays.toString(value));
+    }
+
+    @Override
+    public void visitStringArray(String key, String[] value) {
+        record("StringArray", key, java.util.Arrays.toString(value));
+    }
+
+    @Override
+    public void visitCharSequenceArray(String key, CharSequence[] value) {
+        record("CharSequenceArray", key, java.util.Arrays.toString(value));
+    }
+
+    @Override
+    public void visitBundle(String key, StateBundle value) {
+        record("Bundle", key, value);
+    }
+
+    @Override
+    public void visitParcelable(String key, Parcelable value) {
+        record("Parcelable", key, value);
+    }
+
+    @Override
+    public void visitParcelableArray(String key, Parcelable[] value) {
+        record("ParcelableArray", key, java.util.Arrays.toString(value));
+    }
+
+    @Override
+    public void visitParcelableArrayList(String key, ArrayList<Parcelable> value) {
+        record("ParcelableArrayList", key, value);
+    }
+
+    @Override
+    public void visitSparseParcelableArray(String key, SparseArray<Parcelable> value) {
+        record("SparseParcelableArray", key, value);
+    }
+
+    @Override
+    public void visitCustom(String key, int type, Object value) {
+        record("Custom" + type, key, value);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StateBundleCacheTest {
+    private static StateBundle createBundle(int value) {
+        return new StateBundle().putInt("value", value).putByteArray("payload", new byte[100]);
+    }
+
+    @Test
+    public void leastRecentlyUsedBundleIsSpilledAndReloaded()
+            throws IOException {
+        int weight = new StateBundleCodec().encode(createBundle(0)).length;
+        StateBundleCache cache = new StateBundleCache(weight * 2, StateBundleSnapshotStoreTest.createDirectory());
+        cache.put("first", createBundle(1));
+        cache.put("second", createBundle(2));
+        cache.get("first");
+        cache.put("third", createBundle(3));
+
+        assertThat(cache.evictionCount()).isEqualTo(1L);
+        assertThat(cache.size()).isEqualTo((long) weight * 2);
+        assertThat(cache.get("first").getInt("value")).isEqualTo(1);
+        assertThat(cache.hitCount()).isEqualTo(2L);
+
+        assertThat(cache.get("second")).isEqualTo(createBundle(2));
+        assertThat(cache.spillHitCount()).isEqualTo(1L);
+        assertThat(cache.get("missing")).isNull();
+        assertThat(cache.missCount()).isEqualTo(1L);
+        assertThat(cache.size()).isEqualTo((long) weight * 2);
+    }
+
+    @Test
+    public void evictedBundlesAreDroppedWithoutSpillDirectory()
+            throws IOException {
+        int weight = new StateBundleCodec().encode(createBundle(0)).length;
+        StateBundleCache cache = new StateBundleCache(weight, null);
+        cache.put("first", createBundle(1));
+        cache.put("second", createBundle(2));
+
+        assertThat(cache.get("first")).isNull();
+        assertThat(cache.get("second").getInt("value")).isEqualTo(2);
+    }
+
+    @Test
+    public void removedBundleIsNotReloaded()
+            throws IOException {
+        int weight = new StateBundleCodec().encode(createBundle(0)).length;
+        StateBundleCache cache = new StateBundleCache(weight, StateBundleSnapshotStoreTest.createDirectory());
+        cache.put("first", createBundle(1));
+        cache.put("second", createBundle(2));
+
+        cache.remove("first");
+
+        assertThat(cache.get("first")).isNull();
+        cache.clear();
+        assertThat(cache.get("second")).isNull();
+        assertThat(cache.size()).isEqualTo(0L);
+    }
+
+    @Test
+    public void clearDeletesOnlySpillFiles()
+            throws IOException {
+        int weight = new StateBundleCodec().encode(createBundle(0)).length;
+        File directory = StateBundleSnapshotStoreTest.createDirectory();
+        File otherFile = new File(directory, "other");
+        assertThat(otherFile.createNewFile()).isTrue();
+        StateBundleCache cache = new StateBundleCache(weight, directory);
+        cache.put("first", createBundle(1));
+        cache.put("second", createBundle(2));
+        assertThat(directory.list()).hasSize(2);
+
+        cache.clear();
+
+        assertThat(directory.list()).containsExactly("other");
+        assertThat(cache.get("first")).isNull();
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+
+import android.os.Parcelable;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.math.BigDecimal;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StateBundleCodecTest {
+    static StateBundle createStateBundle() {
+        StateBundle stateBundle = new StateBundle();
+        stateBundle.putBoolean("boolean", true);
+        stateBundle.putByte("byte", (byte) 0x01);
+        stateBundle.putChar("char", 'F');
+        stateBundle.putShort("short", (short) 14);
+        stateBundle.putInt("int", 515);
+        stateBundle.putLong("long", 123L);
+        stateBundle.putFloat("float", 0.54f);
+        stateBundle.putDouble("double", 0.123);
+        stateBundle.putString("string", "Hello Wordl!");
+        stateBundle.putString("nullString", null);
+        stateBundle.putString(null, "null key");
+        stateBundle.putCharSequence("charSequence", "World Hello");
+        stateBundle.putSerializable("serializable", new java.util.Date(1234L));
+        stateBundle.putIntegerArrayList("integerArrayList", new ArrayList<>(Arrays.asList(5, null, -7)));
+        stateBundle.putStringArrayList("stringArrayList", new ArrayList<>(Arrays.asList("hello", null)));
+        stateBundle.putCharSequenceArrayList("charSequenceArrayList", new ArrayList<CharSequence>(Arrays.asList("asd", "def")));
+        stateBundle.putBooleanArray("booleanArray", new boolean[]{true, false, true});
+        stateBundle.putByteArray("byteArray", new byte[]{(byte) 0x01, (byte) 0x02});
+        stateBundle.putShortArray("shortArray", new short[]{(short) 1, (short) 2});
+        stateBundle.putCharArray("charArray", new char[]{'A', 'B'});
+        stateBundle.putIntArray("intArray", new int[]{1, 2, Integer.MIN_VALUE});
+        stateBundle.putLongArray("longArray", new long[]{1L, 2L, Long.MAX_VALUE});
+        stateBundle.putFloatArray("floatArray", new float[]{0.25f, 0.5f});
+        stateBundle.putDoubleArray("doubleArray", new double[]{0.25, 0.5});
+        stateBundle.putStringArray("stringArray", new String[]{"a", null, "b"});
+        stateBundle.putCharSequenceArray("charSequenceArray", new CharSequence[]{"a", "b"});
+
+        StateBundle otherBundle = new StateBundle();
+        otherBundle.putString("hello", "world");
+        otherBundle.putBundle("nested", new StateBundle().putInt("deep", 1));
+        stateBundle.putBundle("stateBundle", otherBundle);
+        stateBundle.putBundle("nullBundle", null);
+        stateBundle.putParcelable("parcelable", otherBundle);
+        return stateBundle;
+    }
+
+    @Test
+    public void encodedBundleIsDecoded() {
+        StateBundleCodec codec = new StateBundleCodec();
+        StateBundle stateBundle = createStateBundle();
+
+        StateBundle decoded = codec.decode(codec.encode(stateBundle));
+
+        assertThat(decoded).isEqualTo(stateBundle);
+        assertThat(decoded.typeMap).isEqualTo(stateBundle.typeMap);
+        assertThat(decoded.toString()).isEqualTo(stateBundle.toString());
+    }
+
+    @Test
+    public void encodedBundleIsDecodedFromStream()
+            throws IOException {
+        StateBundleCodec codec = new StateBundleCodec();
+        StateBundle stateBundle = createStateBundle();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        codec.encode(stateBundle, outputStream);
+        StateBundle decoded = codec.decode(new ByteArrayInputStream(outputStream.toByteArray()));
+
+        assertThat(decoded).isEqualTo(stateBundle);
+    }
+
+    @Test
+    public void emptyBundleIsDecoded() {
+        StateBundleCodec codec = new StateBundleCodec();
+
+        assertThat(codec.decode(codec.encode(new StateBundle()))).isEqualTo(new StateBundle());
+    }
+
+    @Test
+    public void canonicalEncodingDoesNotDependOnInsertionOrder() {
+        StateBundleCodec codec = new StateBundleCodec.Builder().setCanonical(true).build();
+        StateBundle first = new StateBundle();
+        first.putString(null, "null key");
+        first.putFloat("nan", Float.intBitsToFloat(0x7fc00001));
+        first.putDoubleArray("doubles", new double[]{Double.longBitsToDouble(0x7ff8000000000001L), -0.0});
+        first.putBundle("nested", new StateBundle().putInt("b", 2).putInt("a", 1));
+
+        StateBundle second = new StateBundle();
+        second.putBundle("nested", new StateBundle().putInt("a", 1).putInt("b", 2));
+        second.putDoubleArray("doubles", new double[]{Double.NaN, -0.0});
+        second.putFloat("nan", Float.NaN);
+        second.putString(null, "null key");
+
+        assertThat(first).isEqualTo(second);
+        assertThat(codec.encode(first)).isEqualTo(codec.encode(second));
+        assertThat(new StateBundleCodec().encode(first)).isNotEqualTo(new StateBundleCodec().encode(second));
+        assertThat(codec.decode(codec.encode(first))).isEqualTo(first);
+        assertThat(codec.isCanonical()).isTrue();
+    }
+
+    @Test
+    public void canonicalEncodingKeepsNegativeZero() {
+        StateBundleCodec codec = new StateBundleCodec.Builder().setCanonical(true).build();
+
+        assertThat(codec.encode(new StateBundle().putDouble("zero", -0.0)))
+                .isNotEqualTo(codec.encode(new StateBundle().putDouble("zero", 0.0)));
+    }
+
+    @Test
+    public void bundlesMatchingSchemaAreEncodedWithoutKeys() {
+        StateBundleSchema schema = new StateBundleSchema.Builder(1)
+                .add("count", StateBundle.type_int)
+                .add("title", StateBundle.type_String)
+                .add("selection", StateBundle.type_IntArray)
+                .build();
+        StateBundleCodec codec = new StateBundleCodec.Builder().addSchema(schema).build();
+        StateBundle matching = new StateBundle().putString("title", "Hello").putInt("count", 3);
+        StateBundle stateBundle = createStateBundle();
+        stateBundle.putBundle("matching", matching);
+
+        byte[] encoded = codec.encode(matching);
+
+        assertThat(encoded.length).isLessThan(new StateBundleCodec().encode(matching).length * 2 / 3);
+        assertThat(codec.decode(encoded)).isEqualTo(matching);
+        assertThat(codec.decode(codec.encode(stateBundle))).isEqualTo(stateBundle);
+        assertRejected(new StateBundleCodec(), encoded);
+    }
+
+    @Test
+    public void bundlesWithOtherTypesDoNotMatchSchema() {
+        StateBundleSchema schema = new StateBundleSchema.Builder(1).add("count", StateBundle.type_int).build();
+        StateBundleCodec codec = new StateBundleCodec.Builder().addSchema(schema).build();
+        StateBundle stateBundle = new StateBundle().putLong("count", 3L);
+
+        byte[] encoded = codec.encode(stateBundle);
+        StateBundle decoded = codec.decode(encoded);
+
+        assertThat(decoded).isEqualTo(stateBundle);
+        assertThat(decoded.typeMap).isEqualTo(stateBundle.typeMap);
+        // the missing schema id is a single varint byte
+        assertThat(encoded.length).isEqualTo(new StateBundleCodec().encode(stateBundle).length + 1);
+    }
+
+    @Test
+    public void largeSchemaIdsAreDecoded() {
+        StateBundleSchema schema = new StateBundleSchema.Builder(300).add("count", StateBundle.type_int).build();
+        StateBundleCodec codec = new StateBundleCodec.Builder().addSchema(schema).build();
+        StateBundle stateBundle = new StateBundle().putInt("count", 3);
+
+        assertThat(codec.decode(codec.encode(stateBundle))).isEqualTo(stateBundle);
+    }
+
+    @Test
+    public void keyDictionaryWritesRepeatedKeysOnce() {
+        StateBundleCodec codec = new StateBundleCodec.Builder().setKeyDictionary(true).build();
+        ArrayList<Parcelable> items = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            items.add(new StateBundle().putInt("identifier", i).putString("description", "item"));
+        }
+        StateBundle stateBundle = createStateBundle();
+        stateBundle.putParcelableArrayList("items", items);
+
+        byte[] encoded = codec.encode(stateBundle);
+        StateBundle decoded = codec.decode(encoded);
+
+        assertThat(encoded.length).isLessThan(new StateBundleCodec().encode(stateBundle).length - 19 * 2 * 10);
+        assertThat(decoded).isEqualTo(stateBundle);
+        assertThat(decoded.typeMap).isEqualTo(stateBundle.typeMap);
+        ArrayList<Parcelable> decodedItems = decoded.getParcelableArrayList("items");
+        String firstKey = ((StateBundle) decodedItems.get(0)).keySet().iterator().next();
+        String secondKey = ((StateBundle) decodedItems.get(1)).keySet().iterator().next();
+        assertThat(firstKey).isSameAs(secondKey);
+    }
+
+    @Test
+    public void compactIntegersAreDecoded() {
+        StateBundleCodec codec = new StateBundleCodec.Builder().setCompactIntegers(true).build();
+        StateBundle stateBundle = createStateBundle();
+        stateBundle.putInt("negative", -1);
+        stateBundle.putLong("minLong", Long.MIN_VALUE);
+        stateBundle.putIntArray("random", new int[]{Integer.MAX_VALUE, Integer.MIN_VALUE, 0x55555555});
+        stateBundle.putIntegerArrayList("nulls", new ArrayList<>(Arrays.asList(null, null, 3)));
+
+        StateBundle decoded = codec.decode(codec.encode(stateBundle));
+
+        assertThat(decoded).isEqualTo(stateBundle);
+        assertThat(decoded.typeMap).isEqualTo(stateBundle.typeMap);
+    }
+
+    @Test
+    public void sortedArraysAreDeltaEncoded() {
+        StateBundleCodec codec = new StateBundleCodec.Builder().setCompactIntegers(true).build();
+        long[] timestamps = new long[1000];
+        int[] ids = new int[1000];
+        for(int i = 0; i < 1000; i++) {
+            timestamps[i] = 1600000000000L + i * 16L;
+            ids[i] = 1000000 + i * 3;
+        }
+        StateBundle stateBundle = new StateBundle().putLongArray("timestamps", timestamps).putIntArray("ids", ids);
+
+        byte[] encoded = codec.encode(stateBundle);
+
+        assertThat(encoded.length).isLessThan(new StateBundleCodec().encode(stateBundle).length / 5);
+        assertThat(codec.decode(encoded)).isEqualTo(stateBundle);
+    }
+
+    @Test
+    public void booleansArePacked() {
+        StateBundleCodec codec = new StateBundleCodec.Builder().setPackedBooleans(true).build();
+        boolean[] flags = new boolean[1001];
+        for(int i = 0; i < flags.length; i++) {
+            flags[i] = i % 3 == 0;
+        }
+        StateBundle stateBundle = new StateBundle().putBooleanArray("flags", flags)
+                .putBoolean("a", true)
+                .putInt("b", 7)
+                .putBoolean("c", false)
+                .putBundle("d", new StateBundle().putBoolean("e", true));
+
+        byte[] encoded = codec.encode(stateBundle);
+
+        assertThat(encoded.length).isLessThan(new StateBundleCodec().encode(stateBundle).length / 5);
+        StateBundle decoded = codec.decode(encoded);
+        assertThat(decoded).isEqualTo(stateBundle);
+        assertThat(decoded.typeMap).isEqualTo(stateBundle.typeMap);
+    }
+
+    @Test
+    public void booleansArePackedInSchemaBundles() {
+        StateBundleSchema schema = new StateBundleSchema.Builder(1).add("a", StateBundle.type_boolean)
+                .add("b", StateBundle.type_int)
+                .add("c", StateBundle.type_boolean)
+                .add("d", StateBundle.type_boolean)
+                .build();
+        StateBundleCodec codec = new StateBundleCodec.Builder().addSchema(schema).setPackedBooleans(true).build();
+        StateBundle stateBundle = new StateBundle().putBoolean("a", true).putInt("b", 7).putBoolean("d", true);
+
+        StateBundle decoded = codec.decode(codec.encode(stateBundle));
+
+        assertThat(decoded).isEqualTo(stateBundle);
+        assertThat(decoded.typeMap).isEqualTo(stateBundle.typeMap);
+    }
+
+    @Test
+    public void primitiveArraysAreReadInBigEndianOrder() {
+        StateBundleCodec codec = new StateBundleCodec();
+        short[] shorts = new short[513];
+        int[] ints = new int[513];
+        long[] longs = new long[513];
+        float[] floats = new float[513];
+        double[] doubles = new double[513];
+        for(int i = 0; i < 513; i++) {
+            shorts[i] = (short) (i * 31);
+            ints[i] = i * 0x01020304;
+            longs[i] = i * 0x0102030405060708L;
+            floats[i] = i / 7f;
+            doubles[i] = i / 7.0;
+        }
+        StateBundle stateBundle = new StateBundle().putShortArray("shorts", shorts)
+                .putIntArray("ints", ints)
+                .putLongArray("longs", longs)
+                .putFloatArray("floats", floats)
+                .putDoubleArray("doubles", doubles);
+        byte[] encoded = codec.encode(stateBundle);
+        ByteBuffer buffer = ByteBuffer.allocate(encoded.length + 3).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(3);
+        buffer.put(encoded);
+        buffer.position(3);
+
+        assertThat(codec.decode(buffer)).isEqualTo(stateBundle);
+    }
+
+    @Test
+    public void sharedValuesAreWrittenOnceAndDecodedAsOneInstance() {
+        StateBundleCodec codec = new StateBundleCodec.Builder().setSharedValues(true).build();
+        float[] samples = new float[1000];
+        ArrayList<String> names = new ArrayList<>(Arrays.asList("a", "b"));
+        StateBundle nested = new StateBundle().putFloatArray("samples", samples).putStringArrayList("names", names);
+        StateBundle stateBundle = new StateBundle().putFloatArray("samples", samples)
+                .putFloatArray("copy", samples.clone())
+                .putStringArrayList("names", names)
+                .putBundle("first", nested)
+                .putBundle("second", nested)
+                .putInt("int", 1)
+                .putInt("sameInt", 1);
+
+        byte[] encoded = codec.encode(stateBundle);
+
+        assertThat(encoded.length).isLessThan(new StateBundleCodec().encode(stateBundle).length * 2 / 3);
+        StateBundle decoded = codec.decode(encoded);
+        assertThat(decoded).isEqualTo(stateBundle);
+        assertThat(decoded.getFloatArray("samples")).isSameAs(decoded.getBundle("first").getFloatArray("samples"));
+        assertThat(decoded.getFloatArray("samples")).isNotSameAs(decoded.getFloatArray("copy"));
+        assertThat(decoded.getStringArrayList("names")).isSameAs(decoded.getBundle("second").getStringArrayList("names"));
+        assertThat(decoded.getBundle("first")).isSameAs(decoded.getBundle("second"));
+    }
+
+    @Test
+    public void sharedValuesDoNotTrackNullsAndScalars() {
+        StateBundleCodec codec = new StateBundleCodec.Builder().setSharedValues(true).build();
+        String title = "title";
+        int[] ids = new int[]{1, 2, 3};
+        StateBundle stateBundle = new StateBundle().putString("title", title)
+                .putString("sameTitle", title)
+                .putString("null", null)
+                .putSerializable("boxed", 5)
+                .putIntArray("ids", ids)
+                .putBundle("nested", new StateBundle().putString("null", null).putIntArray("ids", ids));
+
+        StateBundle decoded = codec.decode(codec.encode(stateBundle));
+
+        assertThat(decoded).isEqualTo(stateBundle);
+        assertThat(decoded.getIntArray("ids")).isSameAs(decoded.getBundle("nested").getIntArray("ids"));
+    }
+
+    @Test
+    public void sharedValuesAreReferencedAfterCharSequences() {
+        StateBundleCodec codec = new StateBundleCodec.Builder().setSharedValues(true).build();
+        int[] ids = new int[]{1, 2, 3};
+        StateBundle stateBundle = new StateBundle().putCharSequence("cs", new StringBuilder("hello"))
+                .putIntArray("ids", ids)
+                .putIntArray("sameIds", ids);
+
+        StateBundle decoded = codec.decode(codec.encode(stateBundle));
+
+        assertThat(decoded.getCharSequence("cs").toString()).isEqualTo("hello");
+        assertThat(decoded.getIntArray("sameIds")).isSameAs(decoded.getIntArray("ids"));
+    }
+
+    @Test
+    public void canonicalCodecRejectsSharedValues() {
+        try {
+            new StateBundleCodec.Builder().setCanonical(true).setSharedValues(true).build();
+            Assert.fail("Shared values are not canonical");
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void valueTypesAreEncodedCompactly() {
+        StateBundle stateBundle = new StateBundle();
+        StateBundle serialized = new StateBundle();
+        for(int i = 0; i < 4; i++) {
+            stateBundle.putEnum("enum" + i, Thread.State.values()[i])
+                    .putUUID("uuid" + i, new UUID(i, -i))
+                    .putDate("date" + i, new Date(1500000000000L + i))
+                    .putBigDecimal("bigDecimal" + i, new BigDecimal("-1234.5678").movePointLeft(i));
+            serialized.putSerializable("enum" + i, Thread.State.values()[i])
+                    .putSerializable("uuid" + i, new UUID(i, -i))
+                    .putSerializable("date" + i, new Date(1500000000000L + i))
+                    .putSerializable("bigDecimal" + i, new BigDecimal("-1234.5678").movePointLeft(i));
+        }
+        stateBundle.putEnum("nullEnum", null);
+
+        for(StateBundleCodec codec : new StateBundleCodec[]{new StateBundleCodec(), new StateBundleCodec.Builder().setCompactIntegers(true).build()}) {
+            byte[] encoded = codec.encode(stateBundle);
+
+            assertThat(encoded.length).isLessThan(codec.encode(serialized).length / 4);
+            StateBundle decoded = codec.decode(encoded);
+            assertThat(decoded).isEqualTo(stateBundle);
+            assertThat(decoded.typeMap).isEqualTo(stateBundle.typeMap);
+            assertThat(decoded.getEnum("enum2", Thread.State.class)).isSameAs(Thread.State.values()[2]);
+        }
+    }
+
+    @Test
+    public void enumsWithConstantBodiesAreEncoded() {
+        StateBundleCodec codec = new StateBundleCodec();
+        StateBundle stateBundle = new StateBundle().putEnum("enum", StateBundleTest.Color.GREEN).putEnum("other", StateBundleTest.Color.RED);
+
+        StateBundle decoded = codec.decode(codec.encode(stateBundle));
+
+        assertThat(decoded.getEnum("enum", StateBundleTest.Color.class)).isSameAs(StateBundleTest.Color.GREEN);
+        assertThat(decoded.getEnum("other", StateBundleTest.Color.class)).isSameAs(StateBundleTest.Color.RED);
+    }
+
+    static boolean notAnEnumInitialized;
+
+    static class NotAnEnum {
+        static {
+            notAnEnumInitialized = true;
+        }
+    }
+
+    @Test
+    public void enumClassesAreCheckedBeforeTheyAreInitialized()
+            throws IOException {
+        try {
+            StateBundleDecoder.findEnumClass(NotAnEnum.class.getName(), getClass().getClassLoader());
+            Assert.fail("Only enum classes should be found");
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+        assertThat(notAnEnumInitialized).isFalse();
+    }
+
+    @Test
+    public void enumsAreDecodedByName() {
+        assertThat(StateBundleDecoder.enumConstant(Thread.State.class, "BLOCKED")).isSameAs(Thread.State.BLOCKED);
+        try {
+            StateBundleDecoder.enumConstant(Thread.State.class, "RENAMED");
+            Assert.fail("Unknown constants should be rejected");
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+    }
+
+    static class SerializableValue
+            implements Serializable {
+        final int value;
+
+        SerializableValue(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SerializableValue && ((SerializableValue) o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value;
+        }
+    }
+
+    @Test
+    public void serializablesAreResolvedWithTheClassLoader() {
+        final List<String> loadedClasses = new ArrayList<>();
+        ClassLoader classLoader = new ClassLoader(getClass().getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve)
+                    throws ClassNotFoundException {
+                loadedClasses.add(name);
+                return super.loadClass(name, resolve);
+            }
+        };
+        StateBundleCodec codec = new StateBundleCodec.Builder().setClassLoader(classLoader).build();
+        StateBundle stateBundle = new StateBundle().putSerializable("value", new SerializableValue(5));
+
+        assertThat(codec.decode(codec.encode(stateBundle))).isEqualTo(stateBundle);
+        assertThat(loadedClasses).contains(SerializableValue.class.getName());
+    }
+
+    @Test
+    public void malformedDataIsRejected() {
+        StateBundleCodec codec = new StateBundleCodec();
+        byte[] bytes = codec.encode(createStateBundle());
+
+        assertRejected(codec, new byte[]{1, 2, 3});
+        assertRejected(codec, Arrays.copyOf(bytes, bytes.length - 1));
+        assertRejected(codec, Arrays.copyOf(bytes, bytes.length + 1));
+        byte[] unknownFlags = bytes.clone();
+        unknownFlags[3] = (byte) 0x80;
+        assertRejected(codec, unknownFlags);
+    }
+
+    private static void assertRejected(StateBundleCodec codec, byte[] bytes) {
+        try {
+            codec.decode(bytes);
+            Assert.fail("Malformed data should be rejected");
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+    }
+}
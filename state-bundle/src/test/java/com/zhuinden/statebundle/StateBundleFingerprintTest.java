@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StateBundleFingerprintTest {
+    @Test
+    public void murmur3MatchesReferenceImplementation() {
+        byte[] bytes = "hello".getBytes(Charset.forName("UTF-8"));
+
+        long[] hash = StateBundleFingerprint.murmur3(bytes, bytes.length);
+
+        assertThat(hash[0]).isEqualTo(0xcbd8a7b341bd9b02L);
+        assertThat(hash[1]).isEqualTo(0x5b1e906a48ae1d19L);
+    }
+
+    @Test
+    public void fingerprintIsIndependentOfInsertionOrder() {
+        StateBundle nested = new StateBundle();
+        nested.putString("a", "b");
+        nested.putInt("c", 1);
+        StateBundle first = new StateBundle();
+        first.putInt("int", 5);
+        first.putIntArray("intArray", new int[]{1, 2});
+        first.putBundle("nested", nested);
+
+        StateBundle otherNested = new StateBundle();
+        otherNested.putInt("c", 1);
+        otherNested.putString("a", "b");
+        StateBundle second = new StateBundle();
+        second.putBundle("nested", otherNested);
+        second.putIntArray("intArray", new int[]{1, 2});
+        second.putInt("int", 5);
+
+        assertThat(first.fingerprint()).isEqualTo(second.fingerprint());
+        assertThat(first.fingerprint().toString()).isEqualTo(second.fingerprint().toString());
+        assertThat(first.fingerprint().toString()).hasSize(32);
+    }
+
+    @Test
+    public void fingerprintChangesWithContent() {
+        StateBundle stateBundle = StateBundleCodecTest.createStateBundle();
+        StateBundleFingerprint fingerprint = stateBundle.fingerprint();
+
+        stateBundle.getIntArray("intArray")[0] = 7;
+        StateBundleFingerprint changedArray = stateBundle.fingerprint();
+        stateBundle.putLong("int", 515L);
+        StateBundleFingerprint changedType = stateBundle.fingerprint();
+
+        assertThat(changedArray).isNotEqualTo(fingerprint);
+        assertThat(changedType).isNotEqualTo(changedArray);
+        assertThat(new StateBundle().fingerprint()).isNotEqualTo(fingerprint);
+    }
+
+    @Test
+    public void swappedValuesHaveDifferentFingerprints() {
+        StateBundle first = new StateBundle();
+        first.putInt("a", 1);
+        first.putInt("b", 2);
+        StateBundle second = new StateBundle();
+        second.putInt("a", 2);
+        second.putInt("b", 1);
+
+        assertThat(first.fingerprint()).isNotEqualTo(second.fingerprint());
+    }
+}
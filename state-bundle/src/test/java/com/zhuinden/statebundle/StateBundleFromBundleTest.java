@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+import android.os.Bundle;
+import android.text.SpannableString;
+import android.util.Size;
+import android.util.SizeF;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class StateBundleFromBundleTest {
+    enum Color {
+        RED,
+        GREEN
+    }
+
+    @Test
+    public void bundleValuesAreImported() {
+        ArrayList<String> strings = new ArrayList<>();
+        strings.add("hello");
+        ArrayList<CharSequence> charSequences = new ArrayList<>();
+        charSequences.add("hello");
+        charSequences.add(new SpannableString("world"));
+        HashMap<String, String> map = new HashMap<>();
+        map.put("hello", "world");
+        Bundle nested = new Bundle();
+        nested.putLong("long", 7L);
+        Bundle bundle = new Bundle();
+        bundle.putInt("int", 5);
+        bundle.putString("string", "hello");
+        bundle.putString("null", null);
+        bundle.putIntArray("ints", new int[]{1, 2});
+        bundle.putStringArrayList("strings", strings);
+        bundle.putCharSequenceArrayList("charSequences", charSequences);
+        bundle.putParcelable("parcelable", new TestKey("key"));
+        bundle.putSerializable("serializable", map);
+        bundle.putSize("size", new Size(640, 480));
+        bundle.putSizeF("sizeF", new SizeF(0.5f, 2f));
+        bundle.putBundle("nested", nested);
+
+        StateBundle stateBundle = StateBundle.fromBundle(bundle);
+
+        assertThat(stateBundle.size()).isEqualTo(11);
+        assertThat(stateBundle.getInt("int")).isEqualTo(5);
+        assertThat(stateBundle.getString("string")).isEqualTo("hello");
+        assertThat(stateBundle.containsKey("null")).isTrue();
+        assertThat(stateBundle.getString("null")).isNull();
+        assertThat(stateBundle.getIntArray("ints")).containsExactly(1, 2);
+        assertThat(stateBundle.getStringArrayList("strings")).containsExactly("hello");
+        assertThat(stateBundle.getCharSequenceArrayList("charSequences")).isEqualTo(charSequences);
+        assertThat(stateBundle.<TestKey>getParcelable("parcelable")).isEqualTo(new TestKey("key"));
+        assertThat(stateBundle.getSerializable("serializable")).isEqualTo(map);
+        assertThat(StateBundleSize.getWidth(stateBundle.getSize("size"))).isEqualTo(640);
+        assertThat(StateBundleSize.getHeight(stateBundle.getSize("size"))).isEqualTo(480);
+        assertThat(StateBundleSize.getWidthF(stateBundle.getSizeF("sizeF"))).isEqualTo(0.5f);
+        assertThat(StateBundleSize.getHeightF(stateBundle.getSizeF("sizeF"))).isEqualTo(2f);
+        assertThat(stateBundle.getBundle("nested").getLong("long")).isEqualTo(7L);
+    }
+
+    @Test
+    public void mixedArrayListIsImportedAsSerializable() {
+        ArrayList<Serializable> mixed = new ArrayList<>();
+        mixed.add("hello");
+        mixed.add(5);
+        Bundle bundle = new Bundle();
+        bundle.putSerializable("mixed", mixed);
+
+        StateBundle stateBundle = StateBundle.fromBundle(bundle);
+
+        assertThat(stateBundle.getSerializable("mixed")).isEqualTo(mixed);
+    }
+
+    @Test
+    public void unsupportedValueIsRejected() {
+        ArrayList<Object> mixed = new ArrayList<>();
+        mixed.add(new TestKey("key"));
+        mixed.add(5);
+        Bundle bundle = new Bundle();
+        bundle.putSerializable("mixed", mixed);
+
+        try {
+            StateBundle.fromBundle(bundle);
+            Assert.fail("A list of Parcelables and Integers should not be imported");
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void copyToBundleAndFromBundleKeepTypes() {
+        StateBundle nested = new StateBundle();
+        nested.putString("hello", "world");
+        ArrayList<Integer> integers = new ArrayList<>();
+        integers.add(1);
+        StateBundle stateBundle = new StateBundle();
+        stateBundle.putBoolean("boolean", true);
+        stateBundle.putLong("long", 3L);
+        stateBundle.putString("string", "hello");
+        stateBundle.putCharSequence("charSequence", new SpannableString("hello"));
+        stateBundle.putSize("size", 640, 480);
+        stateBundle.putSizeF("sizeF", 0.5f, 2f);
+        stateBundle.putEnum("enum", Color.GREEN);
+        stateBundle.putUUID("uuid", UUID.randomUUID());
+        stateBundle.putDate("date", new Date(1000L));
+        stateBundle.putBigDecimal("bigDecimal", new BigDecimal("1.50"));
+        stateBundle.putIntegerArrayList("integers", integers);
+        stateBundle.putBundle("nested", nested);
+        Bundle bundle = new Bundle();
+
+        stateBundle.copyToBundle(bundle);
+        StateBundle copy = StateBundle.fromBundle(bundle);
+
+        assertThat(copy).isEqualTo(stateBundle);
+        assertThat(copy.getEnum("enum", Color.class)).isEqualTo(Color.GREEN);
+        assertThat(copy.getUUID("uuid")).isEqualTo(stateBundle.getUUID("uuid"));
+        assertThat(copy.getDate("date")).isEqualTo(new Date(1000L));
+        assertThat(copy.getBigDecimal("bigDecimal")).isEqualTo(new BigDecimal("1.50"));
+        assertThat(copy.getSize("size")).isEqualTo(stateBundle.getSize("size"));
+        assertThat(copy.getSizeF("sizeF")).isEqualTo(stateBundle.getSizeF("sizeF"));
+    }
+}
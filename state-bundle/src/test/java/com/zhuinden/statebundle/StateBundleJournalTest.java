@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nonnull;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StateBundleJournalTest {
+    private static class QueueExecutor
+            implements Executor {
+        final List<Runnable> runnables = new ArrayList<>();
+
+        @Override
+        public void execute(@Nonnull Runnable runnable) {
+            runnables.add(runnable);
+        }
+
+        void runAll() {
+            while(!runnables.isEmpty()) {
+                runnables.remove(0).run();
+            }
+        }
+    }
+
+    private static StateBundleJournal createJournal(File directory, Executor executor, long checkpointSize)
+            throws IOException {
+        return new StateBundleJournal(directory, executor, new StateBundleCodec(), checkpointSize);
+    }
+
+    private static List<String> journalFiles(File directory) {
+        List<String> names = new ArrayList<>();
+        for(String name : directory.list()) {
+            if(name.startsWith("journal-")) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    @Test
+    public void modificationsAreReplayed()
+            throws IOException {
+        File directory = StateBundleSnapshotStoreTest.createDirectory();
+        QueueExecutor executor = new QueueExecutor();
+        StateBundleJournal journal = createJournal(directory, executor, 1024 * 1024);
+        StateBundle bundle = journal.load();
+        bundle.putInt("count", 1);
+        bundle.putString("removed", "value");
+        bundle.putIntArray("intArray", new int[]{1, 2});
+        bundle.remove("removed");
+        bundle.putAll(new StateBundle().putBundle("nested", new StateBundle().putLong("long", 5L)));
+        bundle.putInt("count", 2);
+
+        // the modifications are written together
+        assertThat(executor.runnables).hasSize(1);
+        executor.runAll();
+
+        StateBundle loaded = createJournal(directory, executor, 1024 * 1024).load();
+        assertThat(loaded).isEqualTo(bundle);
+        assertThat(loaded.typeMap).isEqualTo(bundle.typeMap);
+
+        loaded.clear();
+        loaded.putInt("afterClear", 1);
+        executor.runAll();
+        assertThat(createJournal(directory, executor, 1024 * 1024).load()).isEqualTo(new StateBundle().putInt("afterClear", 1));
+    }
+
+    @Test
+    public void checkpointReplacesJournal()
+            throws IOException {
+        File directory = StateBundleSnapshotStoreTest.createDirectory();
+        QueueExecutor executor = new QueueExecutor();
+        StateBundleJournal journal = createJournal(directory, executor, 512);
+        StateBundle bundle = journal.load();
+        for(int i = 0; i < 100; i++) {
+            bundle.putInt("key" + (i % 10), i);
+            if(i % 7 == 0) {
+                executor.runAll();
+            }
+        }
+        journal.close();
+        executor.runAll();
+
+        assertThat(journalFiles(directory).size()).isLessThanOrEqualTo(2);
+        StateBundle loaded = createJournal(directory, executor, 512).load();
+        assertThat(loaded).isEqualTo(bundle);
+        assertThat(loaded.getInt("key9")).isEqualTo(99);
+    }
+
+    @Test
+    public void checkpointTakenInsidePutDoesNotContainIt()
+            throws IOException {
+        File directory = StateBundleSnapshotStoreTest.createDirectory();
+        QueueExecutor executor = new QueueExecutor();
+        StateBundleJournal journal = createJournal(directory, executor, 1);
+        StateBundle bundle = journal.load();
+        executor.runAll();
+        bundle.putInt("first", 1);
+        // the journal is larger than the checkpoint size, so this put takes the checkpoint
+        bundle.putInt("second", 2);
+        bundle.putInt("third", 3);
+        bundle.remove("first");
+        executor.runAll();
+
+        ByteBuffer buffer = ByteBuffer.wrap(AtomicFiles.read(new File(directory, "checkpoint")));
+        buffer.getLong();
+        StateBundle checkpoint = new StateBundleCodec().decode(buffer);
+        assertThat(checkpoint).isEqualTo(new StateBundle().putInt("first", 1));
+        assertThat(createJournal(directory, executor, 1).load()).isEqualTo(bundle);
+    }
+
+    @Test
+    public void tornRecordIsIgnored()
+            throws IOException {
+        File directory = StateBundleSnapshotStoreTest.createDirectory();
+        QueueExecutor executor = new QueueExecutor();
+        StateBundleJournal journal = createJournal(directory, executor, 1024 * 1024);
+        StateBundle bundle = journal.load();
+        bundle.putInt("count", 1);
+        journal.flush();
+        bundle.putInt("count", 2);
+        journal.flush();
+        File journalFile = new File(directory, journalFiles(directory).get(0));
+        RandomAccessFile randomAccessFile = new RandomAccessFile(journalFile, "rw");
+        randomAccessFile.setLength(journalFile.length() - 1);
+        randomAccessFile.close();
+
+        StateBundle loaded = createJournal(directory, executor, 1024 * 1024).load();
+
+        assertThat(loaded.getInt("count")).isEqualTo(1);
+    }
+
+    private static File journalWithTwoRecords()
+            throws IOException {
+        File directory = StateBundleSnapshotStoreTest.createDirectory();
+        QueueExecutor executor = new QueueExecutor();
+        StateBundleJournal journal = createJournal(directory, executor, 1024 * 1024);
+        StateBundle bundle = journal.load();
+        executor.runAll();
+        bundle.putInt("first", 1);
+        bundle.putInt("second", 2);
+        journal.close();
+        return directory;
+    }
+
+    private static void corruptFirstRecord(File journalFile)
+            throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(journalFile, "rw");
+        randomAccessFile.seek(10);
+        int value = randomAccessFile.read();
+        randomAccessFile.seek(10);
+        randomAccessFile.write(value ^ 0xff);
+        randomAccessFile.close();
+    }
+
+    @Test
+    public void corruptRecordFollowedByOtherRecordsIsReported()
+            throws IOException {
+        File directory = journalWithTwoRecords();
+        corruptFirstRecord(new File(directory, journalFiles(directory).get(0)));
+
+        try {
+            createJournal(directory, new QueueExecutor(), 1024 * 1024).load();
+            Assert.fail("The corrupt record should be reported");
+        } catch(IOException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void corruptRecordInEarlierJournalIsReported()
+            throws IOException {
+        File directory = journalWithTwoRecords();
+        String name = journalFiles(directory).get(0);
+        long generation = Long.parseLong(name.substring("journal-".length()));
+        File journalFile = new File(directory, name);
+        // a later journal whose records are valid
+        AtomicFiles.write(new File(directory, "journal-" + (generation + 1)), AtomicFiles.read(journalFile));
+        RandomAccessFile randomAccessFile = new RandomAccessFile(journalFile, "rw");
+        randomAccessFile.setLength(journalFile.length() - 1);
+        randomAccessFile.close();
+
+        try {
+            createJournal(directory, new QueueExecutor(), 1024 * 1024).load();
+            Assert.fail("Only the last journal may have an incomplete record");
+        } catch(IOException e) {
+            // OK!
+        }
+        assertThat(journalFiles(directory)).hasSize(2);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StateBundleRefTest {
+    @Test
+    public void setPublishesImmutableSnapshot() {
+        StateBundle bundle = new StateBundle();
+        bundle.putString("hello", "world");
+
+        StateBundleRef ref = new StateBundleRef();
+        ref.set(bundle);
+        bundle.putString("hello", "there");
+
+        assertThat(ref.get().isImmutable()).isTrue();
+        assertThat(ref.get().getString("hello")).isEqualTo("world");
+    }
+
+    @Test
+    public void updateNotifiesListeners() {
+        final List<String> changes = new ArrayList<>();
+        StateBundleRef ref = new StateBundleRef();
+        ref.addOnChangedListener(new StateBundleRef.OnChangedListener() {
+            @Override
+            public void onChanged(@Nonnull StateBundle previous, @Nonnull StateBundle current) {
+                changes.add(previous.getInt("count") + "->" + current.getInt("count"));
+            }
+        });
+
+        ref.update(INCREMENT);
+        ref.update(INCREMENT);
+
+        assertThat(ref.get().getInt("count")).isEqualTo(2);
+        assertThat(changes).containsExactly("0->1", "1->2");
+    }
+
+    @Test
+    public void concurrentUpdatesAreNotLost()
+            throws InterruptedException {
+        final StateBundleRef ref = new StateBundleRef();
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j = 0; j < 1000; j++) {
+                        ref.update(INCREMENT);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(ref.get().getInt("count")).isEqualTo(4000);
+    }
+
+    private static final StateBundleRef.Updater INCREMENT = new StateBundleRef.Updater() {
+        @Nonnull
+        @Override
+        public StateBundle update(@Nonnull StateBundle current) {
+            return new StateBundle(current).putInt("count", current.getInt("count") + 1);
+        }
+    };
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnull;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StateBundleSaverTest {
+    private static class QueueExecutor
+            implements Executor {
+        final List<Runnable> runnables = new ArrayList<>();
+
+        @Override
+        public void execute(@Nonnull Runnable runnable) {
+            runnables.add(runnable);
+        }
+
+        void runAll() {
+            while(!runnables.isEmpty()) {
+                runnables.remove(0).run();
+            }
+        }
+    }
+
+    @Test
+    public void successiveSavesAreCoalesced()
+            throws IOException {
+        File file = File.createTempFile("state", ".bin");
+        file.deleteOnExit();
+        QueueExecutor executor = new QueueExecutor();
+        StateBundleSaver saver = new StateBundleSaver(file, executor, new StateBundleCodec());
+        final List<Integer> saved = new ArrayList<>();
+        saver.setListener(new StateBundleSaver.Listener() {
+            @Override
+            public void onSaved(@Nonnull StateBundle bundle) {
+                saved.add(bundle.getInt("count"));
+            }
+
+            @Override
+            public void onSaveFailed(@Nonnull StateBundle bundle, @Nonnull IOException exception) {
+                throw new AssertionError(exception);
+            }
+        });
+
+        StateBundle bundle = new StateBundle();
+        for(int i = 1; i <= 3; i++) {
+            bundle.putInt("count", i);
+            saver.save(bundle);
+        }
+        bundle.putInt("count", 4); // not saved
+
+        assertThat(executor.runnables).hasSize(1);
+        executor.runAll();
+
+        assertThat(saved).containsExactly(3);
+        assertThat(saver.load().getInt("count")).isEqualTo(3);
+
+        saver.save(bundle);
+        executor.runAll();
+        assertThat(saved).containsExactly(3, 4);
+    }
+
+    @Test
+    public void unchangedSnapshotIsNotWrittenAgain()
+            throws IOException {
+        File file = File.createTempFile("state", ".bin");
+        file.deleteOnExit();
+        QueueExecutor executor = new QueueExecutor();
+        StateBundleSaver saver = new StateBundleSaver(file, executor, new StateBundleCodec());
+        StateBundle bundle = new StateBundle();
+        bundle.putInt("count", 1);
+        saver.save(bundle);
+        executor.runAll();
+        assertThat(file.delete()).isTrue();
+
+        saver.save(new StateBundle(bundle));
+        executor.runAll();
+        assertThat(file.exists()).isFalse();
+
+        bundle.putInt("count", 2);
+        saver.save(bundle);
+        executor.runAll();
+        assertThat(saver.load().getInt("count")).isEqualTo(2);
+    }
+
+    @Test
+    public void throwingListenerDoesNotStopLaterSaves()
+            throws IOException {
+        File file = File.createTempFile("state", ".bin");
+        file.deleteOnExit();
+        QueueExecutor executor = new QueueExecutor();
+        StateBundleSaver saver = new StateBundleSaver(file, executor, new StateBundleCodec());
+        saver.setListener(new StateBundleSaver.Listener() {
+            @Override
+            public void onSaved(@Nonnull StateBundle bundle) {
+                throw new IllegalStateException("Listener failure");
+            }
+
+            @Override
+            public void onSaveFailed(@Nonnull StateBundle bundle, @Nonnull IOException exception) {
+                throw new AssertionError(exception);
+            }
+        });
+
+        saver.save(new StateBundle().putInt("count", 1));
+        try {
+            executor.runAll();
+            Assert.fail("The exception of the listener should propagate to the executor");
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+
+        saver.save(new StateBundle().putInt("count", 2));
+        assertThat(executor.runnables).hasSize(1);
+        try {
+            executor.runAll();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+        assertThat(saver.load().getInt("count")).isEqualTo(2);
+    }
+
+    @Test
+    public void rejectedExecutionDoesNotStopLaterSaves()
+            throws IOException {
+        File file = File.createTempFile("state", ".bin");
+        file.deleteOnExit();
+        final QueueExecutor queue = new QueueExecutor();
+        final boolean[] rejecting = {true};
+        StateBundleSaver saver = new StateBundleSaver(file, new Executor() {
+            @Override
+            public void execute(@Nonnull Runnable runnable) {
+                if(rejecting[0]) {
+                    throw new RejectedExecutionException();
+                }
+                queue.execute(runnable);
+            }
+        }, new StateBundleCodec());
+
+        try {
+            saver.save(new StateBundle().putInt("count", 1));
+            Assert.fail("The rejection should propagate");
+        } catch(RejectedExecutionException e) {
+            // OK!
+        }
+        rejecting[0] = false;
+        saver.save(new StateBundle().putInt("count", 2));
+        queue.runAll();
+
+        assertThat(saver.load().getInt("count")).isEqualTo(2);
+    }
+
+    @Test
+    public void loadReturnsNullIfNothingWasSaved()
+            throws IOException {
+        File file = new File(System.getProperty("java.io.tmpdir"), "state-bundle-saver-missing.bin");
+        file.delete();
+
+        assertThat(new StateBundleSaver(file).load()).isNull();
+    }
+}
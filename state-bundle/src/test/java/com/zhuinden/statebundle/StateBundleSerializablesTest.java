@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+import javax.annotation.Nonnull;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StateBundleSerializablesTest {
+    private static class Money
+            implements Serializable {
+        final String currency;
+        final long cents;
+
+        Money(String currency, long cents) {
+            this.currency = currency;
+            this.cents = cents;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Money)) {
+                return false;
+            }
+            Money money = (Money) o;
+            return cents == money.cents && currency.equals(money.currency);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * currency.hashCode() + (int) cents;
+        }
+    }
+
+    private static class Legacy
+            implements Serializable {
+        final int value;
+
+        Legacy(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Legacy && ((Legacy) o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value;
+        }
+    }
+
+    private static final StateBundleTypeCodec<Money> MONEY_CODEC = new StateBundleTypeCodec<Money>(Money.class) {
+        @Override
+        public void encode(@Nonnull DataOutput output, @Nonnull Money value)
+                throws IOException {
+            output.writeUTF(value.currency);
+            output.writeLong(value.cents);
+        }
+
+        @Nonnull
+        @Override
+        public Money decode(@Nonnull DataInput input)
+                throws IOException {
+            return new Money(input.readUTF(), input.readLong());
+        }
+    };
+
+    static {
+        StateBundleSerializables.registerCodec(1, MONEY_CODEC);
+    }
+
+    @Test
+    public void registeredClassesAreEncodedWithTheirCodec() {
+        StateBundleCodec codec = new StateBundleCodec();
+        StateBundle stateBundle = new StateBundle().putSerializable("money", new Money("EUR", 1250)).putSerializable("null", null);
+        StateBundle legacy = new StateBundle().putSerializable("money", new Legacy(1250));
+
+        byte[] encoded = codec.encode(stateBundle);
+
+        assertThat(encoded.length).isLessThan(codec.encode(legacy).length / 2);
+        StateBundle decoded = codec.decode(encoded);
+        assertThat(decoded).isEqualTo(stateBundle);
+        assertThat(decoded.typeMap).isEqualTo(stateBundle.typeMap);
+    }
+
+    @Test
+    public void unregisteredClassesFallBackToJavaSerialization() {
+        StateBundleCodec codec = new StateBundleCodec();
+        StateBundle stateBundle = new StateBundle().putSerializable("legacy", new Legacy(3)).putSerializable("other", new Legacy(4)).putSerializable("money", new Money("USD", 1));
+        StateBundleSerializables.resetFallbackCounts();
+
+        StateBundle decoded = codec.decode(codec.encode(stateBundle));
+
+        assertThat(decoded).isEqualTo(stateBundle);
+        assertThat(StateBundleSerializables.getFallbackCounts().keySet()).containsExactly(Legacy.class.getName());
+        assertThat(StateBundleSerializables.getFallbackCounts().get(Legacy.class.getName())).isEqualTo(2L);
+        StateBundleSerializables.resetFallbackCounts();
+        assertThat(StateBundleSerializables.getFallbackCounts().isEmpty()).isTrue();
+    }
+
+    @Test
+    public void onlyWrittenValuesAreCounted()
+            throws IOException {
+        StateBundleSerializables.resetFallbackCounts();
+
+        assertThat(StateBundleSerializables.codecId(new Legacy(1))).isEqualTo(0);
+        assertThat(StateBundleSerializables.getFallbackCounts().isEmpty()).isTrue();
+
+        StateBundle stateBundle = new StateBundle().putSerializable("legacy", new Legacy(1));
+        stateBundle.fingerprint();
+        new StateBundleCache(1024 * 1024, null).put("cached", stateBundle);
+        assertThat(StateBundleSerializables.getFallbackCounts().isEmpty()).isTrue();
+
+        new StateBundleCodec().encode(stateBundle);
+        assertThat(StateBundleSerializables.getFallbackCounts().get(Legacy.class.getName())).isEqualTo(1L);
+        StateBundleSerializables.resetFallbackCounts();
+    }
+
+    @Test
+    public void registeredClassesAreEncodedInSchemas() {
+        StateBundleSchema schema = new StateBundleSchema.Builder(1).add("money", StateBundle.type_Serializable).build();
+        StateBundleCodec codec = new StateBundleCodec.Builder().addSchema(schema).setCompactIntegers(true).build();
+        StateBundle stateBundle = new StateBundle().putSerializable("money", new Money("HUF", 100000));
+
+        assertThat(codec.decode(codec.encode(stateBundle))).isEqualTo(stateBundle);
+    }
+
+    @Test
+    public void invalidRegistrationsAreRejected() {
+        try {
+            StateBundleSerializables.registerCodec(0, MONEY_CODEC);
+            Assert.fail("Ids should be positive");
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+        StateBundleSerializables.registerCodec(1, MONEY_CODEC);
+        try {
+            StateBundleSerializables.registerCodec(2, new StateBundleTypeCodec<Money>(Money.class) {
+                @Override
+                public void encode(@Nonnull DataOutput output, @Nonnull Money value) {
+                }
+
+                @Nonnull
+                @Override
+                public Money decode(@Nonnull DataInput input) {
+                    return new Money("", 0);
+                }
+            });
+            Assert.fail("A class should have only one codec");
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StateBundleSessionStoreTest {
+    @Test
+    public void compareAndSetChecksVersion() {
+        StateBundleSessionStore store = new StateBundleSessionStore();
+
+        StateBundleSessionStore.Versioned first = store.compareAndSet("session", StateBundleSessionStore.NO_VERSION, new StateBundle().putInt("count", 1));
+        assertThat(first.getVersion()).isGreaterThan(StateBundleSessionStore.NO_VERSION);
+        assertThat(first.getBundle().isImmutable()).isTrue();
+        assertThat(store.compareAndSet("session", StateBundleSessionStore.NO_VERSION, new StateBundle())).isNull();
+
+        StateBundleSessionStore.Versioned second = store.compareAndSet("session", first.getVersion(), new StateBundle().putInt("count", 2));
+        assertThat(second.getVersion()).isGreaterThan(first.getVersion());
+        assertThat(store.compareAndSet("session", first.getVersion(), new StateBundle())).isNull();
+        assertThat(store.get("session").getBundle().getInt("count")).isEqualTo(2);
+        assertThat(store.getVersion("session")).isEqualTo(second.getVersion());
+
+        assertThat(store.compareAndRemove("session", first.getVersion())).isFalse();
+        assertThat(store.compareAndRemove("session", second.getVersion())).isTrue();
+        assertThat(store.get("session")).isNull();
+    }
+
+    @Test
+    public void putIncrementsVersion() {
+        StateBundleSessionStore store = new StateBundleSessionStore();
+        StateBundle bundle = new StateBundle().putString("hello", "world");
+
+        long first = store.put("session", bundle).getVersion();
+        bundle.putString("hello", "there");
+        store.put("other", bundle);
+
+        assertThat(store.put("session", bundle).getVersion()).isGreaterThan(first);
+        assertThat(store.get("session").getBundle().getString("hello")).isEqualTo("there");
+        assertThat(store.ids()).containsOnly("session", "other");
+    }
+
+    @Test
+    public void recreatedSessionDoesNotReuseVersions() {
+        StateBundleSessionStore store = new StateBundleSessionStore();
+        long stale = store.put("session", new StateBundle().putInt("count", 1)).getVersion();
+
+        store.remove("session");
+        store.put("session", new StateBundle().putInt("count", 2));
+
+        assertThat(store.getVersion("session")).isNotEqualTo(stale);
+        assertThat(store.compareAndSet("session", stale, new StateBundle().putInt("count", 3))).isNull();
+        assertThat(store.compareAndRemove("session", stale)).isFalse();
+        assertThat(store.get("session").getBundle().getInt("count")).isEqualTo(2);
+    }
+
+    @Test
+    public void concurrentUpdatesAreNotLost()
+            throws InterruptedException {
+        final StateBundleSessionStore store = new StateBundleSessionStore();
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            final String id = "session" + (i % 2);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j = 0; j < 1000; j++) {
+                        store.update(id, INCREMENT);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(store.get("session0").getBundle().getInt("count")).isEqualTo(2000);
+        assertThat(store.get("session1").getBundle().getInt("count")).isEqualTo(2000);
+    }
+
+    private static final StateBundleRef.Updater INCREMENT = new StateBundleRef.Updater() {
+        @Nonnull
+        @Override
+        public StateBundle update(@Nonnull StateBundle current) {
+            return new StateBundle(current).putInt("count", current.getInt("count") + 1);
+        }
+    };
+}
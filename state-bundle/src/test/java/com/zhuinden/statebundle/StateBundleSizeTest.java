@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StateBundleSizeTest {
+    @Test
+    public void sizesArePackedAndUnpacked() {
+        long size = StateBundleSize.pack(-3, Integer.MAX_VALUE);
+        long sizeF = StateBundleSize.packF(1.5f, -0.25f);
+
+        assertThat(StateBundleSize.getWidth(size)).isEqualTo(-3);
+        assertThat(StateBundleSize.getHeight(size)).isEqualTo(Integer.MAX_VALUE);
+        assertThat(StateBundleSize.getWidthF(sizeF)).isEqualTo(1.5f);
+        assertThat(StateBundleSize.getHeightF(sizeF)).isEqualTo(-0.25f);
+        assertThat(StateBundleSize.toString(StateBundleSize.pack(1920, 1080))).isEqualTo("1920x1080");
+        assertThat(StateBundleSize.toStringF(sizeF)).isEqualTo("1.5x-0.25");
+        assertThat(StateBundleSize.packF(Float.NaN, 0f)).isEqualTo(StateBundleSize.packF(Float.intBitsToFloat(0x7fc00001), 0f));
+    }
+
+    @Test
+    public void sizesAreStoredByType() {
+        StateBundle stateBundle = new StateBundle().putSize("size", 640, -480).putSizeF("sizeF", 0.5f, 2f);
+
+        assertThat(StateBundleSize.getHeight(stateBundle.getSize("size"))).isEqualTo(-480);
+        assertThat(StateBundleSize.getWidthF(stateBundle.getSizeF("sizeF"))).isEqualTo(0.5f);
+        assertThat(stateBundle.getSize("sizeF", -1L)).isEqualTo(-1L);
+        assertThat(stateBundle.getSizeF("size", -1L)).isEqualTo(-1L);
+        assertThat(stateBundle.getSize("missing")).isEqualTo(0L);
+        assertThat(stateBundle.toString()).isEqualTo("{[size]::[640x-480]} {[sizeF]::[0.5x2.0]}");
+
+        RecordingVisitor visitor = new RecordingVisitor();
+        stateBundle.accept(visitor);
+        assertThat(visitor.visits).containsExactly("Size:size=640x-480", "SizeF:sizeF=0.5x2.0");
+    }
+
+    @Test
+    public void sizesAreEncoded() {
+        StateBundle stateBundle = new StateBundle().putSize("size", 640, -480).putSizeF("sizeF", Float.NaN, 2f);
+        StateBundleCodec codec = new StateBundleCodec();
+        StateBundleCodec compactCodec = new StateBundleCodec.Builder().setCompactIntegers(true).build();
+
+        StateBundle decoded = codec.decode(codec.encode(stateBundle));
+        StateBundle compactDecoded = compactCodec.decode(compactCodec.encode(stateBundle));
+
+        assertThat(decoded).isEqualTo(stateBundle);
+        assertThat(decoded.typeMap).isEqualTo(stateBundle.typeMap);
+        assertThat(compactDecoded).isEqualTo(stateBundle);
+        assertThat(compactDecoded.typeMap).isEqualTo(stateBundle.typeMap);
+    }
+}
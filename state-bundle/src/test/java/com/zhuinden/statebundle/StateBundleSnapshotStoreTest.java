@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StateBundleSnapshotStoreTest {
+    static File createDirectory()
+            throws IOException {
+        File directory = File.createTempFile("store", "");
+        directory.delete();
+        directory.mkdirs();
+        return directory;
+    }
+
+    private static StateBundle createBackstack(int topCount) {
+        StateBundle first = new StateBundle().putString("screen", "first").putIntArray("scroll", new int[]{1, 2});
+        StateBundle second = new StateBundle().putString("screen", "second").putBundle("view", new StateBundle().putInt("selection", 3));
+        StateBundle top = new StateBundle().putString("screen", "top").putInt("count", topCount);
+        return new StateBundle().putBundle("first", first).putBundle("second", second).putBundle("top", top);
+    }
+
+    @Test
+    public void storedBundleIsLoaded()
+            throws IOException {
+        StateBundleSnapshotStore store = new StateBundleSnapshotStore(createDirectory());
+        StateBundle stateBundle = StateBundleCodecTest.createStateBundle();
+
+        store.put("state", stateBundle);
+
+        assertThat(store.get("state")).isEqualTo(stateBundle);
+        assertThat(store.get("missing")).isNull();
+        assertThat(store.names()).containsExactly("state");
+    }
+
+    @Test
+    public void identicalSubtreesAreStoredOnce()
+            throws IOException {
+        File directory = createDirectory();
+        StateBundleSnapshotStore store = new StateBundleSnapshotStore(directory);
+        File blobs = new File(directory, "blobs");
+
+        store.put("first", createBackstack(1));
+        int blobCount = blobs.list().length;
+        store.put("second", createBackstack(2));
+
+        // only the root and the changed top screen are new
+        assertThat(blobs.list().length).isEqualTo(blobCount + 2);
+        assertThat(store.get("first")).isEqualTo(createBackstack(1));
+        assertThat(store.get("second")).isEqualTo(createBackstack(2));
+    }
+
+    @Test
+    public void unreachableBlobsAreCollected()
+            throws IOException {
+        File directory = createDirectory();
+        StateBundleSnapshotStore store = new StateBundleSnapshotStore(directory);
+        store.put("first", createBackstack(1));
+        store.put("second", createBackstack(2));
+
+        assertThat(store.collectGarbage()).isEqualTo(0);
+        assertThat(store.remove("first")).isTrue();
+        assertThat(store.collectGarbage()).isEqualTo(2);
+
+        assertThat(store.get("first")).isNull();
+        assertThat(store.get("second")).isEqualTo(createBackstack(2));
+    }
+
+    @Test
+    public void invalidNamesAreRejected()
+            throws IOException {
+        StateBundleSnapshotStore store = new StateBundleSnapshotStore(createDirectory());
+        try {
+            store.put("../state", new StateBundle());
+            Assert.fail("Invalid names should be rejected");
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+        for(String name : new String[]{".", "..", "..."}) {
+            try {
+                store.put(name, new StateBundle());
+                Assert.fail("Names made of dots should be rejected");
+            } catch(IllegalArgumentException e) {
+                // OK!
+            }
+        }
+        assertThat(store.names().isEmpty()).isTrue();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnull;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StateBundleStoreTest {
+    private static class QueueExecutor
+            implements Executor {
+        final List<Runnable> runnables = new ArrayList<>();
+
+        @Override
+        public void execute(@Nonnull Runnable runnable) {
+            runnables.add(runnable);
+        }
+    }
+
+    private static File createFile()
+            throws IOException {
+        File file = File.createTempFile("store", ".log");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void storedBundlesAreLoadedAfterReopening()
+            throws IOException {
+        File file = createFile();
+        StateBundleStore store = new StateBundleStore(file, new QueueExecutor(), new StateBundleCodec());
+        StateBundle stateBundle = StateBundleCodecTest.createStateBundle();
+        store.put("first", stateBundle);
+        store.put("second", new StateBundle().putInt("count", 1));
+        store.put("second", new StateBundle().putInt("count", 2));
+        store.put("third", new StateBundle());
+        assertThat(store.remove("third")).isTrue();
+        assertThat(store.remove("missing")).isFalse();
+
+        assertThat(store.get("first")).isEqualTo(stateBundle);
+        assertThat(store.get("second").getInt("count")).isEqualTo(2);
+        assertThat(store.get("third")).isNull();
+        store.close();
+
+        StateBundleStore reopened = new StateBundleStore(file, new QueueExecutor(), new StateBundleCodec());
+        assertThat(reopened.keys()).containsOnly("first", "second");
+        assertThat(reopened.get("first")).isEqualTo(stateBundle);
+        assertThat(reopened.get("second").getInt("count")).isEqualTo(2);
+        reopened.close();
+    }
+
+    @Test
+    public void incompleteRecordIsDropped()
+            throws IOException {
+        File file = createFile();
+        StateBundleStore store = new StateBundleStore(file, new QueueExecutor(), new StateBundleCodec());
+        store.put("state", new StateBundle().putInt("count", 1));
+        long validLength = file.length();
+        store.put("state", new StateBundle().putInt("count", 2));
+        store.close();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(file.length() - 3);
+        randomAccessFile.close();
+
+        StateBundleStore reopened = new StateBundleStore(file, new QueueExecutor(), new StateBundleCodec());
+
+        assertThat(reopened.get("state").getInt("count")).isEqualTo(1);
+        assertThat(file.length()).isEqualTo(validLength);
+        reopened.put("state", new StateBundle().putInt("count", 3));
+        reopened.close();
+        StateBundleStore reopenedAgain = new StateBundleStore(file, new QueueExecutor(), new StateBundleCodec());
+        assertThat(reopenedAgain.get("state").getInt("count")).isEqualTo(3);
+        reopenedAgain.close();
+    }
+
+    @Test
+    public void corruptRecordFollowedByOtherRecordsIsReported()
+            throws IOException {
+        File file = createFile();
+        StateBundleStore store = new StateBundleStore(file, new QueueExecutor(), new StateBundleCodec());
+        store.put("first", new StateBundle().putInt("count", 1));
+        long secondOffset = file.length();
+        store.put("second", new StateBundle().putInt("count", 2));
+        store.put("third", new StateBundle().putInt("count", 3));
+        store.close();
+        long length = file.length();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(secondOffset + 12);
+        int corrupted = randomAccessFile.read() ^ 0xFF;
+        randomAccessFile.seek(secondOffset + 12);
+        randomAccessFile.write(corrupted);
+        randomAccessFile.close();
+
+        try {
+            new StateBundleStore(file, new QueueExecutor(), new StateBundleCodec());
+            Assert.fail("The corrupt record should be reported");
+        } catch(IOException e) {
+            // OK!
+        }
+        assertThat(file.length()).isEqualTo(length);
+    }
+
+    @Test
+    public void corruptLengthPointingPastTheEndIsReported()
+            throws IOException {
+        File file = createFile();
+        StateBundleStore store = new StateBundleStore(file, new QueueExecutor(), new StateBundleCodec());
+        store.put("first", new StateBundle().putInt("count", 1));
+        store.put("second", new StateBundle().putInt("count", 2));
+        store.close();
+        long length = file.length();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.writeInt((int) length);
+        randomAccessFile.close();
+
+        try {
+            new StateBundleStore(file, new QueueExecutor(), new StateBundleCodec());
+            Assert.fail("The corrupt length should be reported");
+        } catch(IOException e) {
+            // OK!
+        }
+        assertThat(file.length()).isEqualTo(length);
+    }
+
+    @Test
+    public void rejectedCompactionIsScheduledAgain()
+            throws IOException {
+        File file = createFile();
+        final QueueExecutor queue = new QueueExecutor();
+        final boolean[] rejecting = {true};
+        StateBundleStore store = new StateBundleStore(file, new Executor() {
+            @Override
+            public void execute(@Nonnull Runnable runnable) {
+                if(rejecting[0]) {
+                    throw new RejectedExecutionException();
+                }
+                queue.execute(runnable);
+            }
+        }, new StateBundleCodec());
+        byte[] payload = new byte[1024];
+        for(int i = 0; i < 200; i++) {
+            store.put("state" + (i % 4), new StateBundle().putInt("count", i).putByteArray("payload", payload));
+        }
+        rejecting[0] = false;
+        store.put("state0", new StateBundle().putInt("count", 200).putByteArray("payload", payload));
+
+        assertThat(queue.runnables).hasSize(1);
+        queue.runnables.remove(0).run();
+        assertThat(store.get("state0").getInt("count")).isEqualTo(200);
+        assertThat(store.get("state3").getInt("count")).isEqualTo(199);
+        store.close();
+    }
+
+    @Test
+    public void compactionReclaimsOverwrittenRecords()
+            throws IOException {
+        File file = createFile();
+        QueueExecutor executor = new QueueExecutor();
+        StateBundleStore store = new StateBundleStore(file, executor, new StateBundleCodec());
+        byte[] payload = new byte[1024];
+        for(int i = 0; i < 200; i++) {
+            store.put("state" + (i % 4), new StateBundle().putInt("count", i).putByteArray("payload", payload));
+        }
+        assertThat(executor.runnables).hasSize(1);
+        long uncompactedLength = file.length();
+
+        executor.runnables.remove(0).run();
+
+        assertThat(file.length()).isLessThan(uncompactedLength / 10);
+        for(int i = 0; i < 4; i++) {
+            assertThat(store.get("state" + i).getInt("count")).isEqualTo(196 + i);
+        }
+        store.put("state0", new StateBundle().putInt("count", 1000));
+        store.close();
+        StateBundleStore reopened = new StateBundleStore(file, executor, new StateBundleCodec());
+        assertThat(reopened.get("state0").getInt("count")).isEqualTo(1000);
+        assertThat(reopened.get("state3").getInt("count")).isEqualTo(199);
+        reopened.close();
+    }
+}
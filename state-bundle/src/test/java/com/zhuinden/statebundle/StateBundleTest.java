@@ -18,11 +18,18 @@ package com.zhuinden.statebundle;
 import android.os.Parcelable;
 import android.util.SparseArray;
 
+import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.Mockito;
 
 import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -31,6 +38,21 @@ import static org.assertj.core.api.Assertions.assertThat;
  */
 
 public class StateBundleTest {
+    @Test
+    public void putMethodsReturnStateBundle()
+            throws NoSuchMethodException {
+        StateBundle stateBundle = new StateBundle().putInt("int", 1).putString("string", "hello");
+        assertThat(stateBundle.getInt("int")).isEqualTo(1);
+
+        for(Method method : AbstractStateBundle.class.getDeclaredMethods()) {
+            if(Modifier.isPublic(method.getModifiers()) && method.getName().startsWith("put")) {
+                // code compiled against earlier versions links against put methods that return StateBundle
+                Method override = StateBundle.class.getDeclaredMethod(method.getName(), method.getParameterTypes());
+                assertThat(override.getReturnType() == StateBundle.class).isTrue();
+            }
+        }
+    }
+
     @Test
     public void testBooleanIsPutAndRetrieved() {
         StateBundle stateBundle = new StateBundle();
@@ -804,4 +826,416 @@ public class StateBundleTest {
 
         assertThat(stateBundle).isEqualTo(stateBundle1);
     }
+
+    @Test
+    public void typeOfClassifiesBundleValues() {
+        assertThat(StateBundle.typeOf(true)).isEqualTo(StateBundle.type_boolean);
+        assertThat(StateBundle.typeOf((byte) 1)).isEqualTo(StateBundle.type_byte);
+        assertThat(StateBundle.typeOf('c')).isEqualTo(StateBundle.type_char);
+        assertThat(StateBundle.typeOf((short) 1)).isEqualTo(StateBundle.type_short);
+        assertThat(StateBundle.typeOf(1)).isEqualTo(StateBundle.type_int);
+        assertThat(StateBundle.typeOf(1L)).isEqualTo(StateBundle.type_long);
+        assertThat(StateBundle.typeOf(1.0f)).isEqualTo(StateBundle.type_float);
+        assertThat(StateBundle.typeOf(1.0)).isEqualTo(StateBundle.type_double);
+        assertThat(StateBundle.typeOf("hello")).isEqualTo(StateBundle.type_String);
+        assertThat(StateBundle.typeOf(new StringBuilder("hello"))).isEqualTo(StateBundle.type_CharSequence);
+        assertThat(StateBundle.typeOf(new boolean[]{true})).isEqualTo(StateBundle.type_BooleanArray);
+        assertThat(StateBundle.typeOf(new byte[]{1})).isEqualTo(StateBundle.type_ByteArray);
+        assertThat(StateBundle.typeOf(new short[]{1})).isEqualTo(StateBundle.type_ShortArray);
+        assertThat(StateBundle.typeOf(new char[]{'a'})).isEqualTo(StateBundle.type_CharArray);
+        assertThat(StateBundle.typeOf(new int[]{1})).isEqualTo(StateBundle.type_IntArray);
+        assertThat(StateBundle.typeOf(new long[]{1L})).isEqualTo(StateBundle.type_LongArray);
+        assertThat(StateBundle.typeOf(new float[]{1.0f})).isEqualTo(StateBundle.type_FloatArray);
+        assertThat(StateBundle.typeOf(new double[]{1.0})).isEqualTo(StateBundle.type_DoubleArray);
+        assertThat(StateBundle.typeOf(new String[]{"a"})).isEqualTo(StateBundle.type_StringArray);
+        assertThat(StateBundle.typeOf(new CharSequence[]{"a"})).isEqualTo(StateBundle.type_CharSequenceArray);
+        assertThat(StateBundle.typeOf(new Parcelable[]{new TestKey("a")})).isEqualTo(StateBundle.type_ParcelableArray);
+        assertThat(StateBundle.typeOf(new TestKey("a"))).isEqualTo(StateBundle.type_Parcelable);
+        assertThat(StateBundle.typeOf(new StateBundle())).isEqualTo(StateBundle.type_StateBundle);
+        assertThat(StateBundle.typeOf(Mockito.mock(SparseArray.class))).isEqualTo(StateBundle.type_SparseParcelableArray);
+        assertThat(StateBundle.typeOf(new java.util.Date())).isEqualTo(StateBundle.type_Date);
+        assertThat(StateBundle.typeOf(Thread.State.NEW)).isEqualTo(StateBundle.type_Enum);
+        assertThat(StateBundle.typeOf(java.util.UUID.randomUUID())).isEqualTo(StateBundle.type_UUID);
+        assertThat(StateBundle.typeOf(java.math.BigDecimal.ONE)).isEqualTo(StateBundle.type_BigDecimal);
+        assertThat(StateBundle.typeOf(new java.util.HashMap<String, String>())).isEqualTo(StateBundle.type_Serializable);
+        assertThat(StateBundle.typeOf(new Object())).isEqualTo(StateBundle.type_unknown);
+    }
+
+    @Test
+    public void typeOfClassifiesArrayListsByElement() {
+        ArrayList<Integer> integers = new ArrayList<>();
+        integers.add(null);
+        integers.add(5);
+        ArrayList<String> strings = new ArrayList<>();
+        strings.add("hello");
+        ArrayList<CharSequence> charSequences = new ArrayList<>();
+        charSequences.add(new StringBuilder("hello"));
+        ArrayList<Parcelable> parcelables = new ArrayList<>();
+        parcelables.add(new TestKey("hello"));
+
+        assertThat(StateBundle.typeOf(integers)).isEqualTo(StateBundle.type_IntegerArrayList);
+        assertThat(StateBundle.typeOf(strings)).isEqualTo(StateBundle.type_StringArrayList);
+        assertThat(StateBundle.typeOf(charSequences)).isEqualTo(StateBundle.type_CharSequenceArrayList);
+        assertThat(StateBundle.typeOf(parcelables)).isEqualTo(StateBundle.type_ParcelableArrayList);
+        assertThat(StateBundle.typeOf(new ArrayList<String>())).isEqualTo(StateBundle.type_StringArrayList);
+    }
+
+    @Test
+    public void typeOfClassifiesMixedArrayListsByAllElements() {
+        ArrayList<CharSequence> charSequences = new ArrayList<>();
+        charSequences.add("hello");
+        charSequences.add(null);
+        charSequences.add(new StringBuilder("world"));
+        ArrayList<Object> serializables = new ArrayList<>();
+        serializables.add(5);
+        serializables.add("hello");
+        ArrayList<Object> parcelablesAndIntegers = new ArrayList<>();
+        parcelablesAndIntegers.add(new TestKey("hello"));
+        parcelablesAndIntegers.add(5);
+        ArrayList<Object> objects = new ArrayList<>();
+        objects.add("hello");
+        objects.add(new Object());
+
+        assertThat(StateBundle.typeOf(charSequences)).isEqualTo(StateBundle.type_CharSequenceArrayList);
+        assertThat(StateBundle.typeOf(serializables)).isEqualTo(StateBundle.type_Serializable);
+        assertThat(StateBundle.typeOf(parcelablesAndIntegers)).isEqualTo(StateBundle.type_unknown);
+        assertThat(StateBundle.typeOf(objects)).isEqualTo(StateBundle.type_unknown);
+    }
+
+    @Test
+    public void acceptVisitsEntriesWithTheirTypeInInsertionOrder() {
+        StateBundle stateBundle = new StateBundle();
+        stateBundle.putInt("int", 5);
+        stateBundle.putBoolean("boolean", true);
+        stateBundle.putIntArray("intArray", new int[]{1, 2});
+        stateBundle.putString("string", null);
+        stateBundle.putBundle("bundle", new StateBundle());
+        stateBundle.putInt("int", 6);
+
+        RecordingVisitor visitor = new RecordingVisitor();
+        stateBundle.accept(visitor);
+
+        assertThat(visitor.visits).containsExactly("Int:int=6",
+                                                   "Boolean:boolean=true",
+                                                   "IntArray:intArray=[1, 2]",
+                                                   "String:string=null",
+                                                   "Bundle:bundle=[]");
+    }
+
+    @Test
+    public void acceptWorksAfterRemovingKeysThroughKeySet() {
+        StateBundle stateBundle = new StateBundle();
+        stateBundle.putInt("first", 1);
+        stateBundle.putLong("second", 2L);
+        stateBundle.putString("third", "3");
+        stateBundle.keySet().remove("first");
+
+        RecordingVisitor visitor = new RecordingVisitor();
+        stateBundle.accept(visitor);
+
+        assertThat(visitor.visits).containsExactly("Long:second=2", "String:third=3");
+        assertThat(stateBundle.toString()).isEqualTo("{[second]::[2]} {[third]::[3]}");
+    }
+
+    @Test
+    public void entriesExposeKeyTypeAndValueInInsertionOrder() {
+        StateBundle stateBundle = new StateBundle();
+        int[] intArray = new int[]{1, 2};
+        stateBundle.putString("string", "hello");
+        stateBundle.putIntArray("intArray", intArray);
+        stateBundle.putLong("long", 5L);
+
+        List<StateBundle.Entry> entries = stateBundle.entries();
+
+        assertThat(entries).hasSize(3);
+        assertThat(entries.get(0).getKey()).isEqualTo("string");
+        assertThat(entries.get(0).getType()).isEqualTo(StateBundle.type_String);
+        assertThat(entries.get(0).getValue()).isEqualTo("hello");
+        assertThat(entries.get(1).getKey()).isEqualTo("intArray");
+        assertThat(entries.get(1).getType()).isEqualTo(StateBundle.type_IntArray);
+        assertThat(entries.get(1).getValue()).isSameAs(intArray);
+        assertThat(entries.get(2).getKey()).isEqualTo("long");
+        assertThat(entries.get(2).getType()).isEqualTo(StateBundle.type_long);
+        assertThat(entries.get(2).getValue()).isEqualTo(5L);
+    }
+
+    @Test
+    public void entriesIsASnapshot() {
+        StateBundle stateBundle = new StateBundle();
+        stateBundle.putString("string", "hello");
+
+        List<StateBundle.Entry> entries = stateBundle.entries();
+        stateBundle.putString("other", "world");
+
+        assertThat(entries).hasSize(1);
+        try {
+            entries.remove(0);
+            Assert.fail("The entries should not be modifiable");
+        } catch(UnsupportedOperationException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void snapshotIsNotAffectedByLaterChanges() {
+        StateBundle stateBundle = new StateBundle();
+        stateBundle.putString("hello", "world");
+
+        StateBundle snapshot = stateBundle.snapshot();
+        stateBundle.putString("hello", "there");
+        stateBundle.putInt("int", 5);
+
+        assertThat(snapshot.getString("hello")).isEqualTo("world");
+        assertThat(snapshot.containsKey("int")).isFalse();
+        assertThat(stateBundle.getString("hello")).isEqualTo("there");
+        assertThat(snapshot.snapshot()).isSameAs(snapshot);
+    }
+
+    @Test
+    public void snapshotIsNotAffectedByKeySetRemoval() {
+        StateBundle stateBundle = new StateBundle();
+        stateBundle.putString("hello", "world");
+
+        StateBundle snapshot = stateBundle.snapshot();
+        stateBundle.keySet().remove("hello");
+
+        assertThat(stateBundle.containsKey("hello")).isFalse();
+        assertThat(snapshot.getString("hello")).isEqualTo("world");
+    }
+
+    @Test
+    public void snapshotCannotBeModified() {
+        StateBundle snapshot = new StateBundle().putString("hello", "world").snapshot();
+
+        assertThat(snapshot.isImmutable()).isTrue();
+        try {
+            snapshot.putString("hello", "there");
+            Assert.fail("The snapshot should not be modifiable");
+        } catch(UnsupportedOperationException e) {
+            // OK!
+        }
+        try {
+            snapshot.keySet().clear();
+            Assert.fail("The snapshot should not be modifiable");
+        } catch(UnsupportedOperationException e) {
+            // OK!
+        }
+        StateBundle copy = new StateBundle(snapshot).putString("hello", "there");
+        assertThat(copy.isImmutable()).isFalse();
+        assertThat(snapshot.getString("hello")).isEqualTo("world");
+    }
+
+    @Test
+    public void snapshotFreezesNestedBundles() {
+        StateBundle child = new StateBundle().putString("hello", "world");
+        StateBundle leaf = new StateBundle().putInt("int", 1);
+        child.putBundle("leaf", leaf);
+        StateBundle stateBundle = new StateBundle().putBundle("child", child).putInt("int", 2);
+
+        StateBundle snapshot = stateBundle.snapshot();
+        child.putString("hello", "there");
+        leaf.putInt("int", 3);
+
+        assertThat(snapshot.getBundle("child").isImmutable()).isTrue();
+        assertThat(snapshot.getBundle("child").getString("hello")).isEqualTo("world");
+        assertThat(snapshot.getBundle("child").getBundle("leaf").getInt("int")).isEqualTo(1);
+        try {
+            snapshot.getBundle("child").putString("hello", "there");
+            Assert.fail("The nested bundles of a snapshot should not be modifiable");
+        } catch(UnsupportedOperationException e) {
+            // OK!
+        }
+        assertThat(stateBundle.deepCopy().getBundle("child").isImmutable()).isFalse();
+    }
+
+    @Test
+    public void snapshotSharesOtherValues() {
+        int[] array = {1, 2};
+        StateBundle stateBundle = new StateBundle().putIntArray("array", array);
+
+        StateBundle snapshot = stateBundle.snapshot();
+        array[0] = 5;
+
+        // only the StateBundles are frozen, see snapshot()
+        assertThat(snapshot.getIntArray("array")).isSameAs(array);
+        assertThat(snapshot.getIntArray("array")[0]).isEqualTo(5);
+    }
+
+    @Test
+    public void snapshotHandlesDeepTrees() {
+        StateBundle root = new StateBundle();
+        StateBundle current = root;
+        for(int i = 0; i < 10000; i++) {
+            StateBundle child = new StateBundle();
+            current.putInt("depth", i);
+            current.putBundle("child", child);
+            current = child;
+        }
+
+        StateBundle snapshot = root.snapshot();
+
+        StateBundle frozen = snapshot;
+        for(int i = 0; i < 10000; i++) {
+            assertThat(frozen.isImmutable()).isTrue();
+            frozen = frozen.getBundle("child");
+        }
+        assertThat(frozen.isImmutable()).isTrue();
+    }
+
+    @Test
+    public void recycledBundleIsObtainedEmpty() {
+        StateBundle stateBundle = StateBundle.obtain();
+        stateBundle.putString("hello", "world");
+        stateBundle.recycle();
+
+        StateBundle obtained = StateBundle.obtain();
+
+        assertThat(obtained).isSameAs(stateBundle);
+        assertThat(obtained.isEmpty()).isTrue();
+        assertThat(obtained.typeMap.isEmpty()).isTrue();
+        assertThat(StateBundle.obtain()).isNotSameAs(obtained);
+    }
+
+    @Test
+    public void recyclingKeepsSnapshotsIntact() {
+        StateBundle stateBundle = StateBundle.obtain();
+        stateBundle.putString("hello", "world");
+        StateBundle snapshot = stateBundle.snapshot();
+
+        stateBundle.recycle();
+
+        assertThat(snapshot.getString("hello")).isEqualTo("world");
+        try {
+            snapshot.recycle();
+            Assert.fail("A snapshot should not be recyclable");
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+        StateBundle.obtain();
+    }
+
+    @Test
+    public void deepCopyDoesNotShareMutableValues() {
+        StateBundle nested = new StateBundle();
+        nested.putIntArray("intArray", new int[]{1, 2});
+        StateBundle stateBundle = new StateBundle();
+        setupStateBundle(stateBundle);
+        stateBundle.putBundle("nested", nested);
+
+        StateBundle copy = stateBundle.deepCopy();
+
+        assertThat(copy).isEqualTo(stateBundle);
+        assertThat(copy.typeMap).isEqualTo(stateBundle.typeMap);
+        assertThat(copy.toString()).isEqualTo(stateBundle.toString());
+        assertThat(copy.getIntArray("intArray")).isNotSameAs(stateBundle.getIntArray("intArray"));
+        assertThat(copy.getIntegerArrayList("integerArrayList")).isNotSameAs(stateBundle.getIntegerArrayList("integerArrayList"));
+        assertThat(copy.getBundle("nested")).isNotSameAs(nested);
+        assertThat(copy.getBundle("nested").getIntArray("intArray")).isNotSameAs(nested.getIntArray("intArray"));
+        assertThat(copy.getString("string")).isSameAs(stateBundle.getString("string"));
+
+        nested.getIntArray("intArray")[0] = 5;
+        assertThat(copy.getBundle("nested").getIntArray("intArray")).isEqualTo(new int[]{1, 2});
+    }
+
+    @Test
+    public void deepCopyHandlesDeepTrees() {
+        StateBundle root = new StateBundle();
+        StateBundle current = root;
+        for(int i = 0; i < 10000; i++) {
+            StateBundle child = new StateBundle();
+            current.putInt("depth", i);
+            current.putBundle("child", child);
+            current = child;
+        }
+
+        StateBundle copy = root.deepCopy();
+
+        StateBundle copied = copy;
+        for(int i = 0; i < 10000; i++) {
+            assertThat(copied.getInt("depth")).isEqualTo(i);
+            copied = copied.getBundle("child");
+        }
+        assertThat(copied.isEmpty()).isTrue();
+    }
+
+    enum Color {
+        RED,
+        GREEN {
+            @Override
+            public String toString() {
+                return "green";
+            }
+        }
+    }
+
+    @Test
+    public void valueTypesArePutAndRetrieved() {
+        UUID uuid = new UUID(1L, 2L);
+        StateBundle stateBundle = new StateBundle()
+                .putEnum("enum", Color.GREEN)
+                .putUUID("uuid", uuid)
+                .putDate("date", new Date(1234L))
+                .putBigDecimal("bigDecimal", new BigDecimal("12.50"));
+
+        assertThat(stateBundle.getEnum("enum", Color.class)).isSameAs(Color.GREEN);
+        assertThat(stateBundle.getUUID("uuid")).isEqualTo(uuid);
+        assertThat(stateBundle.getDate("date")).isEqualTo(new Date(1234L));
+        assertThat(stateBundle.getBigDecimal("bigDecimal")).isEqualTo(new BigDecimal("12.50"));
+        assertThat(stateBundle.getEnum("uuid", Color.class)).isNull();
+        assertThat(stateBundle.getEnum("enum", Thread.State.class)).isNull();
+        assertThat(stateBundle.getDate("uuid")).isNull();
+    }
+
+    @Test
+    public void deepCopyClonesDates() {
+        Date date = new Date(1234L);
+        StateBundle stateBundle = new StateBundle().putDate("date", date);
+
+        StateBundle copy = stateBundle.deepCopy();
+
+        assertThat(copy).isEqualTo(stateBundle);
+        assertThat(copy.getDate("date")).isNotSameAs(date);
+    }
+
+    @Test
+    public void valueTypesAreVisited() {
+        RecordingVisitor visitor = new RecordingVisitor();
+
+        new StateBundle().putEnum("enum", Color.RED).accept(visitor);
+        new StateBundle().putDate("date", new Date(5L)).accept(visitor);
+
+        assertThat(visitor.visits).containsExactly("Enum:enum=RED", "Date:date=5");
+    }
+
+    @Test
+    public void deepCopyHandlesDeepTreesInsideListsAndArrays() {
+        StateBundle root = new StateBundle();
+        StateBundle current = root;
+        for(int i = 0; i < 10000; i++) {
+            StateBundle child = new StateBundle();
+            current.putInt("depth", i);
+            if(i % 2 == 0) {
+                ArrayList<StateBundle> list = new ArrayList<>();
+                list.add(child);
+                current.putParcelableArrayList("children", list);
+            } else {
+                current.putParcelableArray("children", new Parcelable[]{child});
+            }
+            current = child;
+        }
+
+        StateBundle copy = root.deepCopy();
+
+        StateBundle original = root;
+        StateBundle copied = copy;
+        for(int i = 0; i < 10000; i++) {
+            assertThat(copied.getInt("depth")).isEqualTo(i);
+            StateBundle next = i % 2 == 0 ? copied.<StateBundle>getParcelableArrayList("children").get(0) : (StateBundle) copied.getParcelableArray("children")[0];
+            StateBundle originalNext = i % 2 == 0 ? original.<StateBundle>getParcelableArrayList("children").get(0) : (StateBundle) original.getParcelableArray("children")[0];
+            assertThat(next).isNotSameAs(originalNext);
+            copied = next;
+            original = originalNext;
+        }
+        assertThat(copied.isEmpty()).isTrue();
+    }
 }
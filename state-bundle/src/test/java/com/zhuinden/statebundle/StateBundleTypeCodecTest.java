@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.statebundle;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StateBundleTypeCodecTest {
+    private static final int type_Point = StateBundle.FIRST_CUSTOM_TYPE;
+
+    private static class Point {
+        int x;
+        int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    // Point does not override equals(), so the codec provides it
+    private static final StateBundleTypeCodec<Point> POINT_CODEC = new StateBundleTypeCodec<Point>(Point.class) {
+        @Override
+        public void encode(@Nonnull DataOutput output, @Nonnull Point value)
+                throws IOException {
+            output.writeInt(value.x);
+            output.writeInt(value.y);
+        }
+
+        @Nonnull
+        @Override
+        public Point decode(@Nonnull DataInput input)
+                throws IOException {
+            return new Point(input.readInt(), input.readInt());
+        }
+
+        @Override
+        public int hashCode(@Nonnull Point value) {
+            return 31 * value.x + value.y;
+        }
+
+        @Override
+        public boolean equals(@Nonnull Point value, @Nonnull Point other) {
+            return value.x == other.x && value.y == other.y;
+        }
+
+        @Nonnull
+        @Override
+        public String toString(@Nonnull Point value) {
+            return value.x + "x" + value.y;
+        }
+    };
+
+    static {
+        StateBundle.registerTypeCodec(type_Point, POINT_CODEC);
+    }
+
+    @Test
+    public void customValuesAreComparedWithTheirCodec() {
+        StateBundle stateBundle = new StateBundle().putCustom("point", type_Point, new Point(1, 2));
+        StateBundle other = new StateBundle().putCustom("point", type_Point, new Point(1, 2));
+
+        assertThat(stateBundle.<Point>getCustom("point", type_Point).y).isEqualTo(2);
+        assertThat(stateBundle).isEqualTo(other);
+        assertThat(stateBundle.hashCode()).isEqualTo(other.hashCode());
+        assertThat(stateBundle.toString()).isEqualTo("{[point]::[1x2]}");
+        assertThat(stateBundle.equals(new StateBundle().putCustom("point", type_Point, new Point(2, 1)))).isFalse();
+    }
+
+    @Test
+    public void customValuesAreCopiedAndEncodedWithTheirCodec() {
+        StateBundle stateBundle = new StateBundle().putCustom("point", type_Point, new Point(3, 4)).putCustom("null", type_Point, null);
+        StateBundleCodec codec = new StateBundleCodec();
+
+        StateBundle decoded = codec.decode(codec.encode(stateBundle));
+        StateBundle copy = stateBundle.deepCopy();
+
+        assertThat(decoded).isEqualTo(stateBundle);
+        assertThat(decoded.typeMap).isEqualTo(stateBundle.typeMap);
+        assertThat(copy).isEqualTo(stateBundle);
+        assertThat(copy.getCustom("point", type_Point)).isNotSameAs(stateBundle.getCustom("point", type_Point));
+    }
+
+    @Test
+    public void builtInValuesAreEncodedWithTheirCodec() {
+        StateBundle stateBundle = StateBundleCodecTest.createStateBundle();
+
+        for(StateBundle.Entry entry : stateBundle.entries()) {
+            if(entry.getValue() != null) {
+                StateBundleTypeCodec<Object> codec = StateBundle.typeCodec(entry.getType());
+                Object decoded = codec.fromByteArray(codec.toByteArray(entry.getValue()));
+                assertThat(codec.equals(entry.getValue(), decoded)).isTrue();
+            }
+        }
+    }
+
+    @Test
+    public void malformedLengthsOfBuiltInValuesAreRejected() {
+        int[] lengths = {-1, 5, Integer.MAX_VALUE};
+        for(int type : new int[]{StateBundle.type_BigDecimal, StateBundle.type_IntArray}) {
+            StateBundleTypeCodec<Object> codec = StateBundle.typeCodec(type);
+            for(int length : lengths) {
+                ByteBuffer buffer = ByteBuffer.allocate(12);
+                if(type == StateBundle.type_BigDecimal) {
+                    buffer.putInt(2); // scale
+                }
+                buffer.putInt(length);
+                try {
+                    codec.fromByteArray(Arrays.copyOf(buffer.array(), buffer.position() + 1));
+                    Assert.fail("A length of [" + length + "] should be rejected");
+                } catch(IllegalArgumentException e) {
+                    assertThat(e.getMessage()).isEqualTo("Malformed data: invalid length [" + length + "]");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void customValuesAreVisited() {
+        RecordingVisitor visitor = new RecordingVisitor();
+
+        new StateBundle().putCustom("point", type_Point, null).accept(visitor);
+
+        assertThat(visitor.visits).containsExactly("Custom64:point=null");
+    }
+
+    @Test
+    public void getCustomChecksTheType() {
+        StateBundle stateBundle = new StateBundle().putCustom("point", type_Point, new Point(1, 2)).putInt("int", 1);
+
+        assertThat(stateBundle.<Object>getCustom("int", type_Point)).isNull();
+        assertThat(stateBundle.<Object>getCustom("missing", type_Point)).isNull();
+    }
+
+    @Test
+    public void schemasAcceptCustomTypes() {
+        StateBundleSchema schema = new StateBundleSchema.Builder(1).add("point", type_Point).build();
+        StateBundleCodec codec = new StateBundleCodec.Builder().addSchema(schema).build();
+        StateBundle stateBundle = new StateBundle().putCustom("point", type_Point, new Point(5, 6));
+
+        assertThat(codec.decode(codec.encode(stateBundle))).isEqualTo(stateBundle);
+    }
+
+    @Test
+    public void invalidRegistrationsAreRejected() {
+        try {
+            StateBundle.registerTypeCodec(StateBundle.type_int, POINT_CODEC);
+            Assert.fail("Built-in types should not be replaced");
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+        StateBundle.registerTypeCodec(type_Point, POINT_CODEC);
+        try {
+            StateBundle.registerTypeCodec(type_Point, new StateBundleTypeCodec<String>(String.class) {
+                @Override
+                public void encode(@Nonnull DataOutput output, @Nonnull String value)
+                        throws IOException {
+                    output.writeUTF(value);
+                }
+
+                @Nonnull
+                @Override
+                public String decode(@Nonnull DataInput input)
+                        throws IOException {
+                    return input.readUTF();
+                }
+            });
+            Assert.fail("A registered codec should not be replaced");
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void putCustomChecksTheValue() {
+        try {
+            new StateBundle().putCustom("point", type_Point, "not a point");
+            Assert.fail("Values of another class should be rejected");
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+        try {
+            new StateBundle().putCustom("point", StateBundle.LAST_CUSTOM_TYPE, new Point(1, 2));
+            Assert.fail("Unregistered types should be rejected");
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+    }
+}